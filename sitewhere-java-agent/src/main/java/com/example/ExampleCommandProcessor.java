@@ -7,14 +7,15 @@
  */
 package com.example;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.logging.Level;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import com.sitewhere.agent.AgentCommand;
 import com.sitewhere.agent.BaseCommandProcessor;
 import com.sitewhere.agent.ISiteWhereEventDispatcher;
+import com.sitewhere.agent.ITelemetryCollector;
 import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.agent.TelemetryScheduler;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAck;
 import com.sitewhere.spi.device.event.IDeviceEventOriginator;
@@ -29,8 +30,11 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
 	/** Static logger instance */
 	private static Logger LOGGER = Logger.getLogger(ExampleCommandProcessor.class.getName());
 
-	/** Executor for background processing */
-	private ExecutorService executor = Executors.newSingleThreadExecutor();
+	/** Milliseconds between JVM memory statistics */
+	private static final long STATISTICS_INTERVAL = 5000;
+
+	/** Collector sending JVM memory statistics (null if not started) */
+	private TelemetryScheduler.ScheduledCollector statistics;
 
 	/*
 	 * (non-Javadoc)
@@ -43,6 +47,12 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
 			ISiteWhereEventDispatcher dispatcher) throws SiteWhereAgentException {
 		sendRegistration(hardwareId, specificationToken);
 		LOGGER.info("Sent registration information.");
+
+		// Devices registered before a restart start sending while SiteWhere confirms.
+		if (isRegistrationSaved(hardwareId, specificationToken)) {
+			LOGGER.info("Using saved registration while SiteWhere confirms it.");
+			sendDataAtInterval();
+		}
 	}
 
 	/*
@@ -68,6 +78,7 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
 		}
 		case REGISTRATION_ERROR: {
 			LOGGER.warning("SiteWhere indicated a device registration error.");
+			stopSendingData();
 			break;
 		}
 		}
@@ -83,41 +94,41 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
 	}
 
 	/**
-	 * This is an example of creating a thread that will send data to SiteWhere every so
-	 * often, sleeping between cycles.
+	 * This is an example of sending data to SiteWhere every so often. The collector is run
+	 * by the agent's telemetry scheduler, which sends readings of collectors due at the
+	 * same time as one event.
 	 */
-	public void sendDataAtInterval() {
+	public synchronized void sendDataAtInterval() {
 
-		// Run processing in another thread.
-		LOGGER.info("Starting JVM memory statistics sender thread.");
-		executor.execute(new Runnable() {
+		// Registration may be confirmed after sending already started from saved state.
+		if (statistics != null) {
+			return;
+		}
+
+		LOGGER.info("Scheduling JVM memory statistics every " + STATISTICS_INTERVAL + " ms.");
+		statistics = scheduleTelemetry(new ITelemetryCollector() {
 
 			@Override
-			public void run() {
-				while (true) {
-
-					// Get Java memory values from the runtime.
-					long free = Runtime.getRuntime().freeMemory();
-					long max = Runtime.getRuntime().maxMemory();
-					long total = Runtime.getRuntime().totalMemory();
-
-					try {
-						// Send events to SiteWhere.
-						sendMeasurement(getHardwareId(), "jvmFreeMemory", free, null);
-						sendMeasurement(getHardwareId(), "jvmMaxMemory", max, null);
-						sendMeasurement(getHardwareId(), "jvmTotalMemory", total, null);
-						LOGGER.info("Sent a batch of JVM memory statistics.");
-
-						// Wait five second before sending next events.
-						Thread.sleep(5000);
-					} catch (SiteWhereAgentException e) {
-						LOGGER.log(Level.WARNING, "Unable to send measurements to SiteWhere.", e);
-					} catch (InterruptedException e) {
-						LOGGER.log(Level.WARNING, "Event sender thread shut down.", e);
-					}
-				}
+			public void collect(Map<String, Double> readings) {
+
+				// Get Java memory values from the runtime.
+				readings.put("jvmFreeMemory", (double) Runtime.getRuntime().freeMemory());
+				readings.put("jvmMaxMemory", (double) Runtime.getRuntime().maxMemory());
+				readings.put("jvmTotalMemory", (double) Runtime.getRuntime().totalMemory());
 			}
-		});
+		}, STATISTICS_INTERVAL, 0);
+	}
+
+	/**
+	 * Stop sending data started from a saved registration that SiteWhere has rejected.
+	 */
+	public synchronized void stopSendingData() {
+		if (statistics == null) {
+			return;
+		}
+		statistics.cancel();
+		statistics = null;
+		LOGGER.info("Stopped sending JVM memory statistics.");
 	}
 
 	/**
@@ -128,6 +139,7 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
 	 * @param originator
 	 * @throws SiteWhereAgentException
 	 */
+	@AgentCommand
 	public void helloWorld(String greeting, Boolean loud, IDeviceEventOriginator originator)
 			throws SiteWhereAgentException {
 		String response = greeting + " World!";
@@ -144,6 +156,7 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
 	 * @param originator
 	 * @throws SiteWhereAgentException
 	 */
+	@AgentCommand
 	public void ping(IDeviceEventOriginator originator) throws SiteWhereAgentException {
 		sendAck(getHardwareId(), "Acknowledged.", originator);
 		LOGGER.info("Sent reponse to 'ping' command.");
@@ -155,6 +168,7 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
 	 * @param originator
 	 * @throws SiteWhereAgentException
 	 */
+	@AgentCommand
 	public void testEvents(IDeviceEventOriginator originator) throws SiteWhereAgentException {
 		sendMeasurement(getHardwareId(), "engine.temp", 170.0, originator);
 		sendLocation(getHardwareId(), 33.7550, -84.3900, 0.0, originator);
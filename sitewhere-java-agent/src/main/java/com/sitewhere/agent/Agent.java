@@ -8,14 +8,28 @@
 package com.sitewhere.agent;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.mqtt.client.BlockingConnection;
 import org.fusesource.mqtt.client.MQTT;
 import org.fusesource.mqtt.client.Message;
@@ -23,6 +37,10 @@ import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
 
 import com.google.protobuf.AbstractMessageLite;
+import com.sitewhere.agent.recording.TrafficRecorder;
+import com.sitewhere.agent.stream.DeviceStreamFetcher;
+import com.sitewhere.agent.stream.DeviceStreamUploader;
+import com.sitewhere.agent.stream.IncrementalStreamUploader;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.Acknowledge;
@@ -48,6 +66,30 @@ public class Agent {
 	/** Default MQTT port */
 	private static final int DEFAULT_MQTT_PORT = 1883;
 
+	/** Default number of inbound messages drained per receive cycle (no draining) */
+	private static final int DEFAULT_MQTT_INBOUND_DRAIN_LIMIT = 1;
+
+	/** Default number of outbound messages kept while disconnected */
+	public static final int DEFAULT_MQTT_RETAINED_MAX = 10000;
+
+	/** Default time in milliseconds allowed for delivering outbound messages at shutdown */
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5 * 1000;
+
+	/** Properties that are applied when the configuration is reloaded */
+	private static final Set<String> LIVE_PROPERTIES = new HashSet<String>(Arrays.asList(
+			IAgentConfiguration.MQTT_INBOUND_DRAIN_LIMIT, IAgentConfiguration.MQTT_RECONNECT_DELAY,
+			IAgentConfiguration.MQTT_RECONNECT_MAX_DELAY, IAgentConfiguration.MQTT_RETAINED_MAX,
+			IAgentConfiguration.MQTT_OUTBOUND_QOS, IAgentConfiguration.COMMAND_DUPLICATE_CACHE_SIZE,
+			IAgentConfiguration.COMMAND_HYBRID_ALLOWED_CLASSES, IAgentConfiguration.COMMAND_HYBRID_MAX_BYTES,
+			IAgentConfiguration.STREAM_UPLOAD_CHUNK_SIZE, IAgentConfiguration.STREAM_UPLOAD_WINDOW,
+			IAgentConfiguration.STREAM_FETCH_WINDOW, IAgentConfiguration.STREAM_FETCH_TIMEOUT,
+			IAgentConfiguration.REGISTRATION_WINDOW, IAgentConfiguration.REGISTRATION_MAX_OUTSTANDING,
+			IAgentConfiguration.REGISTRATION_ACK_TIMEOUT, IAgentConfiguration.REGISTRATION_MAX_BACKOFF,
+			IAgentConfiguration.SHUTDOWN_TIMEOUT, IAgentConfiguration.CONFIG_VERSION));
+
+	/** Maximum length of an MQTT 3.1 client id */
+	private static final int MAX_CLIENT_ID_LENGTH = 23;
+
 	/** Command processor Java classname */
 	private String commandProcessorClassname;
 
@@ -72,11 +114,119 @@ public class Agent {
 	/** Inbound specification command MQTT topic */
 	private String inboundCommandTopic;
 
+	/** Maximum number of inbound messages drained per receive cycle */
+	private int inboundDrainLimit = DEFAULT_MQTT_INBOUND_DRAIN_LIMIT;
+
+	/** Indicates broker should discard session state on connect */
+	private boolean cleanSession;
+
+	/** Delay in milliseconds before the first reconnect attempt */
+	private long reconnectDelay = MqttConnectionSupervisor.DEFAULT_INITIAL_DELAY;
+
+	/** Maximum delay in milliseconds between reconnect attempts */
+	private long reconnectMaxDelay = MqttConnectionSupervisor.DEFAULT_MAX_DELAY;
+
+	/** Number of outbound messages kept while disconnected */
+	private int retainedMax = DEFAULT_MQTT_RETAINED_MAX;
+
+	/** Quality of service for outbound messages */
+	private QoS outboundQos = QoS.EXACTLY_ONCE;
+
+	/** Number of command originator ids remembered for duplicate detection */
+	private int duplicateCacheSize = DuplicateCommandFilter.DEFAULT_CAPACITY;
+
+	/** Extra classes allowed in hybrid command payloads */
+	private List<String> hybridAllowedClasses = new ArrayList<String>();
+
+	/** Maximum size of a hybrid command payload */
+	private int hybridMaxBytes = HybridCommandDecoder.DEFAULT_MAX_BYTES;
+
+	/** Chunk size in bytes for device stream uploads */
+	private int streamChunkSize = DeviceStreamUploader.DEFAULT_CHUNK_SIZE;
+
+	/** Number of device stream chunks in flight during uploads */
+	private int streamWindow = DeviceStreamUploader.DEFAULT_WINDOW;
+
+	/** File that records chunks already sent by incremental uploads */
+	private String streamIndexFile = IncrementalStreamUploader.DEFAULT_INDEX_FILE;
+
+	/** Number of device stream chunk requests outstanding during fetches */
+	private int streamFetchWindow = DeviceStreamFetcher.DEFAULT_WINDOW;
+
+	/** Time in milliseconds to wait for a requested device stream chunk */
+	private long streamFetchTimeout = DeviceStreamFetcher.DEFAULT_REQUEST_TIMEOUT;
+
+	/** Number of command results cached for replay (0 disables cache) */
+	private int resultCacheSize;
+
+	/** Time in milliseconds a cached command result is kept */
+	private long resultCacheTtl = CommandResultCache.DEFAULT_TTL;
+
+	/** Default command execution timeout in milliseconds (0 for none) */
+	private long defaultCommandTimeout;
+
+	/** Command execution timeouts in milliseconds by command name */
+	private Map<String, Long> commandTimeouts = new HashMap<String, Long>();
+
+	/** Window in milliseconds device registrations are spread over */
+	private long registrationWindow = RegistrationScheduler.DEFAULT_WINDOW;
+
+	/** Number of registrations waiting for acknowledgement at once */
+	private int registrationMaxOutstanding = RegistrationScheduler.DEFAULT_MAX_OUTSTANDING;
+
+	/** Time in milliseconds to wait for registration acknowledgement (0 to never retry) */
+	private long registrationAckTimeout = RegistrationScheduler.DEFAULT_ACK_TIMEOUT;
+
+	/** Maximum delay in milliseconds between registration attempts */
+	private long registrationMaxBackoff = RegistrationScheduler.DEFAULT_MAX_BACKOFF;
+
+	/** File recording devices SiteWhere has acknowledged as registered */
+	private String registrationStateFile = RegistrationStore.DEFAULT_FILE;
+
+	/** Registration state shared by every processor configured from these settings */
+	private RegistrationStore registrationStore;
+
+	/** Paces registrations of every processor configured from these settings */
+	private RegistrationScheduler registrationScheduler;
+
+	/** Time in milliseconds allowed for delivering outbound messages at shutdown */
+	private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+	/** File outbound messages undelivered at shutdown are written to */
+	private String outboundSpillFile = OutboundSpool.DEFAULT_FILE;
+
+	/** Spool shared by every connection configured from these settings */
+	private OutboundSpool outboundSpool;
+
+	/** Tick in milliseconds that periodic telemetry is aligned to */
+	private long telemetryTick = TelemetryScheduler.DEFAULT_TICK;
+
+	/** Runs telemetry collectors of every processor configured from these settings */
+	private TelemetryScheduler telemetryScheduler;
+
+	/** Settings currently in effect */
+	private Properties properties = new Properties();
+
+	/** Number of times settings were applied, starting with the initial load */
+	private int configVersion;
+
+	/** Loggers with configured levels */
+	private final Map<String, Logger> configuredLoggers = new HashMap<String, Logger>();
+
+	/** File MQTT traffic is recorded to (null for no recording) */
+	private String recordingFile;
+
+	/** Records MQTT traffic */
+	private TrafficRecorder recorder;
+
 	/** MQTT client */
 	private MQTT mqtt;
 
 	/** MQTT connection */
-	private BlockingConnection connection;
+	private volatile BlockingConnection connection;
+
+	/** Reconnects when the MQTT connection drops */
+	private MqttConnectionSupervisor supervisor;
 
 	/** Outbound message processing */
 	private MQTTOutbound outbound;
@@ -108,30 +258,76 @@ public class Agent {
 		} catch (URISyntaxException e) {
 			throw new SiteWhereAgentException("Invalid hostname for MQTT server.", e);
 		}
+		mqtt.setClientId(calculateClientId());
+		mqtt.setCleanSession(isCleanSession());
+		supervisor = new MqttConnectionSupervisor(mqtt, "MQTT connection");
+		applySettings(null, supervisor);
 		LOGGER.info("Connecting to MQTT broker at '" + getMqttHostname() + ":" + getMqttPort() + "'...");
-		connection = mqtt.blockingConnection();
+		StartupTimer.getShared().begin(StartupTimer.MQTT_CONNECT);
 		try {
-			connection.connect();
+			connection = supervisor.connect();
 		} catch (Exception e) {
 			throw new SiteWhereAgentException("Unable to establish MQTT connection.", e);
 		}
 		LOGGER.info("Connected to MQTT broker.");
 
+		// Start recording traffic if requested.
+		if (getRecordingFile() != null) {
+			try {
+				recorder = new TrafficRecorder(new File(getRecordingFile()));
+			} catch (IOException e) {
+				throw new SiteWhereAgentException("Unable to create recording " + getRecordingFile() + ".", e);
+			}
+		}
+
 		// Create outbound message processor.
 		outbound = new MQTTOutbound(connection, getOutboundSiteWhereTopic());
+		outbound.setRecorder(recorder);
+		outbound.setSupervisor(supervisor);
+		applySettings(outbound, supervisor);
 
 		// Create an instance of the command processor.
+		StartupTimer.getShared().begin(StartupTimer.PROCESSOR_INSTANTIATION);
 		if (processor == null) {
 			processor = createProcessor();
 		}
 		processor.setHardwareId(hardwareId);
 		processor.setSpecificationToken(specificationToken);
 		processor.setEventDispatcher(outbound);
+		configure(processor);
+		StartupTimer.getShared().end();
 
 		// Create inbound message processing thread.
 		inbound =
 				new MQTTInbound(connection, getInboundSiteWhereTopic(), getInboundCommandTopic(), processor,
 						outbound);
+		inbound.setDrainLimit(getInboundDrainLimit());
+		inbound.setRecorder(recorder);
+		inbound.setSupervisor(supervisor);
+
+		// Restore subscriptions and send retained messages after reconnecting.
+		supervisor.setListener(new MqttConnectionSupervisor.Listener() {
+
+			@Override
+			public void connected(BlockingConnection reconnected) throws Exception {
+				connection = reconnected;
+				inbound.setConnection(reconnected);
+				inbound.subscribe();
+				outbound.setConnection(reconnected);
+				outbound.sendRetained();
+			}
+		});
+
+		// Send messages spooled at the last shutdown ahead of new events.
+		try {
+			if (outbound.restore(getOutboundSpool()) > 0) {
+				outbound.sendRetained();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to read outbound spool.", e);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to send spooled messages. Sending after reconnect.", e);
+		}
 
 		// Handle shutdown gracefully.
 		Runtime.getRuntime().addShutdownHook(new ShutdownHandler());
@@ -145,6 +341,220 @@ public class Agent {
 		LOGGER.info("SiteWhere agent started.");
 	}
 
+	/**
+	 * Apply the configured command settings to a command processor.
+	 * 
+	 * @param processor
+	 */
+	public void configure(IAgentCommandProcessor processor) {
+		applySettings(processor);
+		if (processor instanceof BaseCommandProcessor) {
+			BaseCommandProcessor base = (BaseCommandProcessor) processor;
+			base.setIncrementalUploads(
+					new IncrementalStreamUploader(base.getStreamUploads(), new File(getStreamIndexFile())));
+			if (getResultCacheSize() > 0) {
+				base.setResultCache(new CommandResultCache(getResultCacheSize(), getResultCacheTtl()));
+			}
+			base.setRegistrationScheduler(getRegistrationScheduler());
+			base.setRegistrationStore(getRegistrationStore());
+			base.setTelemetryScheduler(getTelemetryScheduler());
+		}
+	}
+
+	/**
+	 * Apply the settings that can change while running to a command processor.
+	 * 
+	 * @param processor
+	 */
+	public void applySettings(IAgentCommandProcessor processor) {
+		if (processor instanceof BaseCommandProcessor) {
+			BaseCommandProcessor base = (BaseCommandProcessor) processor;
+			base.getDuplicateFilter().setCapacity(getDuplicateCacheSize());
+			base.getHybridDecoder().setMaxBytes(getHybridMaxBytes());
+			base.getHybridDecoder().setAllowedClasses(getHybridAllowedClasses());
+			base.getStreamUploads().setChunkSize(getStreamChunkSize());
+			base.getStreamUploads().setWindow(getStreamWindow());
+			base.getStreamFetcher().setWindow(getStreamFetchWindow());
+			base.getStreamFetcher().setRequestTimeout(getStreamFetchTimeout());
+			base.setDefaultCommandTimeout(getDefaultCommandTimeout());
+			for (Map.Entry<String, Long> timeout : getCommandTimeouts().entrySet()) {
+				base.setCommandTimeout(timeout.getKey(), timeout.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Apply the settings that can change while running to an MQTT connection.
+	 * 
+	 * @param outbound may be null
+	 * @param supervisor may be null
+	 */
+	public void applySettings(MQTTOutbound outbound, MqttConnectionSupervisor supervisor) {
+		if (outbound != null) {
+			outbound.setRetainedMax(getRetainedMax());
+			outbound.setQos(getOutboundQos());
+		}
+		if (supervisor != null) {
+			supervisor.setInitialDelay(getReconnectDelay());
+			supervisor.setMaxDelay(getReconnectMaxDelay());
+		}
+	}
+
+	/**
+	 * Apply a changed configuration to the running agent. Settings that need a reconnect
+	 * or restart are logged and left for the next start.
+	 * 
+	 * @param updated
+	 */
+	public void reload(Properties updated) {
+		if (reloadSettings(updated).isEmpty()) {
+			return;
+		}
+		applySettings(outbound, supervisor);
+		if (inbound != null) {
+			inbound.setDrainLimit(getInboundDrainLimit());
+			applySettings(inbound.getProcessor());
+		}
+	}
+
+	/**
+	 * Load the settings of a changed configuration that can be applied while running.
+	 * Changed settings that need a reconnect or restart, and settings that were removed,
+	 * keep their current values until restart. The registration scheduler is updated
+	 * here since it is shared, other objects are updated by the caller.
+	 * 
+	 * @param updated
+	 * @return names of the settings that were applied
+	 */
+	public synchronized List<String> reloadSettings(Properties updated) {
+		Properties applied = (Properties) getProperties().clone();
+		List<String> live = new ArrayList<String>();
+		List<String> staged = new ArrayList<String>();
+		Set<String> names = new TreeSet<String>(getProperties().stringPropertyNames());
+		names.addAll(updated.stringPropertyNames());
+		for (String name : names) {
+			String previous = getProperties().getProperty(name);
+			String value = updated.getProperty(name);
+			if ((value == null) ? (previous == null) : value.equals(previous)) {
+				continue;
+			}
+			if ((value != null) && isLiveProperty(name)) {
+				applied.setProperty(name, value);
+				live.add(name);
+			} else {
+				staged.add(name);
+			}
+		}
+		if (!staged.isEmpty()) {
+			LOGGER.warning("Configuration changes to " + staged + " take effect after restart.");
+		}
+		if (live.isEmpty()) {
+			return live;
+		}
+		loadTunables(applied);
+		setProperties(applied);
+		if (registrationScheduler != null) {
+			registrationScheduler.setWindow(getRegistrationWindow());
+			registrationScheduler.setMaxOutstanding(getRegistrationMaxOutstanding());
+			registrationScheduler.setAckTimeout(getRegistrationAckTimeout());
+			registrationScheduler.setMaxBackoff(getRegistrationMaxBackoff());
+		}
+		LOGGER.info("Applied configuration version " + describeVersion(applied) + " with changes to " + live
+				+ ".");
+		return live;
+	}
+
+	/**
+	 * Indicates whether a setting can be changed while running.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	protected boolean isLiveProperty(String name) {
+		return LIVE_PROPERTIES.contains(name) || name.startsWith(IAgentConfiguration.COMMAND_TIMEOUT_PREFIX)
+				|| name.startsWith(IAgentConfiguration.LOG_LEVEL_PREFIX);
+	}
+
+	/**
+	 * Describe the configuration version for logging: a count of applied configurations
+	 * and the 'config.version' label if one is set.
+	 * 
+	 * @param properties
+	 * @return
+	 */
+	protected String describeVersion(Properties properties) {
+		String label = properties.getProperty(IAgentConfiguration.CONFIG_VERSION);
+		return (label != null) ? configVersion + " (" + label + ")" : String.valueOf(configVersion);
+	}
+
+	/**
+	 * Get the registration state shared by all processors configured from these settings,
+	 * creating it on first use.
+	 * 
+	 * @return
+	 */
+	public synchronized RegistrationStore getRegistrationStore() {
+		if (registrationStore == null) {
+			registrationStore = new RegistrationStore(new File(getRegistrationStateFile()));
+		}
+		return registrationStore;
+	}
+
+	/**
+	 * Get the spool for outbound messages undelivered at shutdown, creating it on first
+	 * use.
+	 * 
+	 * @return
+	 */
+	public synchronized OutboundSpool getOutboundSpool() {
+		if (outboundSpool == null) {
+			outboundSpool = new OutboundSpool(new File(getOutboundSpillFile()));
+		}
+		return outboundSpool;
+	}
+
+	/**
+	 * Get the registration scheduler shared by all processors configured from these
+	 * settings, creating it on first use.
+	 * 
+	 * @return
+	 */
+	public synchronized RegistrationScheduler getRegistrationScheduler() {
+		if (registrationScheduler == null) {
+			registrationScheduler = new RegistrationScheduler();
+			registrationScheduler.setWindow(getRegistrationWindow());
+			registrationScheduler.setMaxOutstanding(getRegistrationMaxOutstanding());
+			registrationScheduler.setAckTimeout(getRegistrationAckTimeout());
+			registrationScheduler.setMaxBackoff(getRegistrationMaxBackoff());
+		}
+		return registrationScheduler;
+	}
+
+	/**
+	 * Get the telemetry scheduler shared by all processors configured from these
+	 * settings, creating it on first use.
+	 * 
+	 * @return
+	 */
+	public synchronized TelemetryScheduler getTelemetryScheduler() {
+		if (telemetryScheduler == null) {
+			telemetryScheduler = new TelemetryScheduler(getTelemetryTick());
+		}
+		return telemetryScheduler;
+	}
+
+	/**
+	 * Stop the registration and telemetry schedulers if they were created.
+	 */
+	public synchronized void stopSchedulers() {
+		if (registrationScheduler != null) {
+			registrationScheduler.stop();
+		}
+		if (telemetryScheduler != null) {
+			telemetryScheduler.stop();
+		}
+	}
+
 	/**
 	 * Create an instance of the command processor. FOs * @return
 	 * 
@@ -175,7 +585,55 @@ public class Agent {
 		private String topic;
 
 		/** MQTT connection */
-		private BlockingConnection connection;
+		private volatile BlockingConnection connection;
+
+		/** Records published frames (may be null) */
+		private TrafficRecorder recorder;
+
+		/** Reports dropped connections (null to fail sends instead of retaining them) */
+		private MqttConnectionSupervisor supervisor;
+
+		/** Frames not yet delivered to the broker, oldest first */
+		private final Deque<byte[]> retained = new ArrayDeque<byte[]>();
+
+		/** Allows one thread at a time to send retained frames so they stay in order */
+		private final Object sendRetainedLock = new Object();
+
+		/** Number of frames kept while disconnected */
+		private int retainedMax = DEFAULT_MQTT_RETAINED_MAX;
+
+		/** Number of retained frames dropped because the limit was reached */
+		private long droppedCount;
+
+		/** Guards count of publishes waiting for broker acknowledgement */
+		private final Object inFlightLock = new Object();
+
+		/** Number of publishes waiting for broker acknowledgement */
+		private int inFlight;
+
+		/** Indicates no further messages are accepted */
+		private volatile boolean closed;
+
+		/** Number of messages rejected after close */
+		private final AtomicLong rejectedCount = new AtomicLong();
+
+		/** Number of messages delivered after close */
+		private final AtomicLong flushedCount = new AtomicLong();
+
+		/** Number of messages written to the spool at shutdown */
+		private long spilledCount;
+
+		/** Number of messages neither delivered nor spooled at shutdown */
+		private long unsentCount;
+
+		/** Spool restored messages were read from (null once they are delivered) */
+		private OutboundSpool restoredFrom;
+
+		/** Number of restored messages at the head of the retained messages */
+		private int restoredPending;
+
+		/** Quality of service messages are published with */
+		private volatile QoS qos = QoS.EXACTLY_ONCE;
 
 		public MQTTOutbound(BlockingConnection connection, String topic) {
 			this.connection = connection;
@@ -247,6 +705,48 @@ public class Agent {
 			sendMessage(Command.SEND_DEVICE_ALERT, alert, originator, "alert");
 		}
 
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.agent.ISiteWhereEventDispatcher#createDeviceStream(com.sitewhere
+		 * .device.communication.protobuf.proto.Sitewhere.Model.DeviceStream,
+		 * java.lang.String)
+		 */
+		@Override
+		public void createDeviceStream(Model.DeviceStream stream, String originator)
+				throws SiteWhereAgentException {
+			sendMessage(Command.SEND_DEVICE_STREAM, stream, originator, "device stream");
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.agent.ISiteWhereEventDispatcher#sendDeviceStreamData(com.sitewhere
+		 * .device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData,
+		 * java.lang.String)
+		 */
+		@Override
+		public void sendDeviceStreamData(Model.DeviceStreamData data, String originator)
+				throws SiteWhereAgentException {
+			sendMessage(Command.SEND_DEVICE_STREAM_DATA, data, originator, "device stream data");
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.agent.ISiteWhereEventDispatcher#requestDeviceStreamData(com.sitewhere
+		 * .device.communication.protobuf.proto.Sitewhere.SiteWhere.DeviceStreamDataRequest,
+		 * java.lang.String)
+		 */
+		@Override
+		public void requestDeviceStreamData(SiteWhere.DeviceStreamDataRequest request, String originator)
+				throws SiteWhereAgentException {
+			sendMessage(Command.REQUEST_DEVICE_STREAM_DATA, request, originator, "device stream data request");
+		}
+
 		/**
 		 * Common logic for sending messages via protocol buffers.
 		 * 
@@ -267,7 +767,11 @@ public class Agent {
 				}
 				builder.build().writeDelimitedTo(out);
 				message.writeDelimitedTo(out);
-				connection.publish(getTopic(), out.toByteArray(), QoS.EXACTLY_ONCE, false);
+				byte[] frame = out.toByteArray();
+				if (recorder != null) {
+					recorder.recordOutbound(getTopic(), frame);
+				}
+				publish(frame);
 			} catch (IOException e) {
 				throw new SiteWhereAgentException("Problem encoding " + label + " message.", e);
 			} catch (Exception e) {
@@ -275,47 +779,395 @@ public class Agent {
 			}
 		}
 
-		public BlockingConnection getConnection() {
-			return connection;
+		/**
+		 * Publish a frame. If a supervisor is set, frames that cannot be delivered because
+		 * the connection is down are retained and sent in order once it is restored.
+		 * 
+		 * @param frame
+		 * @throws Exception
+		 */
+		protected void publish(byte[] frame) throws Exception {
+			if (!beginPublish()) {
+				if (rejectedCount.incrementAndGet() == 1) {
+					LOGGER.warning("Outbound messages are no longer accepted during shutdown.");
+				}
+				return;
+			}
+			try {
+				publishOrRetain(frame);
+			} finally {
+				endPublish();
+			}
 		}
 
-		public void setConnection(BlockingConnection connection) {
-			this.connection = connection;
-		}
+		/**
+		 * Publish a frame or, if the connection is down, retain it.
+		 * 
+		 * @param frame
+		 * @throws Exception
+		 */
+		protected void publishOrRetain(byte[] frame) throws Exception {
+			MqttConnectionSupervisor current = getSupervisor();
+			if (current == null) {
+				connection.publish(getTopic(), frame, getQos(), false);
+				delivered();
+				return;
+			}
 
-		public String getTopic() {
-			return topic;
+			// Send frames left over from a reconnect before newer frames.
+			if (current.isConnected() && getRetainedCount() > 0) {
+				BlockingConnection target = connection;
+				try {
+					sendRetained();
+				} catch (Exception e) {
+					LOGGER.log(Level.FINE, "Unable to send retained messages, retaining message until reconnected.", e);
+					retain(frame);
+					current.connectionLost(target);
+					return;
+				}
+			}
+			if (!current.isConnected() || getRetainedCount() > 0) {
+				retain(frame);
+				return;
+			}
+			BlockingConnection target = connection;
+			try {
+				target.publish(getTopic(), frame, getQos(), false);
+				delivered();
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "Unable to publish, retaining message until reconnected.", e);
+				retain(frame);
+				current.connectionLost(target);
+			}
 		}
 
-		public void setTopic(String topic) {
-			this.topic = topic;
+		/**
+		 * Keep a frame for sending after reconnect, dropping the oldest frame when full.
+		 * 
+		 * @param frame
+		 */
+		protected synchronized void retain(byte[] frame) {
+			if (retained.size() >= Math.max(getRetainedMax(), 1)) {
+				pollRetained();
+				droppedCount++;
+				if (Long.bitCount(droppedCount) == 1) {
+					LOGGER.warning("Dropped " + droppedCount + " outbound messages while disconnected.");
+				}
+			}
+			retained.add(frame);
 		}
-	}
-
-	/**
-	 * Handles inbound commands. Monitors two topics for messages. One contains SiteWhere
-	 * system messages and the other contains messages defined in the device
-	 * specification.
-	 * 
-	 * @author Derek
-	 */
-	public static class MQTTInbound implements Runnable {
-
-		/** MQTT connection */
-		private BlockingConnection connection;
 
-		/** SiteWhere inbound MQTT topic */
-		private String sitewhereTopic;
+		/**
+		 * Send retained frames in order over the current connection. Each frame stays at the
+		 * head of the retained frames while it is published, so new frames keep being
+		 * retained behind it, but the outbound monitor is not held during the publish and
+		 * producers are not blocked by a long backlog.
+		 * 
+		 * @throws Exception if a frame could not be sent (remaining frames are kept)
+		 */
+		public void sendRetained() throws Exception {
+			synchronized (sendRetainedLock) {
+				int count = 0;
+				while (true) {
+					byte[] frame;
+					BlockingConnection target;
+					synchronized (this) {
+						frame = retained.peek();
+						target = connection;
+					}
+					if (frame == null) {
+						break;
+					}
+					target.publish(getTopic(), frame, getQos(), false);
+					synchronized (this) {
 
-		/** Command inbound MQTT topic */
-		private String commandTopic;
+						// The frame may have been dropped meanwhile to make room for a newer one.
+						if (retained.peek() == frame) {
+							pollRetained();
+						}
+					}
+					delivered();
+					count++;
+				}
+				if (count > 0) {
+					LOGGER.info("Sent " + count + " outbound messages retained while disconnected.");
+				}
+			}
+		}
 
-		/** Command processor */
-		private IAgentCommandProcessor processor;
+		/**
+		 * Add messages spooled by a previous shutdown to the retained messages. They are
+		 * sent ahead of new messages. The spool is cleared once all of them have left the
+		 * retained messages, so they survive a crash or failed connect until delivered.
+		 * 
+		 * @param spool
+		 * @return number of messages restored
+		 * @throws IOException
+		 */
+		public synchronized int restore(OutboundSpool spool) throws IOException {
+			List<byte[]> frames = spool.read();
+			if (frames.isEmpty()) {
+				return 0;
+			}
+			int limit = Math.max(getRetainedMax(), 1);
+			int skipped = Math.max(frames.size() - limit, 0);
+			if (skipped > 0) {
+				droppedCount += skipped;
+				LOGGER.warning("Dropped " + skipped + " spooled outbound messages above the retained limit.");
+			}
+			List<byte[]> kept = frames.subList(skipped, frames.size());
+			for (int i = kept.size() - 1; i >= 0; i--) {
+				retained.addFirst(kept.get(i));
+			}
+			while (retained.size() > limit) {
+				retained.pollLast();
+				droppedCount++;
+			}
+			restoredFrom = spool;
+			restoredPending = kept.size();
+			LOGGER.info("Restored " + kept.size() + " outbound messages spooled at last shutdown.");
+			return kept.size();
+		}
 
-		/** Event dispatcher */
+		/**
+		 * Remove the oldest retained frame, clearing the spool once the last restored frame
+		 * is gone.
+		 */
+		protected synchronized void pollRetained() {
+			retained.poll();
+			if ((restoredPending > 0) && (--restoredPending == 0)) {
+				try {
+					restoredFrom.clear();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Unable to clear outbound spool.", e);
+				}
+				restoredFrom = null;
+			}
+		}
+
+		/**
+		 * Stop accepting messages. Messages sent afterwards are counted as rejected.
+		 */
+		public void close() {
+			synchronized (inFlightLock) {
+				closed = true;
+			}
+		}
+
+		/**
+		 * Deliver outstanding messages before shutdown. Waits for publishes awaiting broker
+		 * acknowledgement, sends retained messages while connected and writes those still
+		 * undelivered at the deadline to the spool so they are sent on the next start.
+		 * {@link #close()} should be called first so no new messages arrive.
+		 * 
+		 * @param deadline value of nanosecond clock to finish by
+		 * @param spool
+		 * @throws InterruptedException
+		 */
+		public void drain(long deadline, OutboundSpool spool) throws InterruptedException {
+			int pending = awaitInFlight(deadline);
+			synchronized (this) {
+				MqttConnectionSupervisor current = getSupervisor();
+				byte[] frame;
+				while (((frame = retained.peek()) != null) && (current != null) && current.isConnected()
+						&& (System.nanoTime() < deadline)) {
+					BlockingConnection target = connection;
+					try {
+						target.publish(getTopic(), frame, getQos(), false);
+					} catch (Exception e) {
+						LOGGER.log(Level.FINE, "Unable to flush retained message.", e);
+						current.connectionLost(target);
+						break;
+					}
+					pollRetained();
+					delivered();
+				}
+				if (!retained.isEmpty()) {
+					try {
+
+						// The spool still holds restored messages, some of which may be sent.
+						if (restoredPending > 0) {
+							restoredFrom.replace(retained);
+						} else {
+							spool.append(retained);
+						}
+						spilledCount += retained.size();
+					} catch (IOException e) {
+						LOGGER.log(Level.SEVERE, "Unable to spool undelivered outbound messages.", e);
+						unsentCount += retained.size();
+					}
+					retained.clear();
+					restoredPending = 0;
+					restoredFrom = null;
+				}
+				unsentCount += pending;
+			}
+		}
+
+		/**
+		 * Register a publish unless closed.
+		 * 
+		 * @return false if closed
+		 */
+		protected boolean beginPublish() {
+			synchronized (inFlightLock) {
+				if (closed) {
+					return false;
+				}
+				inFlight++;
+				return true;
+			}
+		}
+
+		/**
+		 * Note that a publish completed or failed.
+		 */
+		protected void endPublish() {
+			synchronized (inFlightLock) {
+				inFlight--;
+				inFlightLock.notifyAll();
+			}
+		}
+
+		/**
+		 * Wait until no publishes are awaiting acknowledgement or the deadline passes.
+		 * 
+		 * @param deadline value of nanosecond clock to stop waiting at
+		 * @return number of publishes still awaiting acknowledgement
+		 * @throws InterruptedException
+		 */
+		protected int awaitInFlight(long deadline) throws InterruptedException {
+			synchronized (inFlightLock) {
+				long remaining;
+				while ((inFlight > 0) && ((remaining = deadline - System.nanoTime()) > 0)) {
+					TimeUnit.NANOSECONDS.timedWait(inFlightLock, remaining);
+				}
+				return inFlight;
+			}
+		}
+
+		/**
+		 * Note a successful delivery for startup timing and count it if made after close.
+		 */
+		protected void delivered() {
+			StartupTimer.getShared().published();
+			if (closed) {
+				flushedCount.incrementAndGet();
+			}
+		}
+
+		public QoS getQos() {
+			return qos;
+		}
+
+		public void setQos(QoS qos) {
+			this.qos = qos;
+		}
+
+		public long getRejectedCount() {
+			return rejectedCount.get();
+		}
+
+		public long getFlushedCount() {
+			return flushedCount.get();
+		}
+
+		public synchronized long getSpilledCount() {
+			return spilledCount;
+		}
+
+		/**
+		 * Get number of messages lost: dropped while disconnected, rejected after close or
+		 * neither delivered nor spooled at shutdown.
+		 * 
+		 * @return
+		 */
+		public synchronized long getLostCount() {
+			return droppedCount + getRejectedCount() + unsentCount;
+		}
+
+		public synchronized int getRetainedCount() {
+			return retained.size();
+		}
+
+		public synchronized long getDroppedCount() {
+			return droppedCount;
+		}
+
+		public MqttConnectionSupervisor getSupervisor() {
+			return supervisor;
+		}
+
+		public void setSupervisor(MqttConnectionSupervisor supervisor) {
+			this.supervisor = supervisor;
+		}
+
+		public synchronized int getRetainedMax() {
+			return retainedMax;
+		}
+
+		public synchronized void setRetainedMax(int retainedMax) {
+			this.retainedMax = retainedMax;
+		}
+
+		public TrafficRecorder getRecorder() {
+			return recorder;
+		}
+
+		public void setRecorder(TrafficRecorder recorder) {
+			this.recorder = recorder;
+		}
+
+		public BlockingConnection getConnection() {
+			return connection;
+		}
+
+		public void setConnection(BlockingConnection connection) {
+			this.connection = connection;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public void setTopic(String topic) {
+			this.topic = topic;
+		}
+	}
+
+	/**
+	 * Handles inbound commands. Monitors two topics for messages. One contains SiteWhere
+	 * system messages and the other contains messages defined in the device
+	 * specification.
+	 * 
+	 * @author Derek
+	 */
+	public static class MQTTInbound implements Runnable {
+
+		/** MQTT connection */
+		private volatile BlockingConnection connection;
+
+		/** Replaces the connection when it drops (null to stop processing instead) */
+		private MqttConnectionSupervisor supervisor;
+
+		/** SiteWhere inbound MQTT topic */
+		private String sitewhereTopic;
+
+		/** Command inbound MQTT topic */
+		private String commandTopic;
+
+		/** Command processor */
+		private IAgentCommandProcessor processor;
+
+		/** Event dispatcher */
 		private ISiteWhereEventDispatcher dispatcher;
 
+		/** Maximum number of messages drained per receive cycle */
+		private volatile int drainLimit = DEFAULT_MQTT_INBOUND_DRAIN_LIMIT;
+
+		/** Records received messages (may be null) */
+		private TrafficRecorder recorder;
+
 		public MQTTInbound(BlockingConnection connection, String sitewhereTopic, String commandTopic,
 				IAgentCommandProcessor processor, ISiteWhereEventDispatcher dispatcher) {
 			this.connection = connection;
@@ -327,36 +1179,182 @@ public class Agent {
 
 		@Override
 		public void run() {
+			try {
+				subscribe();
+				LOGGER.info("Started MQTT inbound processing thread.");
+			} catch (Exception e) {
+				LOGGER.log(Level.SEVERE, "Exception while attempting to subscribe to inbound topics.", e);
+				return;
+			}
+			while (true) {
+				BlockingConnection current = connection;
+				try {
+					Message message;
+					try {
+						message = current.receive();
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						if ((getSupervisor() == null) || !reconnect(current)) {
+							throw e;
+						}
+						continue;
+					}
+					message.ack();
+					if (recorder != null) {
+						recorder.recordInbound(message);
+					}
+					if (getDrainLimit() > 1) {
+						List<Message> drained = drain(current, message);
+
+						// Messages drained before an interrupt were acknowledged, so process them first.
+						boolean interrupted = Thread.interrupted();
+						processMessages(drained);
+						if (interrupted) {
+							throw new InterruptedException();
+						}
+					} else {
+						processMessage(message);
+					}
+				} catch (InterruptedException e) {
+					LOGGER.warning("Device event processor interrupted.");
+					return;
+				} catch (Throwable e) {
+					if ((getSupervisor() != null) && getSupervisor().isStopped()) {
+						return;
+					}
+					LOGGER.log(Level.SEVERE, "Exception processing inbound message", e);
+				}
+			}
+		}
 
-			// Subscribe to chosen topic.
+		/**
+		 * Wait for the supervisor to replace a connection that failed.
+		 * 
+		 * @param failed
+		 * @return false if the supervisor was stopped
+		 * @throws InterruptedException
+		 */
+		protected boolean reconnect(BlockingConnection failed) throws InterruptedException {
+			if (getSupervisor().isStopped()) {
+				return false;
+			}
+			getSupervisor().reconnect(failed);
+			return !getSupervisor().isStopped();
+		}
+
+		/**
+		 * Subscribe to the SiteWhere and command topics on the current connection.
+		 * 
+		 * @throws Exception
+		 */
+		public void subscribe() throws Exception {
 			Topic[] topics =
 					{
 							new Topic(getSitewhereTopic(), QoS.AT_LEAST_ONCE),
 							new Topic(getCommandTopic(), QoS.AT_LEAST_ONCE) };
+			connection.subscribe(topics);
+		}
+
+		/**
+		 * Process a single inbound message based on the topic it arrived on.
+		 * 
+		 * @param message
+		 * @throws SiteWhereAgentException
+		 */
+		protected void processMessage(Message message) throws SiteWhereAgentException {
+			if (getSitewhereTopic().equals(message.getTopic())) {
+				Buffer payload = message.getPayloadBuffer();
+				getProcessor().processSiteWhereCommand(payload.data, payload.offset, payload.length,
+						getDispatcher());
+			} else if (getCommandTopic().equals(message.getTopic())) {
+				getProcessor().processSpecificationCommand(message.getPayload(), getDispatcher());
+			} else {
+				LOGGER.warning("Message for unknown topic received: " + message.getTopic());
+			}
+		}
+
+		/**
+		 * Collect every message that is already available (up to the drain limit) without
+		 * blocking, starting with one that was just received. If receiving fails, for
+		 * instance because the connection dropped, collecting stops and the messages already
+		 * acknowledged are returned for processing. The failure shows up again on the next
+		 * blocking receive, which reconnects.
+		 * 
+		 * @param source connection the first message was received on
+		 * @param first
+		 * @return
+		 */
+		protected List<Message> drain(BlockingConnection source, Message first) {
+			List<Message> messages = new ArrayList<Message>();
+			messages.add(first);
+			while (messages.size() < getDrainLimit()) {
+				try {
+					Message message = source.receive(0, TimeUnit.MILLISECONDS);
+					if (message == null) {
+						break;
+					}
+					message.ack();
+					messages.add(message);
+					if (recorder != null) {
+						recorder.recordInbound(message);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (Exception e) {
+					LOGGER.log(Level.FINE, "Stopped draining inbound messages.", e);
+					break;
+				}
+			}
+			return messages;
+		}
+
+		/**
+		 * Process a group of drained messages in arrival order. Consecutive specification
+		 * commands are handed to the processor as a batch if it supports batching.
+		 * 
+		 * @param messages
+		 */
+		protected void processMessages(List<Message> messages) {
+			List<byte[]> commands = new ArrayList<byte[]>();
+			for (Message message : messages) {
+				if (getCommandTopic().equals(message.getTopic())) {
+					commands.add(message.getPayload());
+					continue;
+				}
+				processCommands(commands);
+				try {
+					processMessage(message);
+				} catch (Throwable e) {
+					LOGGER.log(Level.SEVERE, "Exception processing inbound message", e);
+				}
+			}
+			processCommands(commands);
+		}
+
+		/**
+		 * Process pending specification commands, then clear the list.
+		 * 
+		 * @param commands
+		 */
+		protected void processCommands(List<byte[]> commands) {
+			if (commands.isEmpty()) {
+				return;
+			}
 			try {
-				connection.subscribe(topics);
-				LOGGER.info("Started MQTT inbound processing thread.");
-				while (true) {
-					try {
-						Message message = connection.receive();
-						message.ack();
-						if (getSitewhereTopic().equals(message.getTopic())) {
-							getProcessor().processSiteWhereCommand(message.getPayload(), getDispatcher());
-						} else if (getCommandTopic().equals(message.getTopic())) {
-							getProcessor().processSpecificationCommand(message.getPayload(), getDispatcher());
-						} else {
-							LOGGER.warning("Message for unknown topic received: " + message.getTopic());
-						}
-					} catch (InterruptedException e) {
-						LOGGER.warning("Device event processor interrupted.");
-						return;
-					} catch (Throwable e) {
-						LOGGER.log(Level.SEVERE, "Exception processing inbound message", e);
+				if ((commands.size() > 1) && (getProcessor() instanceof IBatchCommandProcessor)) {
+					((IBatchCommandProcessor) getProcessor()).processSpecificationCommands(commands,
+							getDispatcher());
+				} else {
+					for (byte[] command : commands) {
+						getProcessor().processSpecificationCommand(command, getDispatcher());
 					}
 				}
-			} catch (Exception e) {
-				LOGGER.log(Level.SEVERE, "Exception while attempting to subscribe to inbound topics.", e);
+			} catch (Throwable e) {
+				LOGGER.log(Level.SEVERE, "Exception processing inbound commands", e);
 			}
+			commands.clear();
 		}
 
 		public BlockingConnection getConnection() {
@@ -398,6 +1396,30 @@ public class Agent {
 		public void setDispatcher(ISiteWhereEventDispatcher dispatcher) {
 			this.dispatcher = dispatcher;
 		}
+
+		public int getDrainLimit() {
+			return drainLimit;
+		}
+
+		public void setDrainLimit(int drainLimit) {
+			this.drainLimit = drainLimit;
+		}
+
+		public TrafficRecorder getRecorder() {
+			return recorder;
+		}
+
+		public void setRecorder(TrafficRecorder recorder) {
+			this.recorder = recorder;
+		}
+
+		public MqttConnectionSupervisor getSupervisor() {
+			return supervisor;
+		}
+
+		public void setSupervisor(MqttConnectionSupervisor supervisor) {
+			this.supervisor = supervisor;
+		}
 	}
 
 	/**
@@ -408,12 +1430,35 @@ public class Agent {
 	public class ShutdownHandler extends Thread {
 		@Override
 		public void run() {
-			if (connection != null) {
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(getShutdownTimeout());
+			stopSchedulers();
+
+			// Stop accepting events, then deliver or spool those outstanding.
+			if (outbound != null) {
+				outbound.close();
 				try {
-					connection.disconnect();
-					LOGGER.info("Disconnected from MQTT broker.");
-				} catch (Exception e) {
-					LOGGER.log(Level.WARNING, "Exception disconnecting from MQTT broker.", e);
+					outbound.drain(deadline, getOutboundSpool());
+				} catch (InterruptedException e) {
+					LOGGER.warning("Interrupted while delivering outbound messages.");
+				}
+				LOGGER.info("Shutdown flushed " + outbound.getFlushedCount() + ", spooled "
+						+ outbound.getSpilledCount() + " and lost " + outbound.getLostCount()
+						+ " outbound messages in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+						+ " ms.");
+			}
+			if (supervisor != null) {
+				supervisor.stop();
+				LOGGER.info("Disconnected from MQTT broker.");
+			}
+			if (recorder != null) {
+				recorder.close();
+			}
+			if (registrationStore != null) {
+				try {
+					registrationStore.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Unable to close registration state file.", e);
 				}
 			}
 		}
@@ -450,6 +1495,36 @@ public class Agent {
 		}
 		LOGGER.info("Using configured device specification token: " + getSpecificationToken());
 
+		// Validate inbound SiteWhere topic.
+		setInboundSiteWhereTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_SITEWHERE_TOPIC));
+		if (getInboundSiteWhereTopic() == null) {
+			String in = calculateInboundSiteWhereTopic();
+			LOGGER.warning("Using default inbound SiteWhere MQTT topic: " + in);
+			setInboundSiteWhereTopic(in);
+		}
+
+		// Validate inbound command topic.
+		setInboundCommandTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_COMMAND_TOPIC));
+		if (getInboundCommandTopic() == null) {
+			String in = calculateInboundCommandTopic();
+			LOGGER.warning("Using default inbound command MQTT topic: " + in);
+			setInboundCommandTopic(in);
+		}
+
+		// Load traffic recording location.
+		setRecordingFile(properties.getProperty(IAgentConfiguration.RECORDING_FILE));
+
+		return loadSettings(properties);
+	}
+
+	/**
+	 * Validates the configuration shared by all devices: MQTT connection settings and
+	 * settings applied to command processors.
+	 * 
+	 * @param properties
+	 * @return
+	 */
+	public boolean loadSettings(Properties properties) {
 		// Validate MQTT hostname.
 		setMqttHostname(properties.getProperty(IAgentConfiguration.MQTT_HOSTNAME));
 		if (getMqttHostname() == null) {
@@ -478,24 +1553,313 @@ public class Agent {
 			setOutboundSiteWhereTopic(DEFAULT_MQTT_OUTBOUND_SITEWHERE);
 		}
 
-		// Validate inbound SiteWhere topic.
-		setInboundSiteWhereTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_SITEWHERE_TOPIC));
-		if (getInboundSiteWhereTopic() == null) {
-			String in = calculateInboundSiteWhereTopic();
-			LOGGER.warning("Using default inbound SiteWhere MQTT topic: " + in);
-			setInboundSiteWhereTopic(in);
+		// Load session setting.
+		String strClean = properties.getProperty(IAgentConfiguration.MQTT_CLEAN_SESSION);
+		if (strClean != null) {
+			setCleanSession(Boolean.parseBoolean(strClean.trim()));
 		}
 
-		// Validate inbound command topic.
-		setInboundCommandTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_COMMAND_TOPIC));
-		if (getInboundCommandTopic() == null) {
-			String in = calculateInboundCommandTopic();
-			LOGGER.warning("Using default inbound command MQTT topic: " + in);
-			setInboundCommandTopic(in);
+		// Load incremental upload index location.
+		String strIndex = properties.getProperty(IAgentConfiguration.STREAM_UPLOAD_INDEX);
+		if (strIndex != null) {
+			setStreamIndexFile(strIndex);
+		}
+
+		// Validate command result cache settings.
+		String strResultSize = properties.getProperty(IAgentConfiguration.COMMAND_RESULT_CACHE_SIZE);
+		if (strResultSize != null) {
+			try {
+				setResultCacheSize(Integer.parseInt(strResultSize));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric command result cache size specified, cache disabled.");
+			}
+		}
+		String strResultTtl = properties.getProperty(IAgentConfiguration.COMMAND_RESULT_CACHE_TTL);
+		if (strResultTtl != null) {
+			try {
+				setResultCacheTtl(Long.parseLong(strResultTtl));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric command result cache expiration specified, using: "
+						+ CommandResultCache.DEFAULT_TTL);
+			}
+		}
+
+		// Load registration state location.
+		String regState = properties.getProperty(IAgentConfiguration.REGISTRATION_STATE_FILE);
+		if (regState != null) {
+			setRegistrationStateFile(regState);
+		}
+
+		// Load outbound spool location.
+		String spillFile = properties.getProperty(IAgentConfiguration.OUTBOUND_SPILL_FILE);
+		if (spillFile != null) {
+			setOutboundSpillFile(spillFile);
 		}
+
+		// Validate telemetry tick.
+		String strTick = properties.getProperty(IAgentConfiguration.TELEMETRY_TICK);
+		if (strTick != null) {
+			try {
+				long tick = Long.parseLong(strTick);
+				if (tick < TelemetryScheduler.MIN_TICK) {
+					LOGGER.warning("Telemetry tick must be at least " + TelemetryScheduler.MIN_TICK + " ms, using: "
+							+ TelemetryScheduler.DEFAULT_TICK);
+				} else {
+					setTelemetryTick(tick);
+				}
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric telemetry tick specified, using: " + TelemetryScheduler.DEFAULT_TICK);
+			}
+		}
+
+		// Remember settings so changes can be detected on reload.
+		setProperties(properties);
+		LOGGER.info("Using configuration version " + describeVersion(properties) + ".");
+
+		loadTunables(properties);
 		return true;
 	}
 
+	/**
+	 * Load settings that can be changed while the agent is running. Called at startup
+	 * and each time the configuration is reloaded.
+	 * 
+	 * @param properties
+	 */
+	protected void loadTunables(Properties properties) {
+		// Validate inbound drain limit.
+		String strDrain = properties.getProperty(IAgentConfiguration.MQTT_INBOUND_DRAIN_LIMIT);
+		if (strDrain != null) {
+			try {
+				setInboundDrainLimit(Integer.parseInt(strDrain));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric inbound drain limit specified, using: "
+						+ DEFAULT_MQTT_INBOUND_DRAIN_LIMIT);
+			}
+		}
+
+		// Validate reconnect and retention settings.
+		String strReconnect = properties.getProperty(IAgentConfiguration.MQTT_RECONNECT_DELAY);
+		if (strReconnect != null) {
+			try {
+				setReconnectDelay(Long.parseLong(strReconnect));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric MQTT reconnect delay specified, using: "
+						+ MqttConnectionSupervisor.DEFAULT_INITIAL_DELAY);
+			}
+		}
+		String strReconnectMax = properties.getProperty(IAgentConfiguration.MQTT_RECONNECT_MAX_DELAY);
+		if (strReconnectMax != null) {
+			try {
+				setReconnectMaxDelay(Long.parseLong(strReconnectMax));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric MQTT maximum reconnect delay specified, using: "
+						+ MqttConnectionSupervisor.DEFAULT_MAX_DELAY);
+			}
+		}
+		String strRetained = properties.getProperty(IAgentConfiguration.MQTT_RETAINED_MAX);
+		if (strRetained != null) {
+			try {
+				setRetainedMax(Integer.parseInt(strRetained));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric MQTT retained message limit specified, using: "
+						+ DEFAULT_MQTT_RETAINED_MAX);
+			}
+		}
+
+		// Validate outbound quality of service.
+		String strQos = properties.getProperty(IAgentConfiguration.MQTT_OUTBOUND_QOS);
+		if (strQos != null) {
+			try {
+				setOutboundQos(QoS.values()[Integer.parseInt(strQos.trim())]);
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric MQTT outbound QoS specified, using: " + getOutboundQos().ordinal());
+			} catch (ArrayIndexOutOfBoundsException e) {
+				LOGGER.warning("MQTT outbound QoS must be 0, 1 or 2, using: " + getOutboundQos().ordinal());
+			}
+		}
+
+		// Validate duplicate command cache size.
+		String strDuplicates = properties.getProperty(IAgentConfiguration.COMMAND_DUPLICATE_CACHE_SIZE);
+		if (strDuplicates != null) {
+			try {
+				setDuplicateCacheSize(Integer.parseInt(strDuplicates));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric duplicate command cache size specified, using: "
+						+ DuplicateCommandFilter.DEFAULT_CAPACITY);
+			}
+		}
+
+		// Load extra classes allowed in hybrid command payloads, replacing those loaded before.
+		List<String> allowedClasses = new ArrayList<String>();
+		String strAllowed = properties.getProperty(IAgentConfiguration.COMMAND_HYBRID_ALLOWED_CLASSES);
+		if (strAllowed != null) {
+			for (String allowed : strAllowed.split(",")) {
+				if ((allowed.trim().length() > 0) && !allowedClasses.contains(allowed.trim())) {
+					allowedClasses.add(allowed.trim());
+				}
+			}
+		}
+		setHybridAllowedClasses(allowedClasses);
+
+		// Validate hybrid command payload limit.
+		String strMaxBytes = properties.getProperty(IAgentConfiguration.COMMAND_HYBRID_MAX_BYTES);
+		if (strMaxBytes != null) {
+			try {
+				setHybridMaxBytes(Integer.parseInt(strMaxBytes));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric hybrid command payload limit specified, using: "
+						+ HybridCommandDecoder.DEFAULT_MAX_BYTES);
+			}
+		}
+
+		// Load default and per-command execution timeouts.
+		for (String name : properties.stringPropertyNames()) {
+			if (!name.startsWith(IAgentConfiguration.COMMAND_TIMEOUT_PREFIX)) {
+				continue;
+			}
+			try {
+				long timeout = Long.parseLong(properties.getProperty(name));
+				if (name.equals(IAgentConfiguration.COMMAND_TIMEOUT_DEFAULT)) {
+					setDefaultCommandTimeout(timeout);
+				} else {
+					getCommandTimeouts().put(name.substring(IAgentConfiguration.COMMAND_TIMEOUT_PREFIX.length()),
+							timeout);
+				}
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric command timeout specified for '" + name + "', ignoring.");
+			}
+		}
+
+		// Validate device stream upload settings.
+		String strChunkSize = properties.getProperty(IAgentConfiguration.STREAM_UPLOAD_CHUNK_SIZE);
+		if (strChunkSize != null) {
+			try {
+				int chunkSize = Integer.parseInt(strChunkSize);
+				if (chunkSize <= 0) {
+					LOGGER.warning("Stream upload chunk size must be positive, using: "
+							+ DeviceStreamUploader.DEFAULT_CHUNK_SIZE);
+					setStreamChunkSize(DeviceStreamUploader.DEFAULT_CHUNK_SIZE);
+				} else {
+					setStreamChunkSize(chunkSize);
+				}
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric stream upload chunk size specified, using: "
+						+ DeviceStreamUploader.DEFAULT_CHUNK_SIZE);
+			}
+		}
+		String strWindow = properties.getProperty(IAgentConfiguration.STREAM_UPLOAD_WINDOW);
+		if (strWindow != null) {
+			try {
+				setStreamWindow(Integer.parseInt(strWindow));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric stream upload window specified, using: "
+						+ DeviceStreamUploader.DEFAULT_WINDOW);
+			}
+		}
+
+		// Validate device stream fetch settings.
+		String strFetchWindow = properties.getProperty(IAgentConfiguration.STREAM_FETCH_WINDOW);
+		if (strFetchWindow != null) {
+			try {
+				setStreamFetchWindow(Integer.parseInt(strFetchWindow));
+			} catch (NumberFormatException e) {
+				LOGGER.warning(
+						"Non-numeric stream fetch window specified, using: " + DeviceStreamFetcher.DEFAULT_WINDOW);
+			}
+		}
+		String strFetchTimeout = properties.getProperty(IAgentConfiguration.STREAM_FETCH_TIMEOUT);
+		if (strFetchTimeout != null) {
+			try {
+				setStreamFetchTimeout(Long.parseLong(strFetchTimeout));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric stream fetch timeout specified, using: "
+						+ DeviceStreamFetcher.DEFAULT_REQUEST_TIMEOUT);
+			}
+		}
+
+		// Validate registration pacing settings.
+		String strRegWindow = properties.getProperty(IAgentConfiguration.REGISTRATION_WINDOW);
+		if (strRegWindow != null) {
+			try {
+				setRegistrationWindow(Long.parseLong(strRegWindow));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric registration window specified, using: "
+						+ RegistrationScheduler.DEFAULT_WINDOW);
+			}
+		}
+		String strRegOutstanding = properties.getProperty(IAgentConfiguration.REGISTRATION_MAX_OUTSTANDING);
+		if (strRegOutstanding != null) {
+			try {
+				setRegistrationMaxOutstanding(Integer.parseInt(strRegOutstanding));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric registration outstanding limit specified, using: "
+						+ RegistrationScheduler.DEFAULT_MAX_OUTSTANDING);
+			}
+		}
+		String strRegTimeout = properties.getProperty(IAgentConfiguration.REGISTRATION_ACK_TIMEOUT);
+		if (strRegTimeout != null) {
+			try {
+				setRegistrationAckTimeout(Long.parseLong(strRegTimeout));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric registration acknowledgement timeout specified, using: "
+						+ RegistrationScheduler.DEFAULT_ACK_TIMEOUT);
+			}
+		}
+		String strRegBackoff = properties.getProperty(IAgentConfiguration.REGISTRATION_MAX_BACKOFF);
+		if (strRegBackoff != null) {
+			try {
+				setRegistrationMaxBackoff(Long.parseLong(strRegBackoff));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric registration backoff limit specified, using: "
+						+ RegistrationScheduler.DEFAULT_MAX_BACKOFF);
+			}
+		}
+
+		// Load shutdown settings.
+		String strShutdownTimeout = properties.getProperty(IAgentConfiguration.SHUTDOWN_TIMEOUT);
+		if (strShutdownTimeout != null) {
+			try {
+				setShutdownTimeout(Long.parseLong(strShutdownTimeout));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric shutdown timeout specified, using: " + DEFAULT_SHUTDOWN_TIMEOUT);
+			}
+		}
+
+		// Apply logger levels.
+		for (String name : properties.stringPropertyNames()) {
+			if (!name.startsWith(IAgentConfiguration.LOG_LEVEL_PREFIX)) {
+				continue;
+			}
+			String loggerName = name.substring(IAgentConfiguration.LOG_LEVEL_PREFIX.length());
+			try {
+				Level level = Level.parse(properties.getProperty(name).trim());
+				Logger logger = Logger.getLogger(loggerName);
+				logger.setLevel(level);
+
+				// Loggers are only weakly referenced by the log manager.
+				configuredLoggers.put(loggerName, logger);
+			} catch (IllegalArgumentException e) {
+				LOGGER.warning("Invalid log level specified for '" + name + "', ignoring.");
+			}
+		}
+	}
+
+	/**
+	 * Derive a client id from the hardware id so the broker resumes the same session
+	 * after a restart. Long hardware ids are shortened with a hash to fit MQTT 3.1 limits.
+	 * 
+	 * @return
+	 */
+	protected String calculateClientId() {
+		String clientId = "sw-" + getHardwareId();
+		if (clientId.length() > MAX_CLIENT_ID_LENGTH) {
+			clientId = "sw-" + getHardwareId().substring(0, MAX_CLIENT_ID_LENGTH - 12) + "-"
+					+ String.format("%08x", getHardwareId().hashCode());
+		}
+		return clientId;
+	}
+
 	protected String calculateInboundSiteWhereTopic() {
 		return "SiteWhere/system/" + getHardwareId();
 	}
@@ -504,6 +1868,14 @@ public class Agent {
 		return "SiteWhere/commands/" + getHardwareId();
 	}
 
+	public String getRecordingFile() {
+		return recordingFile;
+	}
+
+	public void setRecordingFile(String recordingFile) {
+		this.recordingFile = recordingFile;
+	}
+
 	public String getCommandProcessorClassname() {
 		return commandProcessorClassname;
 	}
@@ -567,4 +1939,234 @@ public class Agent {
 	public void setInboundCommandTopic(String inboundCommandTopic) {
 		this.inboundCommandTopic = inboundCommandTopic;
 	}
+
+	public int getInboundDrainLimit() {
+		return inboundDrainLimit;
+	}
+
+	public void setInboundDrainLimit(int inboundDrainLimit) {
+		this.inboundDrainLimit = inboundDrainLimit;
+	}
+
+	public boolean isCleanSession() {
+		return cleanSession;
+	}
+
+	public void setCleanSession(boolean cleanSession) {
+		this.cleanSession = cleanSession;
+	}
+
+	public long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	public void setReconnectDelay(long reconnectDelay) {
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	public void setReconnectMaxDelay(long reconnectMaxDelay) {
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+
+	public int getRetainedMax() {
+		return retainedMax;
+	}
+
+	public void setRetainedMax(int retainedMax) {
+		this.retainedMax = retainedMax;
+	}
+
+	public MqttConnectionSupervisor getSupervisor() {
+		return supervisor;
+	}
+
+	public int getDuplicateCacheSize() {
+		return duplicateCacheSize;
+	}
+
+	public void setDuplicateCacheSize(int duplicateCacheSize) {
+		this.duplicateCacheSize = duplicateCacheSize;
+	}
+
+	public List<String> getHybridAllowedClasses() {
+		return hybridAllowedClasses;
+	}
+
+	public void setHybridAllowedClasses(List<String> hybridAllowedClasses) {
+		this.hybridAllowedClasses = hybridAllowedClasses;
+	}
+
+	public int getHybridMaxBytes() {
+		return hybridMaxBytes;
+	}
+
+	public void setHybridMaxBytes(int hybridMaxBytes) {
+		this.hybridMaxBytes = hybridMaxBytes;
+	}
+
+	public int getStreamChunkSize() {
+		return streamChunkSize;
+	}
+
+	public void setStreamChunkSize(int streamChunkSize) {
+		this.streamChunkSize = streamChunkSize;
+	}
+
+	public int getStreamWindow() {
+		return streamWindow;
+	}
+
+	public void setStreamWindow(int streamWindow) {
+		this.streamWindow = streamWindow;
+	}
+
+	public String getStreamIndexFile() {
+		return streamIndexFile;
+	}
+
+	public void setStreamIndexFile(String streamIndexFile) {
+		this.streamIndexFile = streamIndexFile;
+	}
+
+	public int getStreamFetchWindow() {
+		return streamFetchWindow;
+	}
+
+	public void setStreamFetchWindow(int streamFetchWindow) {
+		this.streamFetchWindow = streamFetchWindow;
+	}
+
+	public long getStreamFetchTimeout() {
+		return streamFetchTimeout;
+	}
+
+	public void setStreamFetchTimeout(long streamFetchTimeout) {
+		this.streamFetchTimeout = streamFetchTimeout;
+	}
+
+	public int getResultCacheSize() {
+		return resultCacheSize;
+	}
+
+	public void setResultCacheSize(int resultCacheSize) {
+		this.resultCacheSize = resultCacheSize;
+	}
+
+	public long getResultCacheTtl() {
+		return resultCacheTtl;
+	}
+
+	public void setResultCacheTtl(long resultCacheTtl) {
+		this.resultCacheTtl = resultCacheTtl;
+	}
+
+	public long getDefaultCommandTimeout() {
+		return defaultCommandTimeout;
+	}
+
+	public void setDefaultCommandTimeout(long defaultCommandTimeout) {
+		this.defaultCommandTimeout = defaultCommandTimeout;
+	}
+
+	public Map<String, Long> getCommandTimeouts() {
+		return commandTimeouts;
+	}
+
+	public void setCommandTimeouts(Map<String, Long> commandTimeouts) {
+		this.commandTimeouts = commandTimeouts;
+	}
+
+	public Properties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Store a copy of the settings in effect and advance the configuration version.
+	 * 
+	 * @param properties
+	 */
+	protected void setProperties(Properties properties) {
+		this.properties = (Properties) properties.clone();
+		configVersion++;
+	}
+
+	public int getConfigVersion() {
+		return configVersion;
+	}
+
+	public QoS getOutboundQos() {
+		return outboundQos;
+	}
+
+	public void setOutboundQos(QoS outboundQos) {
+		this.outboundQos = outboundQos;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public String getOutboundSpillFile() {
+		return outboundSpillFile;
+	}
+
+	public void setOutboundSpillFile(String outboundSpillFile) {
+		this.outboundSpillFile = outboundSpillFile;
+	}
+
+	public long getTelemetryTick() {
+		return telemetryTick;
+	}
+
+	public void setTelemetryTick(long telemetryTick) {
+		this.telemetryTick = telemetryTick;
+	}
+
+	public String getRegistrationStateFile() {
+		return registrationStateFile;
+	}
+
+	public void setRegistrationStateFile(String registrationStateFile) {
+		this.registrationStateFile = registrationStateFile;
+	}
+
+	public long getRegistrationWindow() {
+		return registrationWindow;
+	}
+
+	public void setRegistrationWindow(long registrationWindow) {
+		this.registrationWindow = registrationWindow;
+	}
+
+	public int getRegistrationMaxOutstanding() {
+		return registrationMaxOutstanding;
+	}
+
+	public void setRegistrationMaxOutstanding(int registrationMaxOutstanding) {
+		this.registrationMaxOutstanding = registrationMaxOutstanding;
+	}
+
+	public long getRegistrationAckTimeout() {
+		return registrationAckTimeout;
+	}
+
+	public void setRegistrationAckTimeout(long registrationAckTimeout) {
+		this.registrationAckTimeout = registrationAckTimeout;
+	}
+
+	public long getRegistrationMaxBackoff() {
+		return registrationMaxBackoff;
+	}
+
+	public void setRegistrationMaxBackoff(long registrationMaxBackoff) {
+		this.registrationMaxBackoff = registrationMaxBackoff;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a command processor method as the handler for a specification command. At
+ * compile time a dispatcher is generated for each processor class with annotated methods
+ * so that commands are invoked directly rather than looked up via reflection. Handler
+ * parameters must use boxed types (as delivered in the command payload) and may end with
+ * an {@link com.sitewhere.spi.device.event.IDeviceEventOriginator} parameter.
+ * 
+ * @author Derek
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface AgentCommand {
+
+	/**
+	 * Command name as declared in the device specification. Defaults to the method name.
+	 * 
+	 * @return
+	 */
+	String value() default "";
+}
\ No newline at end of file
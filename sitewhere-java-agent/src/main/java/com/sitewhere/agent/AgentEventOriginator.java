@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Originator for commands whose payload only carries the originating event id.
+ * 
+ * @author Derek
+ */
+public class AgentEventOriginator implements IDeviceEventOriginator {
+
+	private static final long serialVersionUID = -2386517469512204437L;
+
+	/** Originating event id */
+	private String eventId;
+
+	public AgentEventOriginator(String eventId) {
+		this.eventId = eventId;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.spi.device.event.IDeviceEventOriginator#getEventId()
+	 */
+	@Override
+	public String getEventId() {
+		return eventId;
+	}
+
+	public void setEventId(String eventId) {
+		this.eventId = eventId;
+	}
+}
\ No newline at end of file
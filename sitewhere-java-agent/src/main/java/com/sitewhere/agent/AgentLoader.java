@@ -7,12 +7,17 @@
  */
 package com.sitewhere.agent;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.sitewhere.agent.host.AgentHost;
+import com.sitewhere.agent.loadgen.LoadGenerator;
+import com.sitewhere.agent.recording.TrafficReplay;
+
 /**
  * Bootstraps the Java agent.
  * 
@@ -30,11 +35,13 @@ public class AgentLoader {
 	private static Agent agent = new Agent();
 
 	/**
-	 * Start the agent loader.
+	 * Start the agent loader. The first argument names the configuration file and an
+	 * optional second argument overrides the run mode.
 	 * 
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		StartupTimer.getShared().begin(StartupTimer.CONFIG_LOAD);
 		LOGGER.info("SiteWhere Java agent starting...");
 
 		String propsFile = null;
@@ -47,11 +54,10 @@ public class AgentLoader {
 		}
 
 		FileInputStream in = null;
+		final Properties props = new Properties();
 		try {
 			in = new FileInputStream(propsFile);
-			Properties props = new Properties();
 			props.load(in);
-			agent.load(props);
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, "Unable to load configuration from specified file.", e);
 		} finally {
@@ -63,10 +69,112 @@ public class AgentLoader {
 			}
 		}
 
+		if (args.length > 1) {
+			props.setProperty(IAgentConfiguration.AGENT_MODE, args[1]);
+		}
+		StartupTimer.getShared().end();
+
+		// Run once against an in-process broker to record the classes used at startup.
+		if (IAgentConfiguration.AGENT_MODE_TRAIN.equals(props.getProperty(IAgentConfiguration.AGENT_MODE))) {
+			StartupTraining training = new StartupTraining();
+			if (!training.load(props)) {
+				return;
+			}
+			int status = 0;
+			try {
+				training.run();
+			} catch (SiteWhereAgentException e) {
+				LOGGER.log(Level.SEVERE, "Unable to run startup training.", e);
+				status = 1;
+			}
+
+			// Exit through the shutdown hooks so shutdown classes are recorded too.
+			System.exit(status);
+		}
+
+		// Drive virtual devices instead of running the agent if requested.
+		if (IAgentConfiguration.AGENT_MODE_LOADGEN.equals(props.getProperty(IAgentConfiguration.AGENT_MODE))) {
+			LoadGenerator generator = new LoadGenerator();
+			if (!generator.load(props)) {
+				return;
+			}
+			try {
+				generator.run();
+			} catch (SiteWhereAgentException e) {
+				LOGGER.log(Level.SEVERE, "Unable to run load generator.", e);
+			}
+			return;
+		}
+
+		// Replay recorded traffic if requested.
+		if (IAgentConfiguration.AGENT_MODE_REPLAY.equals(props.getProperty(IAgentConfiguration.AGENT_MODE))) {
+			TrafficReplay replay = new TrafficReplay();
+			if (!replay.load(props)) {
+				return;
+			}
+			try {
+				replay.run();
+			} catch (SiteWhereAgentException e) {
+				LOGGER.log(Level.SEVERE, "Unable to replay recording.", e);
+			}
+			return;
+		}
+
+		// Run many devices in one process if a device list is configured.
+		if (props.getProperty(IAgentConfiguration.HOST_DEVICES_FILE) != null) {
+			final AgentHost host = new AgentHost();
+			if (!host.load(props)) {
+				return;
+			}
+			try {
+				host.start();
+			} catch (SiteWhereAgentException e) {
+				LOGGER.log(Level.SEVERE, "Unable to start agent host.", e);
+				return;
+			}
+			watchConfiguration(propsFile, props, new ConfigurationWatcher.Listener() {
+
+				@Override
+				public void configurationChanged(Properties properties) {
+					host.reload(properties);
+				}
+			});
+			return;
+		}
+
+		agent.load(props);
 		try {
 			agent.start();
 		} catch (SiteWhereAgentException e) {
 			LOGGER.log(Level.SEVERE, "Unable to start agent.", e);
+			return;
+		}
+		watchConfiguration(propsFile, props, new ConfigurationWatcher.Listener() {
+
+			@Override
+			public void configurationChanged(Properties properties) {
+				agent.reload(properties);
+			}
+		});
+	}
+
+	/**
+	 * Watch the configuration file and apply changes to the running agent unless
+	 * disabled in the configuration.
+	 * 
+	 * @param propsFile
+	 * @param props
+	 * @param listener
+	 */
+	protected static void watchConfiguration(String propsFile, Properties props,
+			ConfigurationWatcher.Listener listener) {
+		if (!Boolean.parseBoolean(props.getProperty(IAgentConfiguration.CONFIG_WATCH, "true").trim())) {
+			return;
+		}
+		try {
+			new ConfigurationWatcher(new File(propsFile), props, listener).start();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to watch configuration file for changes.", e);
 		}
 	}
 }
\ No newline at end of file
@@ -7,16 +7,40 @@
  */
 package com.sitewhere.agent;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
 import java.io.StreamCorruptedException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.sitewhere.agent.stream.DeviceStreamDownloadManager;
+import com.sitewhere.agent.stream.DeviceStreamFetcher;
+import com.sitewhere.agent.stream.DeviceStreamUploader;
+import com.sitewhere.agent.stream.IDeviceStreamDownloadListener;
+import com.sitewhere.agent.stream.IncrementalStreamUploader;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAck;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.RegisterDevice;
@@ -30,11 +54,33 @@ import com.sitewhere.spi.device.event.IDeviceEventOriginator;
  * 
  * @author Derek
  */
-public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
+public abstract class BaseCommandProcessor implements IBatchCommandProcessor {
 
 	/** Static logger instance */
 	private static final Logger LOGGER = Logger.getLogger(BaseCommandProcessor.class.getName());
 
+	/** Maximum number of threads running commands that have a timeout */
+	public static final int MAX_TIMED_COMMAND_THREADS = 64;
+
+	/**
+	 * Runs commands that have a timeout so that overrunning handlers can be abandoned.
+	 * Abandoned handlers that ignore the interrupt keep their thread, so the pool is bounded
+	 * and commands are rejected once every thread is busy.
+	 */
+	private static final ExecutorService TIMED_COMMAND_EXECUTOR = new ThreadPoolExecutor(0,
+			MAX_TIMED_COMMAND_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+				/** Counter for thread names */
+				private final AtomicInteger counter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "SiteWhere command " + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new ThreadPoolExecutor.AbortPolicy());
+
 	/** Hardware id */
 	private String hardwareId;
 
@@ -44,6 +90,57 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 	/** SiteWhere event dispatcher */
 	private ISiteWhereEventDispatcher eventDispatcher;
 
+	/** Suppresses commands redelivered by the broker */
+	private DuplicateCommandFilter duplicateFilter = new DuplicateCommandFilter();
+
+	/** Decodes hybrid format command payloads */
+	private final HybridCommandDecoder hybridDecoder = new HybridCommandDecoder(getClass().getClassLoader());
+
+	/** Resolved command handler methods */
+	private final CommandDispatchCache dispatchCache = new CommandDispatchCache(this);
+
+	/** Indicates a subclass overrides the whole-message variant of system command processing */
+	private final boolean wholeMessageOverridden = overridesWholeMessageProcessing();
+
+	/** Dispatcher generated from {@link AgentCommand} annotations (if available) */
+	private IAgentCommandDispatcher<IAgentCommandProcessor> generatedDispatcher;
+
+	/** Indicates whether generated dispatcher lookup has been performed */
+	private volatile boolean generatedDispatcherResolved;
+
+	/** Device stream downloads in progress */
+	private final DeviceStreamDownloadManager streamDownloads = new DeviceStreamDownloadManager();
+
+	/** Sends only changed chunks of files (created on first use if not set) */
+	private IncrementalStreamUploader incrementalUploads;
+
+	/** Requests device stream chunks from SiteWhere */
+	private final DeviceStreamFetcher streamFetcher = new DeviceStreamFetcher(streamDownloads);
+
+	/** Sends files as device streams */
+	private DeviceStreamUploader streamUploads = new DeviceStreamUploader();
+
+	/** Cache of command results for replay on retry (null if disabled) */
+	private volatile CommandResultCache resultCache;
+
+	/** Timeout in milliseconds for commands without a specific timeout (0 for none) */
+	private volatile long defaultCommandTimeout;
+
+	/** Timeouts in milliseconds by command name */
+	private final ConcurrentMap<String, Long> commandTimeouts = new ConcurrentHashMap<String, Long>();
+
+	/** Paces registrations and resends unacknowledged ones (null to send at once) */
+	private volatile RegistrationScheduler registrationScheduler;
+
+	/** Records acknowledged registrations for warm restarts (null to disable) */
+	private volatile RegistrationStore registrationStore;
+
+	/** Runs periodic telemetry collectors (set by the agent) */
+	private TelemetryScheduler telemetryScheduler;
+
+	/** Number of timed out executions by command name */
+	private final ConcurrentMap<String, AtomicLong> commandTimeoutCounts = new ConcurrentHashMap<String, AtomicLong>();
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -65,29 +162,109 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 	@Override
 	public void processSiteWhereCommand(byte[] message, ISiteWhereEventDispatcher dispatcher)
 			throws SiteWhereAgentException {
-		ByteArrayInputStream stream = new ByteArrayInputStream(message);
+		decodeSiteWhereCommand(message, 0, message.length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.agent.IAgentCommandProcessor#processSiteWhereCommand(byte[], int,
+	 * int, com.sitewhere.agent.ISiteWhereEventDispatcher)
+	 */
+	@Override
+	public void processSiteWhereCommand(byte[] buffer, int offset, int length,
+			ISiteWhereEventDispatcher dispatcher) throws SiteWhereAgentException {
+
+		// Subclasses written against the whole-message variant still see every message.
+		if (wholeMessageOverridden) {
+			byte[] message = new byte[length];
+			System.arraycopy(buffer, offset, message, 0, length);
+			processSiteWhereCommand(message, dispatcher);
+			return;
+		}
+		decodeSiteWhereCommand(buffer, offset, length);
+	}
+
+	/**
+	 * Decode a SiteWhere system message held in a region of a buffer and pass it to
+	 * {@link #handleSystemMessage(Header, SystemMessageBody)}.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @throws SiteWhereAgentException
+	 */
+	protected void decodeSiteWhereCommand(byte[] buffer, int offset, int length) throws SiteWhereAgentException {
 		try {
-			Header header = Device.Header.parseDelimitedFrom(stream);
-			switch (header.getCommand()) {
-			case ACK_REGISTRATION: {
-				RegistrationAck ack = RegistrationAck.parseDelimitedFrom(stream);
-				handleRegistrationAck(header, ack);
-				break;
-			}
-			case ACK_DEVICE_STREAM: {
-				// TODO: Add device stream support.
-				break;
-			}
-			case RECEIVE_DEVICE_STREAM_DATA: {
-				// TODO: Add device stream support.
-				break;
+			CodedInputStream in = CodedInputStream.newInstance(buffer, offset, length);
+			int limit = in.pushLimit(in.readRawVarint32());
+			Header header = Header.parseFrom(in);
+			in.popLimit(limit);
+
+			// Body is only located here and parsed on demand.
+			int bodyLength = in.isAtEnd() ? 0 : in.readRawVarint32();
+			int bodyOffset = offset + in.getTotalBytesRead();
+			if (bodyLength < 0) {
+				throw new InvalidProtocolBufferException("System message body has a negative length.");
 			}
+			if (bodyLength > offset + length - bodyOffset) {
+				throw new InvalidProtocolBufferException("System message body is truncated.");
 			}
+			handleSystemMessage(header, new SystemMessageBody(buffer, bodyOffset, bodyLength));
 		} catch (IOException e) {
 			throw new SiteWhereAgentException(e);
 		}
 	}
 
+	/**
+	 * Indicates whether a subclass overrides
+	 * {@link #processSiteWhereCommand(byte[], ISiteWhereEventDispatcher)}, in which case
+	 * messages received as buffer regions are copied and passed to it.
+	 * 
+	 * @return
+	 */
+	private boolean overridesWholeMessageProcessing() {
+		try {
+			return getClass().getMethod("processSiteWhereCommand", byte[].class, ISiteWhereEventDispatcher.class)
+					.getDeclaringClass() != BaseCommandProcessor.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Handle a SiteWhere system message. The body is not parsed until needed by the
+	 * handler for the given command.
+	 * 
+	 * @param header
+	 * @param body
+	 * @throws IOException
+	 * @throws SiteWhereAgentException
+	 */
+	public void handleSystemMessage(Header header, SystemMessageBody body)
+			throws IOException, SiteWhereAgentException {
+		switch (header.getCommand()) {
+		case ACK_REGISTRATION: {
+			RegistrationAck ack = body.parse(RegistrationAck.PARSER);
+			RegistrationScheduler scheduler = getRegistrationScheduler();
+			if (scheduler != null) {
+				scheduler.acknowledged(getHardwareId());
+			}
+			saveRegistrationState(ack);
+			handleRegistrationAck(header, ack);
+			break;
+		}
+		case ACK_DEVICE_STREAM: {
+			handleDeviceStreamAck(header, body.parse(DeviceStreamAck.PARSER));
+			break;
+		}
+		case RECEIVE_DEVICE_STREAM_DATA: {
+			handleDeviceStreamData(header, body.parse(Model.DeviceStreamData.PARSER));
+			break;
+		}
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -98,48 +275,356 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 	public void processSpecificationCommand(byte[] message, ISiteWhereEventDispatcher dispatcher)
 			throws SiteWhereAgentException {
 		try {
-			ByteArrayInputStream encoded = new ByteArrayInputStream(message);
-			ObjectInputStream in = new ObjectInputStream(encoded);
-
-			String commandName = (String) in.readObject();
-			Object[] parameters = (Object[]) in.readObject();
-			Object[] parametersWithOriginator = new Object[parameters.length + 1];
-			Class<?>[] types = new Class[parameters.length];
-			Class<?>[] typesWithOriginator = new Class[parameters.length + 1];
-			int i = 0;
-			for (Object parameter : parameters) {
-				types[i] = parameter.getClass();
-				typesWithOriginator[i] = types[i];
-				parametersWithOriginator[i] = parameters[i];
-				i++;
+			SpecificationCommand command = decodeSpecificationCommand(message);
+			String commandName = command.getCommandName();
+			Object[] parameters = command.getParameters();
+			IDeviceEventOriginator originator = command.getOriginator();
+			String eventId = getOriginatorEventId(originator);
+
+			// Answer retried commands from the result cache.
+			CommandResultCache cache = getResultCache();
+			if (cache != null) {
+				List<SiteWhere.Acknowledge> acks = cache.getResult(eventId);
+				if (acks != null) {
+					LOGGER.info("Replaying cached result of command '" + commandName + "'.");
+					for (SiteWhere.Acknowledge ack : acks) {
+						getEventDispatcher().acknowledge(ack, eventId);
+					}
+					return;
+				}
 			}
-			IDeviceEventOriginator originator = (IDeviceEventOriginator) in.readObject();
-			typesWithOriginator[i] = IDeviceEventOriginator.class;
-			parametersWithOriginator[i] = originator;
 
-			Method method = null;
+			// Skip commands that were already delivered. Ids of commands whose handler fails
+			// are forgotten below so that SiteWhere can retry them.
+			if (getDuplicateFilter().isDuplicate(eventId)) {
+				LOGGER.info("Skipping duplicate delivery of command '" + commandName + "'.");
+				return;
+			}
+
+			if (cache != null) {
+				cache.begin(eventId);
+			}
+			boolean completed = false;
+			boolean abandoned = false;
 			try {
-				method = getClass().getMethod(commandName, typesWithOriginator);
-				method.invoke(this, parametersWithOriginator);
-			} catch (NoSuchMethodException e) {
-				LOGGER.log(Level.WARNING, "Unable to find method with originator parameter.", e);
-				method = getClass().getMethod(commandName, types);
-				method.invoke(this, parameters);
+				long timeout = getCommandTimeout(commandName);
+				if (timeout > 0) {
+					completed = invokeCommandWithTimeout(commandName, parameters, originator, timeout);
+					abandoned = !completed;
+				} else {
+					invokeCommand(commandName, parameters, originator);
+					completed = true;
+				}
+			} finally {
+
+				// An abandoned handler may still be running, so its id is kept to stop a
+				// redelivery from running alongside it.
+				if (!completed && !abandoned) {
+					getDuplicateFilter().forget(eventId);
+				}
+				if (cache != null) {
+					if (completed) {
+						cache.complete(eventId);
+					} else {
+						cache.discard(eventId);
+					}
+				}
 			}
+		} catch (InvalidClassException e) {
+			LOGGER.log(Level.WARNING, "Rejected command payload not allowed by filter.", e);
+		} catch (InvalidObjectException e) {
+			LOGGER.log(Level.WARNING, "Rejected command payload exceeding limits.", e);
 		} catch (StreamCorruptedException e) {
 			LOGGER.log(Level.WARNING, "Unable to decode command in hybrid mode.", e);
+		} catch (InvalidProtocolBufferException e) {
+			LOGGER.log(Level.WARNING, "Unable to decode command in protobuf mode.", e);
 		} catch (IOException e) {
-			LOGGER.log(Level.WARNING, "Unable to read command in hybrid mode.", e);
+			LOGGER.log(Level.WARNING, "Unable to read command.", e);
 		} catch (ClassNotFoundException e) {
 			LOGGER.log(Level.WARNING, "Unable to resolve parameter class.", e);
-		} catch (NoSuchMethodException e) {
-			LOGGER.log(Level.WARNING, "Unable to find method signature that matches command.", e);
 		} catch (IllegalAccessException e) {
 			LOGGER.log(Level.WARNING, "Not allowed to call method for command.", e);
 		} catch (IllegalArgumentException e) {
 			LOGGER.log(Level.WARNING, "Invalid argument for command.", e);
 		} catch (InvocationTargetException e) {
 			LOGGER.log(Level.WARNING, "Unable to call method for command.", e);
+		} catch (RejectedExecutionException e) {
+			LOGGER.fine("Command rejected because all command threads are busy.");
+		}
+	}
+
+	/**
+	 * Invoke the handler for a command on the current thread.
+	 * 
+	 * @param commandName
+	 * @param parameters
+	 * @param originator
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	protected void invokeCommand(String commandName, Object[] parameters, IDeviceEventOriginator originator)
+			throws IllegalAccessException, InvocationTargetException {
+
+		// Use generated dispatcher if available, falling back to reflection.
+		if (dispatchGenerated(commandName, parameters, originator)) {
+			return;
+		}
+		CommandDispatchCache.Handler handler = getDispatchCache().getHandler(commandName, parameters);
+		if (handler == null) {
+			LOGGER.warning("Unable to find method signature that matches command '" + commandName + "'.");
+			return;
+		}
+		handler.invoke(parameters, originator);
+	}
+
+	/**
+	 * Invoke the handler for a command on a separate thread and wait for it to finish. If
+	 * the handler overruns the timeout, the watchdog interrupts it and the handler is
+	 * abandoned so that inbound processing can continue. The originator is then sent an
+	 * acknowledgement indicating the timeout. The handler is abandoned the same way if the
+	 * calling thread is interrupted while waiting.
+	 * 
+	 * @param commandName
+	 * @param parameters
+	 * @param originator
+	 * @param timeout
+	 * @return false if the handler was abandoned because it timed out or the caller was
+	 *         interrupted
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 * @throws RejectedExecutionException if every command thread is busy
+	 */
+	protected boolean invokeCommandWithTimeout(final String commandName, final Object[] parameters,
+			final IDeviceEventOriginator originator, long timeout)
+			throws IllegalAccessException, InvocationTargetException {
+		final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				invokeCommand(commandName, parameters, originator);
+				return null;
+			}
+		});
+		HashedWheelTimer.Timeout watchdog = HashedWheelTimer.getShared().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				task.cancel(true);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		try {
+			TIMED_COMMAND_EXECUTOR.execute(task);
+		} catch (RejectedExecutionException e) {
+			watchdog.cancel();
+			handleCommandRejected(commandName, originator);
+			throw e;
+		}
+		try {
+			task.get();
+			return true;
+		} catch (CancellationException e) {
+			handleCommandTimeout(commandName, originator, timeout);
+			return false;
+		} catch (InterruptedException e) {
+			task.cancel(true);
+			handleCommandInterrupted(commandName, originator);
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IllegalAccessException) {
+				throw (IllegalAccessException) e.getCause();
+			} else if (e.getCause() instanceof InvocationTargetException) {
+				throw (InvocationTargetException) e.getCause();
+			}
+			throw new InvocationTargetException(e.getCause());
+		} finally {
+			watchdog.cancel();
+		}
+	}
+
+	/**
+	 * Called when a command handler did not finish within its timeout.
+	 * 
+	 * @param commandName
+	 * @param originator
+	 * @param timeout
+	 */
+	protected void handleCommandTimeout(String commandName, IDeviceEventOriginator originator, long timeout) {
+		AtomicLong count = commandTimeoutCounts.get(commandName);
+		if (count == null) {
+			commandTimeoutCounts.putIfAbsent(commandName, new AtomicLong());
+			count = commandTimeoutCounts.get(commandName);
+		}
+		count.incrementAndGet();
+		CommandResultCache cache = getResultCache();
+		if (cache != null) {
+			cache.discard(getOriginatorEventId(originator));
+		}
+		LOGGER.warning("Command '" + commandName + "' timed out after " + timeout + " ms.");
+		try {
+			sendAck(getHardwareId(), "Command '" + commandName + "' timed out after " + timeout + " ms.",
+					originator);
+		} catch (SiteWhereAgentException e) {
+			LOGGER.log(Level.WARNING, "Unable to send command timeout acknowledgement.", e);
+		}
+	}
+
+	/**
+	 * Called when a command handler was abandoned because the processing thread was
+	 * interrupted, usually on shutdown.
+	 * 
+	 * @param commandName
+	 * @param originator
+	 */
+	protected void handleCommandInterrupted(String commandName, IDeviceEventOriginator originator) {
+		CommandResultCache cache = getResultCache();
+		if (cache != null) {
+			cache.discard(getOriginatorEventId(originator));
+		}
+		LOGGER.warning("Command '" + commandName + "' abandoned because processing was interrupted.");
+		try {
+			sendAck(getHardwareId(), "Command '" + commandName + "' abandoned because processing was interrupted.",
+					originator);
+		} catch (SiteWhereAgentException e) {
+			LOGGER.log(Level.WARNING, "Unable to send command interruption acknowledgement.", e);
+		}
+	}
+
+	/**
+	 * Called when a command with a timeout could not be started because every command
+	 * thread is busy, for instance with abandoned handlers that ignore interrupts.
+	 * 
+	 * @param commandName
+	 * @param originator
+	 */
+	protected void handleCommandRejected(String commandName, IDeviceEventOriginator originator) {
+		LOGGER.warning("Command '" + commandName + "' rejected, all " + MAX_TIMED_COMMAND_THREADS
+				+ " command threads are busy.");
+		try {
+			sendAck(getHardwareId(), "Command '" + commandName + "' rejected, too many commands are running.",
+					originator);
+		} catch (SiteWhereAgentException e) {
+			LOGGER.log(Level.WARNING, "Unable to send command rejection acknowledgement.", e);
+		}
+	}
+
+	/**
+	 * Get the timeout for a command in milliseconds (0 for none).
+	 * 
+	 * @param commandName
+	 * @return
+	 */
+	public long getCommandTimeout(String commandName) {
+		Long timeout = commandTimeouts.get(commandName);
+		return (timeout != null) ? timeout : getDefaultCommandTimeout();
+	}
+
+	/**
+	 * Set the timeout for a specific command in milliseconds (0 for none).
+	 * 
+	 * @param commandName
+	 * @param timeout
+	 */
+	public void setCommandTimeout(String commandName, long timeout) {
+		commandTimeouts.put(commandName, timeout);
+	}
+
+	/**
+	 * Get number of timed out executions by command name.
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getCommandTimeoutCounts() {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : commandTimeoutCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * Decode a specification command, detecting whether the payload uses the hybrid
+	 * (Java serialized) format or the protobuf envelope. The payload size limit of the
+	 * hybrid decoder applies to both formats.
+	 * 
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	protected SpecificationCommand decodeSpecificationCommand(byte[] message)
+			throws IOException, ClassNotFoundException {
+		if (ProtobufCommandCodec.isHybrid(message)) {
+			return getHybridDecoder().decode(message);
+		}
+		return ProtobufCommandCodec.decode(message, getHybridDecoder().getMaxBytes());
+	}
+
+	/**
+	 * Invoke a command through the dispatcher generated at compile time.
+	 * 
+	 * @param commandName
+	 * @param parameters
+	 * @param originator
+	 * @return true if the generated dispatcher handled the command
+	 * @throws InvocationTargetException
+	 */
+	protected boolean dispatchGenerated(String commandName, Object[] parameters,
+			IDeviceEventOriginator originator) throws InvocationTargetException {
+		IAgentCommandDispatcher<IAgentCommandProcessor> dispatcher = getGeneratedDispatcher();
+		if (dispatcher == null) {
+			return false;
+		}
+		try {
+			return dispatcher.dispatch(this, commandName, parameters, originator);
+		} catch (Exception e) {
+			throw new InvocationTargetException(e);
+		}
+	}
+
+	/**
+	 * Get the generated dispatcher for this class or the closest superclass that has one.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	protected IAgentCommandDispatcher<IAgentCommandProcessor> getGeneratedDispatcher() {
+		if (!generatedDispatcherResolved) {
+			for (Class<?> current = getClass(); current != BaseCommandProcessor.class; current =
+					current.getSuperclass()) {
+				String name = current.getName().replace('$', '_') + IAgentCommandDispatcher.GENERATED_CLASS_SUFFIX;
+				try {
+					Class<?> clazz = Class.forName(name, true, current.getClassLoader());
+					generatedDispatcher = (IAgentCommandDispatcher<IAgentCommandProcessor>) clazz.newInstance();
+					LOGGER.info("Using generated command dispatcher " + name + ".");
+					break;
+				} catch (ClassNotFoundException e) {
+					continue;
+				} catch (Exception e) {
+					LOGGER.log(Level.WARNING, "Unable to create generated command dispatcher " + name + ".", e);
+					break;
+				}
+			}
+			generatedDispatcherResolved = true;
+		}
+		return generatedDispatcher;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.agent.IBatchCommandProcessor#processSpecificationCommands(java.util.
+	 * List, com.sitewhere.agent.ISiteWhereEventDispatcher)
+	 */
+	@Override
+	public void processSpecificationCommands(List<byte[]> messages, ISiteWhereEventDispatcher dispatcher)
+			throws SiteWhereAgentException {
+		for (byte[] message : messages) {
+			try {
+				processSpecificationCommand(message, dispatcher);
+			} catch (SiteWhereAgentException e) {
+				LOGGER.log(Level.WARNING, "Unable to process command in batch.", e);
+			}
 		}
 	}
 
@@ -185,6 +670,90 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 		return eventDispatcher;
 	}
 
+	public DuplicateCommandFilter getDuplicateFilter() {
+		return duplicateFilter;
+	}
+
+	public void setDuplicateFilter(DuplicateCommandFilter duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+	}
+
+	public DeviceStreamDownloadManager getStreamDownloads() {
+		return streamDownloads;
+	}
+
+	public synchronized IncrementalStreamUploader getIncrementalUploads() {
+		if (incrementalUploads == null) {
+			incrementalUploads = new IncrementalStreamUploader(getStreamUploads(),
+					new File(IncrementalStreamUploader.DEFAULT_INDEX_FILE));
+		}
+		return incrementalUploads;
+	}
+
+	public synchronized void setIncrementalUploads(IncrementalStreamUploader incrementalUploads) {
+		this.incrementalUploads = incrementalUploads;
+	}
+
+	public DeviceStreamFetcher getStreamFetcher() {
+		return streamFetcher;
+	}
+
+	public DeviceStreamUploader getStreamUploads() {
+		return streamUploads;
+	}
+
+	public void setStreamUploads(DeviceStreamUploader streamUploads) {
+		this.streamUploads = streamUploads;
+	}
+
+	public CommandResultCache getResultCache() {
+		return resultCache;
+	}
+
+	public void setResultCache(CommandResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	public long getDefaultCommandTimeout() {
+		return defaultCommandTimeout;
+	}
+
+	public void setDefaultCommandTimeout(long defaultCommandTimeout) {
+		this.defaultCommandTimeout = defaultCommandTimeout;
+	}
+
+	public RegistrationScheduler getRegistrationScheduler() {
+		return registrationScheduler;
+	}
+
+	public void setRegistrationScheduler(RegistrationScheduler registrationScheduler) {
+		this.registrationScheduler = registrationScheduler;
+	}
+
+	public synchronized TelemetryScheduler getTelemetryScheduler() {
+		return telemetryScheduler;
+	}
+
+	public synchronized void setTelemetryScheduler(TelemetryScheduler telemetryScheduler) {
+		this.telemetryScheduler = telemetryScheduler;
+	}
+
+	public RegistrationStore getRegistrationStore() {
+		return registrationStore;
+	}
+
+	public void setRegistrationStore(RegistrationStore registrationStore) {
+		this.registrationStore = registrationStore;
+	}
+
+	public HybridCommandDecoder getHybridDecoder() {
+		return hybridDecoder;
+	}
+
+	public CommandDispatchCache getDispatchCache() {
+		return dispatchCache;
+	}
+
 	/**
 	 * Handle the registration acknowledgement message.
 	 * 
@@ -195,13 +764,114 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 	}
 
 	/**
-	 * Convenience method for sending device registration information to SiteWhere.
+	 * Record the outcome of a registration so the next start can skip waiting for it.
+	 * 
+	 * @param ack
+	 */
+	protected void saveRegistrationState(RegistrationAck ack) {
+		RegistrationStore store = getRegistrationStore();
+		if (store == null) {
+			return;
+		}
+		try {
+			switch (ack.getState()) {
+			case NEW_REGISTRATION:
+			case ALREADY_REGISTERED: {
+				store.registered(getHardwareId(), getSpecificationToken());
+				break;
+			}
+			case REGISTRATION_ERROR: {
+				store.invalidate(getHardwareId());
+				break;
+			}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to save registration state.", e);
+		}
+	}
+
+	/**
+	 * Indicates whether SiteWhere acknowledged the registration of a device with the
+	 * given specification token before the agent was last stopped. A device that was
+	 * registered can start sending events without waiting for its registration to be
+	 * acknowledged again.
+	 * 
+	 * @param hardwareId
+	 * @param specificationToken
+	 * @return
+	 */
+	public boolean isRegistrationSaved(String hardwareId, String specificationToken) {
+		RegistrationStore store = getRegistrationStore();
+		if (store == null) {
+			return false;
+		}
+		try {
+			return store.isRegistered(hardwareId, specificationToken);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to read registration state.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Handle acknowledgement of a device stream creation request.
+	 * 
+	 * @param header
+	 * @param ack
+	 */
+	public void handleDeviceStreamAck(Header header, DeviceStreamAck ack) {
+		getStreamUploads().handleStreamAck(ack);
+		switch (ack.getState()) {
+		case STREAM_CREATED:
+		case STREAM_EXISTS: {
+			LOGGER.info("SiteWhere acknowledged device stream '" + ack.getStreamId() + "'.");
+			break;
+		}
+		case STREAM_FAILED: {
+			LOGGER.warning("SiteWhere was unable to create device stream '" + ack.getStreamId() + "'.");
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Handle a chunk of device stream data. By default chunks are written to the download
+	 * registered for the stream.
+	 * 
+	 * @param header
+	 * @param data
+	 */
+	public void handleDeviceStreamData(Header header, Model.DeviceStreamData data) {
+		getStreamDownloads().handleStreamData(data);
+	}
+
+	/**
+	 * Convenience method for sending device registration information to SiteWhere. If a
+	 * registration scheduler is set, the registration is paced by the scheduler and sent
+	 * again until acknowledged, so this method returns before it is sent.
 	 * 
 	 * @param hardwareId
 	 * @param specificationToken
 	 * @throws SiteWhereAgentException
 	 */
 	public void sendRegistration(String hardwareId, String specificationToken) throws SiteWhereAgentException {
+		RegistrationScheduler scheduler = getRegistrationScheduler();
+		if (scheduler != null) {
+			scheduler.schedule(this, hardwareId, specificationToken);
+		} else {
+			sendRegistrationMessage(hardwareId, specificationToken);
+		}
+	}
+
+	/**
+	 * Send a device registration message to SiteWhere immediately.
+	 * 
+	 * @param hardwareId
+	 * @param specificationToken
+	 * @throws SiteWhereAgentException
+	 */
+	public void sendRegistrationMessage(String hardwareId, String specificationToken)
+			throws SiteWhereAgentException {
 		RegisterDevice.Builder builder = RegisterDevice.newBuilder();
 		RegisterDevice register =
 				builder.setHardwareId(hardwareId).setSpecificationToken(specificationToken).build();
@@ -220,7 +890,63 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 			throws SiteWhereAgentException {
 		SiteWhere.Acknowledge.Builder builder = SiteWhere.Acknowledge.newBuilder();
 		SiteWhere.Acknowledge ack = builder.setHardwareId(hardwareId).setMessage(message).build();
-		getEventDispatcher().acknowledge(ack, getOriginatorEventId(originator));
+		String eventId = getOriginatorEventId(originator);
+		CommandResultCache cache = getResultCache();
+		if (cache != null) {
+			cache.record(eventId, ack);
+		}
+		getEventDispatcher().acknowledge(ack, eventId);
+	}
+
+	/**
+	 * Convenience method for uploading a file to SiteWhere as a device stream. Blocks until
+	 * the upload completes, so it should be called from a background thread.
+	 * 
+	 * @param streamId
+	 * @param contentType
+	 * @param file
+	 * @throws SiteWhereAgentException
+	 */
+	public void uploadStream(String streamId, String contentType, File file) throws SiteWhereAgentException {
+		getStreamUploads().upload(getEventDispatcher(), getHardwareId(), streamId, contentType, file);
+	}
+
+	/**
+	 * Convenience method for uploading a new version of a file to SiteWhere as a device
+	 * stream, sending only chunks that were not sent before followed by a manifest.
+	 * Blocks until the upload completes, so it should be called from a background thread.
+	 * 
+	 * @param streamId
+	 * @param contentType
+	 * @param file
+	 * @throws SiteWhereAgentException
+	 */
+	public void uploadStreamIncremental(String streamId, String contentType, File file)
+			throws SiteWhereAgentException {
+		getIncrementalUploads().upload(getEventDispatcher(), getHardwareId(), streamId, contentType, file);
+	}
+
+	/**
+	 * Convenience method for downloading a device stream by requesting its chunks from
+	 * SiteWhere. An interrupted download of the same stream to the same file is resumed.
+	 * Returns once the first requests are sent and the listener is notified when the
+	 * download finishes.
+	 * 
+	 * @param streamId
+	 * @param file
+	 * @param size
+	 * @param chunkSize
+	 * @param listener
+	 * @throws SiteWhereAgentException
+	 */
+	public void fetchStream(String streamId, File file, long size, int chunkSize,
+			IDeviceStreamDownloadListener listener) throws SiteWhereAgentException {
+		try {
+			getStreamFetcher().fetch(getEventDispatcher(), getHardwareId(), streamId, file, size, chunkSize,
+					listener);
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to start fetch of stream '" + streamId + "'.", e);
+		}
 	}
 
 	/**
@@ -240,6 +966,47 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 		getEventDispatcher().sendMeasurement(mb.build(), getOriginatorEventId(originator));
 	}
 
+	/**
+	 * Convenience method for sending several measurements taken together to SiteWhere as
+	 * one event.
+	 * 
+	 * @param hardwareId
+	 * @param measurements values by measurement name
+	 * @param originator
+	 * @throws SiteWhereAgentException
+	 */
+	public void sendMeasurements(String hardwareId, Map<String, Double> measurements,
+			IDeviceEventOriginator originator) throws SiteWhereAgentException {
+		Model.DeviceMeasurements.Builder mb = Model.DeviceMeasurements.newBuilder();
+		mb.setHardwareId(hardwareId);
+		for (Map.Entry<String, Double> measurement : measurements.entrySet()) {
+			mb.addMeasurement(Model.Measurement.newBuilder().setMeasurementId(measurement.getKey())
+					.setMeasurementValue(measurement.getValue()).build());
+		}
+		getEventDispatcher().sendMeasurement(mb.build(), getOriginatorEventId(originator));
+	}
+
+	/**
+	 * Convenience method for taking readings for this device periodically. Readings of
+	 * collectors due at the same time are sent together as one measurements event. Ticks
+	 * are aligned to the wall clock and the interval and phase are rounded to whole ticks
+	 * of the telemetry scheduler.
+	 * 
+	 * @param collector
+	 * @param interval milliseconds between readings
+	 * @param phase offset in milliseconds of readings within the interval
+	 * @return handle used to cancel the collector
+	 * @throws IllegalStateException if no telemetry scheduler was set on the processor
+	 */
+	public TelemetryScheduler.ScheduledCollector scheduleTelemetry(ITelemetryCollector collector, long interval,
+			long phase) {
+		TelemetryScheduler scheduler = getTelemetryScheduler();
+		if (scheduler == null) {
+			throw new IllegalStateException("No telemetry scheduler has been set on the command processor.");
+		}
+		return scheduler.schedule(this, getHardwareId(), collector, interval, phase);
+	}
+
 	/**
 	 * Convenience method for sending a location event to SiteWhere.
 	 * 
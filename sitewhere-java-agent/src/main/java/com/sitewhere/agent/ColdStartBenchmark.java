@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures agent cold start by launching new JVMs that run the startup training mode
+ * against an in-process broker, so no external services are involved. Each launch is
+ * timed from process start until the agent logs its first publish. When a class data
+ * sharing archive is given, launches with and without it alternate so both see the same
+ * machine conditions. One discarded launch per variant warms the file system cache.
+ * Run with:
+ * 
+ * <pre>
+ * java -cp sitewhere-java-agent-x.y.z.jar com.sitewhere.agent.ColdStartBenchmark config.properties [launches] [archive]
+ * </pre>
+ * 
+ * @author Derek
+ */
+public class ColdStartBenchmark {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(ColdStartBenchmark.class.getName());
+
+	/** Default number of measured launches per variant */
+	private static final int DEFAULT_LAUNCHES = 10;
+
+	/** Maximum time in seconds a launch may take */
+	private static final long LAUNCH_TIMEOUT = 60;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			LOGGER.severe("Usage: ColdStartBenchmark config.properties [launches] [archive]");
+			return;
+		}
+		String config = args[0];
+		int launches = (args.length > 1) ? Math.max(Integer.parseInt(args[1]), 1) : DEFAULT_LAUNCHES;
+		String archive = (args.length > 2) ? args[2] : null;
+		if ((archive != null) && !new File(archive).exists()) {
+			LOGGER.severe("Class data sharing archive not found: " + archive);
+			return;
+		}
+
+		List<Long> plain = new ArrayList<Long>();
+		List<Long> shared = new ArrayList<Long>();
+		for (int i = 0; i <= launches; i++) {
+			long plainMillis = launch(config, null);
+			long sharedMillis = (archive != null) ? launch(config, archive) : -1;
+			if (i > 0) {
+				plain.add(plainMillis);
+				shared.add(sharedMillis);
+			}
+		}
+		report("default", plain);
+		if (archive != null) {
+			report("archive", shared);
+		}
+	}
+
+	/**
+	 * Launch the agent in training mode and measure the time until its first publish.
+	 * Output is read on a separate thread so a launch that hangs is ended after the
+	 * timeout.
+	 * 
+	 * @param config
+	 * @param archive class data sharing archive (null for none)
+	 * @return milliseconds from launch until first publish
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected static long launch(String config, String archive) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (archive != null) {
+			command.add("-XX:SharedArchiveFile=" + archive);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(AgentLoader.class.getName());
+		command.add(config);
+		command.add(IAgentConfiguration.AGENT_MODE_TRAIN);
+
+		final long start = System.nanoTime();
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		final AtomicLong elapsed = new AtomicLong(-1);
+		Thread output = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if ((elapsed.get() < 0) && line.contains(StartupTimer.FIRST_PUBLISH)) {
+							elapsed.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+							LOGGER.fine(line);
+						}
+					}
+				} catch (IOException e) {
+					// Stream closed when the process is destroyed.
+				} finally {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						// Ignore.
+					}
+				}
+			}
+		}, "Cold start output");
+		output.setDaemon(true);
+		output.start();
+		if (!process.waitFor(LAUNCH_TIMEOUT, TimeUnit.SECONDS)) {
+			process.destroyForcibly();
+			throw new IOException("Agent launch did not exit within " + LAUNCH_TIMEOUT + " seconds.");
+		}
+		output.join();
+		if (elapsed.get() < 0) {
+			throw new IOException("Agent did not publish during launch (exit code " + process.exitValue() + ").");
+		}
+		return elapsed.get();
+	}
+
+	/**
+	 * Log statistics for the launches of one variant.
+	 * 
+	 * @param variant
+	 * @param millis
+	 */
+	protected static void report(String variant, List<Long> millis) {
+		List<Long> sorted = new ArrayList<Long>(millis);
+		Collections.sort(sorted);
+		LOGGER.info(String.format("%-8s launch to first publish over %d launches: median %d ms, min %d ms, max %d ms",
+				variant, sorted.size(), sorted.get(sorted.size() / 2), sorted.get(0), sorted.get(sorted.size() - 1)));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Resolves specification commands to handler methods on a command processor. Each
+ * combination of command name and parameter types is looked up via reflection only once
+ * and turned into a {@link MethodHandle} bound to the processor. Signatures without a
+ * matching method are not cached, since command names arrive from the network and would
+ * otherwise grow the cache without bound.
+ * 
+ * @author Derek
+ */
+public class CommandDispatchCache {
+
+	/** Invocation type shared by all handles */
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object[].class);
+
+	/** Object that implements command methods */
+	private final Object target;
+
+	/** Resolved handlers by signature */
+	private final ConcurrentMap<Signature, Handler> handlers = new ConcurrentHashMap<Signature, Handler>();
+
+	public CommandDispatchCache(Object target) {
+		this.target = target;
+	}
+
+	/**
+	 * Get the handler for a command invoked with the given parameters. Returns null if the
+	 * target has no method that matches.
+	 * 
+	 * @param commandName
+	 * @param parameters
+	 * @return
+	 * @throws IllegalAccessException
+	 */
+	public Handler getHandler(String commandName, Object[] parameters) throws IllegalAccessException {
+		Class<?>[] types = new Class<?>[parameters.length];
+		for (int i = 0; i < parameters.length; i++) {
+			types[i] = parameters[i].getClass();
+		}
+		Signature signature = new Signature(commandName, types);
+		Handler handler = handlers.get(signature);
+		if (handler == null) {
+			handler = resolve(commandName, types);
+			if (handler != null) {
+				handlers.putIfAbsent(signature, handler);
+			}
+		}
+		return handler;
+	}
+
+	/**
+	 * Find the method for a signature, preferring the variant that takes the originator
+	 * as an extra trailing parameter. Returns null if no method matches.
+	 * 
+	 * @param commandName
+	 * @param types
+	 * @return
+	 * @throws IllegalAccessException
+	 */
+	protected Handler resolve(String commandName, Class<?>[] types) throws IllegalAccessException {
+		Class<?>[] typesWithOriginator = Arrays.copyOf(types, types.length + 1);
+		typesWithOriginator[types.length] = IDeviceEventOriginator.class;
+		Method method = findMethod(commandName, typesWithOriginator);
+		if (method != null) {
+			return new Handler(createHandle(method), true);
+		}
+		method = findMethod(commandName, types);
+		if (method != null) {
+			return new Handler(createHandle(method), false);
+		}
+		return null;
+	}
+
+	/**
+	 * Find a public method on the target class or return null if not found.
+	 * 
+	 * @param name
+	 * @param types
+	 * @return
+	 */
+	protected Method findMethod(String name, Class<?>[] types) {
+		try {
+			return target.getClass().getMethod(name, types);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create a handle bound to the target that takes all arguments as an array.
+	 * 
+	 * @param method
+	 * @return
+	 * @throws IllegalAccessException
+	 */
+	protected MethodHandle createHandle(Method method) throws IllegalAccessException {
+		method.setAccessible(true);
+		MethodHandle handle = MethodHandles.lookup().unreflect(method).bindTo(target);
+		return handle.asSpreader(Object[].class, method.getParameterTypes().length).asType(INVOKER_TYPE);
+	}
+
+	/**
+	 * Resolved handler for a command signature.
+	 * 
+	 * @author Derek
+	 */
+	public static class Handler {
+
+		/** Handle that accepts arguments as an array */
+		private final MethodHandle handle;
+
+		/** Indicates if method takes originator as last parameter */
+		private final boolean withOriginator;
+
+		public Handler(MethodHandle handle, boolean withOriginator) {
+			this.handle = handle;
+			this.withOriginator = withOriginator;
+		}
+
+		/**
+		 * Invoke the handler. Exceptions thrown by the method are wrapped in an
+		 * {@link InvocationTargetException} as with reflective calls.
+		 * 
+		 * @param parameters
+		 * @param originator
+		 * @throws InvocationTargetException
+		 */
+		public void invoke(Object[] parameters, IDeviceEventOriginator originator)
+				throws InvocationTargetException {
+			Object[] arguments = parameters;
+			if (withOriginator) {
+				arguments = Arrays.copyOf(parameters, parameters.length + 1);
+				arguments[parameters.length] = originator;
+			}
+			try {
+				handle.invokeExact(arguments);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new InvocationTargetException(e);
+			}
+		}
+
+		public boolean isWithOriginator() {
+			return withOriginator;
+		}
+	}
+
+	/**
+	 * Cache key made up of command name and parameter types.
+	 * 
+	 * @author Derek
+	 */
+	private static class Signature {
+
+		/** Command name */
+		private final String name;
+
+		/** Parameter types */
+		private final Class<?>[] types;
+
+		/** Precomputed hash */
+		private final int hash;
+
+		public Signature(String name, Class<?>[] types) {
+			this.name = name;
+			this.types = types;
+			this.hash = 31 * name.hashCode() + Arrays.hashCode(types);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Signature)) {
+				return false;
+			}
+			Signature other = (Signature) obj;
+			return (hash == other.hash) && name.equals(other.name) && Arrays.equals(types, other.types);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Compares payload size and decode time of the hybrid (Java serialized) and protobuf
+ * command formats. Run with:
+ * 
+ * <pre>
+ * java -cp sitewhere-java-agent-x.y.z.jar com.sitewhere.agent.CommandFormatBenchmark [iterations]
+ * </pre>
+ * 
+ * @author Derek
+ */
+public class CommandFormatBenchmark {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(CommandFormatBenchmark.class.getName());
+
+	/** Default number of measured decode iterations */
+	private static final int DEFAULT_ITERATIONS = 200000;
+
+	/** Sample commands used for comparison */
+	private static final Object[][] SAMPLES = {
+			{ "ping", new Object[0] },
+			{ "helloWorld", new Object[] { "Hello", Boolean.TRUE } },
+			{ "setPoint", new Object[] { "thermostat.main", 21.5d, 3600, 1476892800000L, 0.5f } } };
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		AgentEventOriginator originator = new AgentEventOriginator("5f0e9c2a-6d7b-4c8e-9a61-0c2b4f1d7e33");
+		HybridCommandDecoder hybridDecoder = new HybridCommandDecoder();
+
+		for (Object[] sample : SAMPLES) {
+			String name = (String) sample[0];
+			Object[] parameters = (Object[]) sample[1];
+			byte[] hybrid = encodeHybrid(name, parameters, originator);
+			byte[] protobuf = ProtobufCommandCodec.encode(name, parameters, originator);
+
+			// Warm up both decoders before measuring.
+			for (int i = 0; i < iterations / 10; i++) {
+				hybridDecoder.decode(hybrid);
+				ProtobufCommandCodec.decode(protobuf);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				hybridDecoder.decode(hybrid);
+			}
+			long hybridNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				ProtobufCommandCodec.decode(protobuf);
+			}
+			long protobufNanos = System.nanoTime() - start;
+
+			LOGGER.info(String.format("%-10s hybrid: %5d bytes %8.1f ns/decode | protobuf: %4d bytes %8.1f ns/decode",
+					name, hybrid.length, (double) hybridNanos / iterations, protobuf.length,
+					(double) protobufNanos / iterations));
+		}
+	}
+
+	/**
+	 * Encode a command the way SiteWhere does for the hybrid format.
+	 * 
+	 * @param name
+	 * @param parameters
+	 * @param originator
+	 * @return
+	 * @throws IOException
+	 */
+	protected static byte[] encodeHybrid(String name, Object[] parameters, AgentEventOriginator originator)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(name);
+		out.writeObject(parameters);
+		out.writeObject(originator);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Stores the acknowledgements sent in response to recently executed commands, keyed by
+ * originator event id, so that a command retried by SiteWhere can be answered by
+ * replaying the stored response rather than executing the command again. Entries expire
+ * after a fixed time and the oldest entries are dropped once the cache is full.
+ * 
+ * @author Derek
+ */
+public class CommandResultCache {
+
+	/** Default number of command results stored */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** Default time in milliseconds a result is kept */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+	/** Stored results in insertion order */
+	private final LinkedHashMap<String, CachedResult> results;
+
+	/** Acknowledgements captured for commands still executing */
+	private final ConcurrentMap<String, List<SiteWhere.Acknowledge>> executing =
+			new ConcurrentHashMap<String, List<SiteWhere.Acknowledge>>();
+
+	/** Maximum number of results stored */
+	private volatile int capacity;
+
+	/** Time in milliseconds a result is kept */
+	private volatile long ttl;
+
+	/** Number of results replayed */
+	private final AtomicLong replayCount = new AtomicLong();
+
+	public CommandResultCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_TTL);
+	}
+
+	public CommandResultCache(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.results = new LinkedHashMap<String, CachedResult>() {
+
+			private static final long serialVersionUID = 4178305816246193051L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				return size() > CommandResultCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Get the acknowledgements stored for a command. Returns null if no unexpired result
+	 * is stored. A returned result is counted as replayed.
+	 * 
+	 * @param eventId
+	 * @return
+	 */
+	public List<SiteWhere.Acknowledge> getResult(String eventId) {
+		if (eventId == null) {
+			return null;
+		}
+		synchronized (results) {
+			purgeExpired();
+			CachedResult entry = results.get(eventId);
+			if (entry == null) {
+				return null;
+			}
+			replayCount.incrementAndGet();
+			return entry.acks;
+		}
+	}
+
+	/**
+	 * Start capturing acknowledgements for a command.
+	 * 
+	 * @param eventId
+	 */
+	public void begin(String eventId) {
+		if (eventId != null) {
+			executing.put(eventId, Collections.synchronizedList(new ArrayList<SiteWhere.Acknowledge>()));
+		}
+	}
+
+	/**
+	 * Capture an acknowledgement if it belongs to a command that is executing.
+	 * 
+	 * @param eventId
+	 * @param ack
+	 */
+	public void record(String eventId, SiteWhere.Acknowledge ack) {
+		if (eventId == null) {
+			return;
+		}
+		List<SiteWhere.Acknowledge> acks = executing.get(eventId);
+		if (acks != null) {
+			acks.add(ack);
+		}
+	}
+
+	/**
+	 * Stop capturing for a command that completed and store its acknowledgements.
+	 * Commands that did not acknowledge are not stored.
+	 * 
+	 * @param eventId
+	 */
+	public void complete(String eventId) {
+		if (eventId == null) {
+			return;
+		}
+		List<SiteWhere.Acknowledge> acks = executing.remove(eventId);
+		if ((acks == null) || acks.isEmpty()) {
+			return;
+		}
+		List<SiteWhere.Acknowledge> stored;
+		synchronized (acks) {
+			stored = Collections.unmodifiableList(new ArrayList<SiteWhere.Acknowledge>(acks));
+		}
+		synchronized (results) {
+			purgeExpired();
+			results.put(eventId, new CachedResult(stored, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/**
+	 * Stop capturing for a command that failed or timed out without storing a result.
+	 * 
+	 * @param eventId
+	 */
+	public void discard(String eventId) {
+		if (eventId != null) {
+			executing.remove(eventId);
+		}
+	}
+
+	/**
+	 * Remove expired entries. Entries are in insertion order, so expired entries are at
+	 * the head. Caller must hold the lock on results.
+	 */
+	protected void purgeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<CachedResult> it = results.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires > now) {
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Change the number of results stored.
+	 * 
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		synchronized (results) {
+			while (results.size() > Math.max(capacity, 0)) {
+				results.remove(results.keySet().iterator().next());
+			}
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getReplayCount() {
+		return replayCount.get();
+	}
+
+	/**
+	 * Stored result for a command.
+	 * 
+	 * @author Derek
+	 */
+	private static class CachedResult {
+
+		/** Acknowledgements sent by the command */
+		private final List<SiteWhere.Acknowledge> acks;
+
+		/** Time the entry expires */
+		private final long expires;
+
+		public CachedResult(List<SiteWhere.Acknowledge> acks, long expires) {
+			this.acks = acks;
+			this.expires = expires;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the configuration file and passes its properties to a listener each time the
+ * file changes. Editors often write a file in several steps, so the file is only read
+ * once no further changes are seen for a short settling period. Files that cannot be
+ * read, and files whose properties did not change, are ignored.
+ * 
+ * @author Derek
+ */
+public class ConfigurationWatcher implements Runnable {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(ConfigurationWatcher.class.getName());
+
+	/** Default time in milliseconds without changes before the file is read */
+	public static final long DEFAULT_SETTLE_TIME = 500;
+
+	/** Configuration file */
+	private final File file;
+
+	/** Receives changed configurations */
+	private final Listener listener;
+
+	/** Watches directory holding the file */
+	private WatchService watcher;
+
+	/** Properties last passed to the listener */
+	private Properties current;
+
+	/** Time in milliseconds without changes before the file is read */
+	private long settleTime = DEFAULT_SETTLE_TIME;
+
+	public ConfigurationWatcher(File file, Properties current, Listener listener) {
+		this.file = file.getAbsoluteFile();
+		this.current = current;
+		this.listener = listener;
+	}
+
+	/**
+	 * Start watching the file in a background thread.
+	 * 
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+
+		// Editors may replace the file rather than modify it, so creation is watched too.
+		file.getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		Thread thread = new Thread(this, "SiteWhere configuration watcher");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Watching configuration file " + file + " for changes.");
+	}
+
+	/**
+	 * Stop watching the file.
+	 */
+	public void stop() {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Unable to close configuration watcher.", e);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				if (!isChanged(watcher.take())) {
+					continue;
+				}
+
+				// Wait for the file to settle before reading it.
+				WatchKey key;
+				while ((key = watcher.poll(getSettleTime(), TimeUnit.MILLISECONDS)) != null) {
+					isChanged(key);
+				}
+				reload();
+			}
+		} catch (InterruptedException e) {
+			LOGGER.info("Configuration watcher interrupted.");
+		} catch (ClosedWatchServiceException e) {
+			LOGGER.fine("Configuration watcher stopped.");
+		}
+	}
+
+	/**
+	 * Consume the events of a watch key and indicate whether any concern the file.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	protected boolean isChanged(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if ((event.kind() == StandardWatchEventKinds.OVERFLOW)
+					|| ((context instanceof Path) && file.getName().equals(context.toString()))) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Read the file and pass its properties to the listener if they changed.
+	 */
+	protected void reload() {
+		Properties updated = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			updated.load(in);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to reload configuration from " + file + ".", e);
+			return;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if (updated.equals(current)) {
+			return;
+		}
+		current = updated;
+		LOGGER.info("Configuration file " + file + " changed.");
+		try {
+			listener.configurationChanged(updated);
+		} catch (Throwable e) {
+			LOGGER.log(Level.SEVERE, "Unable to apply changed configuration.", e);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getSettleTime() {
+		return settleTime;
+	}
+
+	public void setSettleTime(long settleTime) {
+		this.settleTime = settleTime;
+	}
+
+	/**
+	 * Receives the properties of a changed configuration file.
+	 * 
+	 * @author Derek
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called from the watcher thread when the configuration file changed.
+		 * 
+		 * @param properties
+		 */
+		public void configurationChanged(Properties properties);
+	}
+}
\ No newline at end of file
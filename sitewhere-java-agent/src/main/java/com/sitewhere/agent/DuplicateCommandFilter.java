@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the originator event ids of recently processed commands so that commands
+ * redelivered by the broker (inbound topics are subscribed at QoS 1) are not executed
+ * twice. Ids are kept in a fixed-capacity LRU so memory stays bounded no matter how long
+ * the agent runs. Ids of commands whose handler fails are forgotten so a redelivery is
+ * executed. Ids of handlers abandoned after a timeout are kept, since they may still be
+ * running.
+ * 
+ * @author Derek
+ */
+public class DuplicateCommandFilter {
+
+	/** Default number of originator ids remembered */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Recently seen originator ids in access order */
+	private final LinkedHashMap<String, Boolean> recent;
+
+	/** Maximum number of ids remembered */
+	private volatile int capacity;
+
+	/** Number of duplicates detected */
+	private final AtomicLong duplicateCount = new AtomicLong();
+
+	public DuplicateCommandFilter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public DuplicateCommandFilter(int capacity) {
+		this.capacity = capacity;
+		this.recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = -6201637466356347361L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > DuplicateCommandFilter.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Records the originator id and indicates whether it was already seen. Commands
+	 * without an originator id can not be correlated and are never treated as duplicates.
+	 * 
+	 * @param eventId
+	 * @return
+	 */
+	public boolean isDuplicate(String eventId) {
+		if ((eventId == null) || (capacity <= 0)) {
+			return false;
+		}
+		synchronized (recent) {
+			if (recent.put(eventId, Boolean.TRUE) != null) {
+				duplicateCount.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Forget an originator id so that a redelivery of the command is executed. Used when
+	 * the command handler failed.
+	 * 
+	 * @param eventId
+	 */
+	public void forget(String eventId) {
+		if (eventId == null) {
+			return;
+		}
+		synchronized (recent) {
+			recent.remove(eventId);
+		}
+	}
+
+	/**
+	 * Change the number of ids remembered. A capacity of zero disables filtering.
+	 * 
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		synchronized (recent) {
+			while (recent.size() > Math.max(capacity, 0)) {
+				recent.remove(recent.keySet().iterator().next());
+			}
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lightweight timer for large numbers of short timeouts that are usually cancelled before
+ * they expire (command watchdogs, acknowledgement timeouts). Timeouts are hashed into the
+ * slots of a wheel that a single thread advances once per tick, so scheduling and
+ * cancelling are constant time and no work is done for timeouts that never fire. Timing
+ * precision is one tick and timeouts never fire before their deadline.
+ * 
+ * @author Derek
+ */
+public class HashedWheelTimer {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getName());
+
+	/** Default tick duration in milliseconds */
+	public static final long DEFAULT_TICK_MILLIS = 100;
+
+	/** Default number of slots in the wheel */
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/** Shared instance used by the agent */
+	private static HashedWheelTimer shared;
+
+	/** Thread name */
+	private final String name;
+
+	/** Tick duration in milliseconds */
+	private final long tickMillis;
+
+	/** Number of slots in the wheel */
+	private final int wheelSize;
+
+	/** Advances the wheel while started */
+	private Worker worker;
+
+	/** Thread running the worker */
+	private Thread thread;
+
+	public HashedWheelTimer(String name) {
+		this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+
+	public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+		this.name = name;
+		this.tickMillis = tickMillis;
+		this.wheelSize = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+	}
+
+	/**
+	 * Get the timer shared by agent components. Started on first use.
+	 * 
+	 * @return
+	 */
+	public static synchronized HashedWheelTimer getShared() {
+		if (shared == null) {
+			shared = new HashedWheelTimer("SiteWhere watchdog");
+		}
+		return shared;
+	}
+
+	/**
+	 * Schedule a task to run on the timer thread after the given delay. Tasks should be
+	 * short since they run on the timer thread.
+	 * 
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Worker current = start();
+		long deadline = System.nanoTime() - current.startTime + unit.toNanos(delay);
+		Timeout timeout = new Timeout(task, deadline);
+		current.pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Start the worker thread if not already running.
+	 * 
+	 * @return worker that timeouts are scheduled on
+	 */
+	private synchronized Worker start() {
+		if (worker != null) {
+			return worker;
+		}
+		worker = new Worker();
+		thread = new Thread(worker, name);
+		thread.setDaemon(true);
+		thread.start();
+		return worker;
+	}
+
+	/**
+	 * Stop the worker thread. Timeouts that have not fired are discarded along with the
+	 * wheel, so a later start begins with an empty wheel.
+	 */
+	public synchronized void stop() {
+		if (worker != null) {
+			thread.interrupt();
+			worker = null;
+			thread = null;
+		}
+	}
+
+	/**
+	 * Advances the wheel and runs expired tasks. Each start of the timer uses a new worker
+	 * with its own wheel.
+	 * 
+	 * @author Derek
+	 */
+	private class Worker implements Runnable {
+
+		/** Wheel slots (only accessed by worker thread) */
+		private final List<List<Timeout>> wheel = new ArrayList<List<Timeout>>(wheelSize);
+
+		/** Mask used to map ticks to slots */
+		private final int mask = wheelSize - 1;
+
+		/** Timeouts scheduled but not yet placed in the wheel */
+		private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+		/** Time the wheel was started */
+		private final long startTime = System.nanoTime();
+
+		/** Number of ticks processed */
+		private long tick;
+
+		public Worker() {
+			for (int i = 0; i < wheelSize; i++) {
+				wheel.add(new ArrayList<Timeout>());
+			}
+		}
+
+		@Override
+		public void run() {
+			long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+			while (!Thread.currentThread().isInterrupted()) {
+				long deadline = (tick + 1) * tickNanos;
+				long sleep = deadline - (System.nanoTime() - startTime);
+				if (sleep > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleep);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+				transferPending(tickNanos);
+				expire(wheel.get((int) (tick & mask)));
+				tick++;
+			}
+		}
+
+		/**
+		 * Move newly scheduled timeouts into their slots. The slot of a tick is expired once
+		 * the tick has ended, so deadlines are rounded up to the next tick boundary and the
+		 * timeout goes into the slot of the tick ending there.
+		 * 
+		 * @param tickNanos
+		 */
+		protected void transferPending(long tickNanos) {
+			Timeout timeout;
+			while ((timeout = pending.poll()) != null) {
+				if (timeout.isCancelled()) {
+					continue;
+				}
+				long ticks = Math.max((timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+				timeout.rounds = (ticks - tick) / wheelSize;
+				wheel.get((int) (ticks & mask)).add(timeout);
+			}
+		}
+
+		/**
+		 * Run timeouts in a slot that are due in the current round.
+		 * 
+		 * @param slot
+		 */
+		protected void expire(List<Timeout> slot) {
+			Iterator<Timeout> it = slot.iterator();
+			while (it.hasNext()) {
+				Timeout timeout = it.next();
+				if (timeout.isCancelled()) {
+					it.remove();
+				} else if (timeout.rounds <= 0) {
+					it.remove();
+					timeout.expire();
+				} else {
+					timeout.rounds--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handle for a scheduled task.
+	 * 
+	 * @author Derek
+	 */
+	public static class Timeout {
+
+		/** Waiting to fire */
+		private static final int STATE_PENDING = 0;
+
+		/** Cancelled before firing */
+		private static final int STATE_CANCELLED = 1;
+
+		/** Fired */
+		private static final int STATE_EXPIRED = 2;
+
+		/** Task to run */
+		private final Runnable task;
+
+		/** Deadline relative to timer start in nanoseconds */
+		private final long deadline;
+
+		/** Remaining wheel rotations before firing (worker thread only) */
+		private long rounds;
+
+		/** Current state */
+		private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+		public Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the timeout.
+		 * 
+		 * @return false if the task already ran
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(STATE_PENDING, STATE_CANCELLED) || isCancelled();
+		}
+
+		public boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == STATE_EXPIRED;
+		}
+
+		/**
+		 * Run the task unless cancelled.
+		 */
+		protected void expire() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (Throwable e) {
+				LOGGER.log(Level.WARNING, "Exception in timer task.", e);
+			}
+		}
+	}
+}
\ No newline at end of file
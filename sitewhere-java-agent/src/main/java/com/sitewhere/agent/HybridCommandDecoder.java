@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Decodes specification commands sent in the hybrid format (Java serialized command name,
+ * parameter array and originator). Only classes on an allowlist can be deserialized:
+ * parameter types, boxed primitives and implementations of
+ * {@link IDeviceEventOriginator}. Resolved classes are cached across payloads and the
+ * size of each payload and the number of objects in it are capped. When running on a
+ * JVM with a serialization filter API (Java 9+), depth and array length limits are
+ * enforced by the platform filter as well.
+ * 
+ * @author Derek
+ */
+public class HybridCommandDecoder {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(HybridCommandDecoder.class.getName());
+
+	/** Default maximum payload size in bytes */
+	public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+	/** Default maximum number of objects in a payload */
+	public static final int DEFAULT_MAX_OBJECTS = 256;
+
+	/** Default maximum nesting depth of a payload */
+	public static final int DEFAULT_MAX_DEPTH = 5;
+
+	/** Classes allowed by default */
+	private static final Set<String> DEFAULT_ALLOWED = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList(Object[].class.getName(), String.class.getName(), String[].class.getName(),
+					Number.class.getName(), Boolean.class.getName(), Byte.class.getName(),
+					Short.class.getName(), Integer.class.getName(), Long.class.getName(), Float.class.getName(),
+					Double.class.getName(), Character.class.getName(), byte[].class.getName())));
+
+	/** Platform method for installing a serialization filter (null on Java 8) */
+	private static final Method SET_FILTER;
+
+	/** Platform method for creating a pattern based filter (null on Java 8) */
+	private static final Method CREATE_FILTER;
+
+	static {
+		Method setFilter = null;
+		Method createFilter = null;
+		try {
+			Class<?> filter = Class.forName("java.io.ObjectInputFilter");
+			Class<?> config = Class.forName("java.io.ObjectInputFilter$Config");
+			setFilter = ObjectInputStream.class.getMethod("setObjectInputFilter", filter);
+			createFilter = config.getMethod("createFilter", String.class);
+		} catch (Exception e) {
+			// Serialization filters not available on this JVM.
+		}
+		SET_FILTER = setFilter;
+		CREATE_FILTER = createFilter;
+	}
+
+	/** Names of classes allowed in addition to originator implementations (replaced on change) */
+	private volatile Set<String> allowed = DEFAULT_ALLOWED;
+
+	/** Classes already resolved and allowed */
+	private final ConcurrentMap<String, Class<?>> resolved = new ConcurrentHashMap<String, Class<?>>();
+
+	/** Class loader used to resolve classes */
+	private final ClassLoader classLoader;
+
+	/** Maximum payload size in bytes */
+	private volatile int maxBytes = DEFAULT_MAX_BYTES;
+
+	/** Maximum number of objects in a payload */
+	private volatile int maxObjects = DEFAULT_MAX_OBJECTS;
+
+	/** Maximum nesting depth of a payload */
+	private volatile int maxDepth = DEFAULT_MAX_DEPTH;
+
+	/** Platform filter built from the limits (null if not supported) */
+	private volatile Object platformFilter;
+
+	public HybridCommandDecoder() {
+		this(HybridCommandDecoder.class.getClassLoader());
+	}
+
+	public HybridCommandDecoder(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+		updatePlatformFilter();
+	}
+
+	/**
+	 * Decode a command from a hybrid payload.
+	 * 
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public SpecificationCommand decode(byte[] message) throws IOException, ClassNotFoundException {
+		if (message.length > getMaxBytes()) {
+			throw new InvalidObjectException("Command payload of " + message.length + " bytes exceeds limit of "
+					+ getMaxBytes() + " bytes.");
+		}
+		FilteringObjectInputStream in = new FilteringObjectInputStream(new ByteArrayInputStream(message));
+		try {
+			Object commandName = in.readObject();
+			Object parameters = in.readObject();
+			Object originator = in.readObject();
+			if (!(commandName instanceof String)) {
+				throw new StreamCorruptedException("Command name missing from payload.");
+			}
+			if (!(parameters instanceof Object[])) {
+				throw new StreamCorruptedException("Command parameters missing from payload.");
+			}
+			if ((originator != null) && !(originator instanceof IDeviceEventOriginator)) {
+				throw new StreamCorruptedException("Invalid command originator in payload.");
+			}
+			return new SpecificationCommand((String) commandName, (Object[]) parameters,
+					(IDeviceEventOriginator) originator);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Allow an additional parameter class to be deserialized.
+	 * 
+	 * @param className
+	 */
+	public synchronized void addAllowedClass(String className) {
+		Set<String> updated = new HashSet<String>(allowed);
+		updated.add(className);
+		allowed = Collections.unmodifiableSet(updated);
+	}
+
+	/**
+	 * Replace the additional parameter classes allowed to be deserialized. Classes allowed
+	 * by default are kept. Classes resolved before are forgotten so that a class no longer
+	 * listed is rejected from now on.
+	 * 
+	 * @param classNames
+	 */
+	public synchronized void setAllowedClasses(Collection<String> classNames) {
+		Set<String> updated = new HashSet<String>(DEFAULT_ALLOWED);
+		updated.addAll(classNames);
+		allowed = Collections.unmodifiableSet(updated);
+		resolved.clear();
+	}
+
+	/**
+	 * Check whether a class may be deserialized, returning the class if so.
+	 * 
+	 * @param name
+	 * @param allowedSupers
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	protected Class<?> resolveAllowed(String name, Set<String> allowedSupers)
+			throws IOException, ClassNotFoundException {
+		Class<?> clazz = resolved.get(name);
+		if (clazz != null) {
+			return clazz;
+		}
+		Set<String> current = allowed;
+		if (current.contains(name) || allowedSupers.contains(name)) {
+			clazz = Class.forName(name, false, classLoader);
+			if (current.contains(name)) {
+				resolved.putIfAbsent(name, clazz);
+			}
+			return clazz;
+		}
+		if (!name.startsWith("[")) {
+			clazz = Class.forName(name, false, classLoader);
+			if (IDeviceEventOriginator.class.isAssignableFrom(clazz)) {
+				resolved.putIfAbsent(name, clazz);
+				return clazz;
+			}
+		}
+		throw new InvalidClassException(name, "Class not allowed in command payload.");
+	}
+
+	/**
+	 * Create a platform serialization filter that enforces the configured limits.
+	 */
+	protected void updatePlatformFilter() {
+		if (CREATE_FILTER == null) {
+			return;
+		}
+		try {
+			platformFilter = CREATE_FILTER.invoke(null, "maxdepth=" + getMaxDepth() + ";maxrefs=" + getMaxObjects()
+					+ ";maxbytes=" + getMaxBytes() + ";maxarray=" + getMaxObjects());
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to create serialization filter.", e);
+			platformFilter = null;
+		}
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+		updatePlatformFilter();
+	}
+
+	public int getMaxObjects() {
+		return maxObjects;
+	}
+
+	public void setMaxObjects(int maxObjects) {
+		this.maxObjects = maxObjects;
+		updatePlatformFilter();
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+		updatePlatformFilter();
+	}
+
+	/**
+	 * Object input stream that only resolves allowed classes and limits the number of
+	 * objects read.
+	 * 
+	 * @author Derek
+	 */
+	private class FilteringObjectInputStream extends ObjectInputStream {
+
+		/** Superclasses of originator implementations seen in this stream */
+		private final Set<String> allowedSupers = new HashSet<String>();
+
+		/** Number of objects read */
+		private int objectCount;
+
+		public FilteringObjectInputStream(InputStream in) throws IOException {
+			super(in);
+			enableResolveObject(true);
+			Object filter = platformFilter;
+			if ((SET_FILTER != null) && (filter != null)) {
+				try {
+					SET_FILTER.invoke(this, filter);
+				} catch (Exception e) {
+					LOGGER.log(Level.FINE, "Unable to install serialization filter.", e);
+				}
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+		 */
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			Class<?> clazz = resolveAllowed(desc.getName(), allowedSupers);
+			if (IDeviceEventOriginator.class.isAssignableFrom(clazz)) {
+				for (Class<?> parent = clazz.getSuperclass(); parent != null; parent = parent.getSuperclass()) {
+					allowedSupers.add(parent.getName());
+				}
+			}
+			return clazz;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.ObjectInputStream#resolveProxyClass(java.lang.String[])
+		 */
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+			throw new InvalidClassException("Proxy classes not allowed in command payload.");
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.io.ObjectInputStream#resolveObject(java.lang.Object)
+		 */
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			if (++objectCount > getMaxObjects()) {
+				throw new InvalidObjectException("Command payload exceeds limit of " + getMaxObjects() + " objects.");
+			}
+			return obj;
+		}
+	}
+}
\ No newline at end of file
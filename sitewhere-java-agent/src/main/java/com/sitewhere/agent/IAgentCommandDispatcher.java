@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Interface for dispatchers generated from {@link AgentCommand} annotations. A generated
+ * dispatcher is named after the processor class with a
+ * {@value #GENERATED_CLASS_SUFFIX} suffix.
+ * 
+ * @author Derek
+ * 
+ * @param <T>
+ */
+public interface IAgentCommandDispatcher<T extends IAgentCommandProcessor> {
+
+	/** Suffix appended to processor class name for generated dispatcher */
+	public static final String GENERATED_CLASS_SUFFIX = "_CommandDispatcher";
+
+	/**
+	 * Invoke the handler for a command.
+	 * 
+	 * @param processor
+	 * @param commandName
+	 * @param parameters
+	 * @param originator
+	 * @return true if a handler matched the command name and parameters
+	 * @throws Exception
+	 */
+	public boolean dispatch(T processor, String commandName, Object[] parameters,
+			IDeviceEventOriginator originator) throws Exception;
+}
\ No newline at end of file
@@ -35,6 +35,25 @@ public interface IAgentCommandProcessor {
 	public void processSiteWhereCommand(byte[] message, ISiteWhereEventDispatcher dispatcher)
 			throws SiteWhereAgentException;
 
+	/**
+	 * Process a SiteWhere system command held in a region of a larger buffer. Allows the
+	 * message to be parsed without copying the inbound payload. By default the region is
+	 * copied and passed to {@link #processSiteWhereCommand(byte[], ISiteWhereEventDispatcher)}
+	 * so existing processors keep working.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @param dispatcher
+	 * @throws SiteWhereAgentException
+	 */
+	public default void processSiteWhereCommand(byte[] buffer, int offset, int length,
+			ISiteWhereEventDispatcher dispatcher) throws SiteWhereAgentException {
+		byte[] message = new byte[length];
+		System.arraycopy(buffer, offset, message, 0, length);
+		processSiteWhereCommand(message, dispatcher);
+	}
+
 	/**
 	 * Process a specification command.
 	 * 
@@ -37,4 +37,160 @@ public interface IAgentConfiguration {
 
 	/** Property for inbound command MQTT topic */
 	public static final String MQTT_INBOUND_COMMAND_TOPIC = "mqtt.inbound.command.topic";
+
+	/** Property for whether the broker discards session state on connect (true or false) */
+	public static final String MQTT_CLEAN_SESSION = "mqtt.clean.session";
+
+	/** Property for delay in milliseconds before the first reconnect attempt */
+	public static final String MQTT_RECONNECT_DELAY = "mqtt.reconnect.delay";
+
+	/** Property for maximum delay in milliseconds between reconnect attempts */
+	public static final String MQTT_RECONNECT_MAX_DELAY = "mqtt.reconnect.max.delay";
+
+	/** Property for number of outbound messages kept while disconnected */
+	public static final String MQTT_RETAINED_MAX = "mqtt.retained.max";
+
+	/** Property for number of command originator ids remembered for duplicate detection */
+	public static final String COMMAND_DUPLICATE_CACHE_SIZE = "command.duplicate.cache.size";
+
+	/** Property for maximum number of inbound messages drained per receive cycle */
+	public static final String MQTT_INBOUND_DRAIN_LIMIT = "mqtt.inbound.drain.limit";
+
+	/** Property for comma-separated list of extra classes allowed in hybrid command payloads */
+	public static final String COMMAND_HYBRID_ALLOWED_CLASSES = "command.hybrid.allowed.classes";
+
+	/** Property for maximum size in bytes of a hybrid command payload */
+	public static final String COMMAND_HYBRID_MAX_BYTES = "command.hybrid.max.bytes";
+
+	/** Property for default command execution timeout in milliseconds */
+	public static final String COMMAND_TIMEOUT_DEFAULT = "command.timeout.default";
+
+	/** Prefix for properties that set the execution timeout of a single command */
+	public static final String COMMAND_TIMEOUT_PREFIX = "command.timeout.";
+
+	/** Property for number of command results cached for replay (0 disables cache) */
+	public static final String COMMAND_RESULT_CACHE_SIZE = "command.result.cache.size";
+
+	/** Property for time in milliseconds a cached command result is kept */
+	public static final String COMMAND_RESULT_CACHE_TTL = "command.result.cache.ttl";
+
+	/** Property for chunk size in bytes used for device stream uploads */
+	public static final String STREAM_UPLOAD_CHUNK_SIZE = "stream.upload.chunk.size";
+
+	/** Property for number of device stream chunks in flight during uploads */
+	public static final String STREAM_UPLOAD_WINDOW = "stream.upload.window";
+
+	/** Property for number of device stream chunk requests outstanding during fetches */
+	public static final String STREAM_FETCH_WINDOW = "stream.fetch.window";
+
+	/** Property for time in milliseconds to wait for a requested device stream chunk */
+	public static final String STREAM_FETCH_TIMEOUT = "stream.fetch.timeout";
+
+	/** Property for file that records chunks already sent by incremental uploads */
+	public static final String STREAM_UPLOAD_INDEX = "stream.upload.index";
+
+	/** Property for window in milliseconds device registrations are spread over */
+	public static final String REGISTRATION_WINDOW = "registration.window";
+
+	/** Property for number of registrations waiting for acknowledgement at once */
+	public static final String REGISTRATION_MAX_OUTSTANDING = "registration.max.outstanding";
+
+	/** Property for time in milliseconds to wait for registration acknowledgement */
+	public static final String REGISTRATION_ACK_TIMEOUT = "registration.ack.timeout";
+
+	/** Property for maximum delay in milliseconds between registration attempts */
+	public static final String REGISTRATION_MAX_BACKOFF = "registration.max.backoff";
+
+	/** Property for file recording devices SiteWhere has acknowledged as registered */
+	public static final String REGISTRATION_STATE_FILE = "registration.state.file";
+
+	/** Property for time in milliseconds allowed for delivering outbound messages at shutdown */
+	public static final String SHUTDOWN_TIMEOUT = "shutdown.timeout";
+
+	/** Property for file outbound messages undelivered at shutdown are written to */
+	public static final String OUTBOUND_SPILL_FILE = "outbound.spill.file";
+
+	/** Property for tick in milliseconds that periodic telemetry is aligned to */
+	public static final String TELEMETRY_TICK = "telemetry.tick";
+
+	/** Property for quality of service of outbound messages (0, 1 or 2) */
+	public static final String MQTT_OUTBOUND_QOS = "mqtt.outbound.qos";
+
+	/** Property that indicates whether the configuration file is watched for changes */
+	public static final String CONFIG_WATCH = "config.watch";
+
+	/** Property for label of the configuration version logged when it is applied */
+	public static final String CONFIG_VERSION = "config.version";
+
+	/** Prefix for properties that set the level of a logger */
+	public static final String LOG_LEVEL_PREFIX = "log.level.";
+
+	/** Property for file listing devices run by one host process */
+	public static final String HOST_DEVICES_FILE = "host.devices.file";
+
+	/** Property for number of MQTT connections shared by hosted devices */
+	public static final String HOST_CONNECTIONS = "host.connections";
+
+	/** Property for number of threads that process messages for hosted devices */
+	public static final String HOST_THREADS = "host.threads";
+
+	/** Property for comma-separated list of host nodes sharing the device list */
+	public static final String HOST_SHARD_NODES = "host.shard.nodes";
+
+	/** Property for name of this node in the host node list */
+	public static final String HOST_SHARD_NODE = "host.shard.node";
+
+	/** Property for number of hash ring points per host node */
+	public static final String HOST_SHARD_VIRTUAL_NODES = "host.shard.virtual.nodes";
+
+	/** Property for run mode ('loadgen', 'replay' or 'train' run instead of the agent) */
+	public static final String AGENT_MODE = "agent.mode";
+
+	/** Run mode value that starts the load generator */
+	public static final String AGENT_MODE_LOADGEN = "loadgen";
+
+	/** Run mode value that replays a traffic recording */
+	public static final String AGENT_MODE_REPLAY = "replay";
+
+	/** Run mode value that runs the agent once to load classes for a startup archive */
+	public static final String AGENT_MODE_TRAIN = "train";
+
+	/** Property for number of virtual devices driven by the load generator */
+	public static final String LOADGEN_DEVICES = "loadgen.devices";
+
+	/** Property for total events per second sent by the load generator */
+	public static final String LOADGEN_RATE = "loadgen.rate";
+
+	/** Property for load generator run time in seconds */
+	public static final String LOADGEN_DURATION = "loadgen.duration";
+
+	/** Property for number of load generator connections and threads */
+	public static final String LOADGEN_THREADS = "loadgen.threads";
+
+	/** Property for relative weights of measurements, locations and alerts sent */
+	public static final String LOADGEN_MIX = "loadgen.mix";
+
+	/** Property for load generator value generator (sine, randomwalk or step) */
+	public static final String LOADGEN_GENERATOR = "loadgen.generator";
+
+	/** Property for period in milliseconds of periodic value generators */
+	public static final String LOADGEN_PERIOD = "loadgen.period";
+
+	/** Property for prefix of virtual device hardware ids */
+	public static final String LOADGEN_HARDWARE_PREFIX = "loadgen.hardware.prefix";
+
+	/** Property that indicates whether virtual devices are registered first */
+	public static final String LOADGEN_REGISTER = "loadgen.register";
+
+	/** Property for broker used by the load generator ('embedded' for an in-process broker) */
+	public static final String LOADGEN_BROKER = "loadgen.broker";
+
+	/** Property for file MQTT traffic is recorded to or replayed from */
+	public static final String RECORDING_FILE = "recording.file";
+
+	/** Property for replay speed relative to the recording (0 for as fast as possible) */
+	public static final String REPLAY_SPEED = "replay.speed";
+
+	/** Property for how a recording is replayed (publish or dispatch) */
+	public static final String REPLAY_MODE = "replay.mode";
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.List;
+
+/**
+ * Optional extension for command processors that can handle a group of specification
+ * commands at once. When the inbound processor drains several messages in one receive
+ * cycle, consecutive specification commands are passed here as a single batch.
+ * 
+ * @author Derek
+ */
+public interface IBatchCommandProcessor extends IAgentCommandProcessor {
+
+	/**
+	 * Process a batch of specification commands in the order they were received.
+	 * 
+	 * @param messages
+	 * @param dispatcher
+	 * @throws SiteWhereAgentException
+	 */
+	public void processSpecificationCommands(List<byte[]> messages, ISiteWhereEventDispatcher dispatcher)
+			throws SiteWhereAgentException;
+}
\ No newline at end of file
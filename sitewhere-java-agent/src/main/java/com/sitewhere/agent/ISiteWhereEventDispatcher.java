@@ -63,4 +63,42 @@ public interface ISiteWhereEventDispatcher {
 	 * @throws SiteWhereAgentException
 	 */
 	public void sendAlert(Model.DeviceAlert alert, String originator) throws SiteWhereAgentException;
+
+	/**
+	 * Create a device stream. Not supported unless implemented by the dispatcher.
+	 * 
+	 * @param stream
+	 * @param originator
+	 * @throws SiteWhereAgentException
+	 */
+	public default void createDeviceStream(Model.DeviceStream stream, String originator)
+			throws SiteWhereAgentException {
+		throw new SiteWhereAgentException("Device streams are not supported by this dispatcher.");
+	}
+
+	/**
+	 * Send a chunk of data for a device stream. Not supported unless implemented by the
+	 * dispatcher.
+	 * 
+	 * @param data
+	 * @param originator
+	 * @throws SiteWhereAgentException
+	 */
+	public default void sendDeviceStreamData(Model.DeviceStreamData data, String originator)
+			throws SiteWhereAgentException {
+		throw new SiteWhereAgentException("Device streams are not supported by this dispatcher.");
+	}
+
+	/**
+	 * Request a chunk of data for a device stream. Not supported unless implemented by the
+	 * dispatcher.
+	 * 
+	 * @param request
+	 * @param originator
+	 * @throws SiteWhereAgentException
+	 */
+	public default void requestDeviceStreamData(SiteWhere.DeviceStreamDataRequest request, String originator)
+			throws SiteWhereAgentException {
+		throw new SiteWhereAgentException("Device streams are not supported by this dispatcher.");
+	}
 }
\ No newline at end of file
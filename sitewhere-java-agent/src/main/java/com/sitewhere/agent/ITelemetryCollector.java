@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.Map;
+
+/**
+ * Takes periodic readings for a device. Collectors are run by the
+ * {@link TelemetryScheduler} and readings of collectors due on the same tick are sent
+ * together.
+ * 
+ * @author Derek
+ */
+public interface ITelemetryCollector {
+
+	/**
+	 * Take readings and add them to the given map by measurement name. Called from the
+	 * scheduler thread, so collectors should not block.
+	 * 
+	 * @param readings
+	 * @throws SiteWhereAgentException
+	 */
+	public void collect(Map<String, Double> readings) throws SiteWhereAgentException;
+}
\ No newline at end of file
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.MQTT;
+
+/**
+ * Keeps an MQTT connection open. The reconnect logic built into the client library is
+ * disabled so that a dropped connection is reported to the agent, which then asks the
+ * supervisor for a new connection. The first connect is attempted once so that a
+ * misconfigured broker fails startup instead of blocking it. Reconnect attempts are
+ * spaced by an exponential backoff with jitter so that many agents losing the same
+ * broker do not reconnect in step. Once connected, the listener restores subscriptions
+ * and resends retained messages before the new connection is handed out.
+ * 
+ * Reconnects are counted and the time spent disconnected is accumulated so outages can
+ * be reported.
+ * 
+ * @author Derek
+ */
+public class MqttConnectionSupervisor {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(MqttConnectionSupervisor.class.getName());
+
+	/** Default delay in milliseconds before the first reconnect attempt */
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+	/** Default maximum delay in milliseconds between reconnect attempts */
+	public static final long DEFAULT_MAX_DELAY = 60 * 1000;
+
+	/** MQTT client settings */
+	private final MQTT mqtt;
+
+	/** Name used in log messages */
+	private final String name;
+
+	/** Called each time a connection is established */
+	private volatile Listener listener;
+
+	/** Current connection */
+	private volatile BlockingConnection connection;
+
+	/** Indicates current connection is believed to be open */
+	private volatile boolean connected;
+
+	/** Indicates supervisor was stopped */
+	private volatile boolean stopped;
+
+	/** Delay in milliseconds before the first reconnect attempt */
+	private volatile long initialDelay = DEFAULT_INITIAL_DELAY;
+
+	/** Maximum delay in milliseconds between reconnect attempts */
+	private volatile long maxDelay = DEFAULT_MAX_DELAY;
+
+	/** Value of nanosecond clock when connection was lost */
+	private volatile long disconnectedAt;
+
+	/** Number of successful reconnects */
+	private volatile long reconnectCount;
+
+	/** Total time in nanoseconds spent disconnected before reconnecting */
+	private volatile long downtime;
+
+	public MqttConnectionSupervisor(MQTT mqtt, String name) {
+		this.mqtt = mqtt;
+		this.name = name;
+		mqtt.setConnectAttemptsMax(1);
+		mqtt.setReconnectAttemptsMax(0);
+	}
+
+	/**
+	 * Connect for the first time. The connection is attempted once and a failure is
+	 * reported to the caller, so an unreachable or misconfigured broker does not block
+	 * startup. Only connections that were established are retried when they drop.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public synchronized BlockingConnection connect() throws Exception {
+		BlockingConnection candidate = mqtt.blockingConnection();
+		try {
+			candidate.connect();
+			connection = candidate;
+			Listener current = getListener();
+			if (current != null) {
+				current.connected(candidate);
+			}
+		} catch (Exception e) {
+			close(candidate);
+			throw e;
+		}
+		connected = true;
+		return candidate;
+	}
+
+	/**
+	 * Replace a connection that failed. Blocks until a new connection is established. If
+	 * another thread already replaced the failed connection, the current connection is
+	 * returned at once.
+	 * 
+	 * @param failed
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public synchronized BlockingConnection reconnect(BlockingConnection failed)
+			throws InterruptedException {
+		if ((failed != connection) || stopped) {
+			return connection;
+		}
+		connectionLost(failed);
+		LOGGER.warning("Lost " + name + ". Reconnecting...");
+		close(failed);
+		return establish();
+	}
+
+	/**
+	 * Release a failed connection. Connections that never connected have nothing to
+	 * release.
+	 * 
+	 * @param failed
+	 */
+	protected void close(BlockingConnection failed) {
+		if (!failed.isConnected()) {
+			return;
+		}
+		try {
+			failed.kill();
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Unable to close failed connection.", e);
+		}
+	}
+
+	/**
+	 * Note that a connection failed without waiting for it to be replaced. Used by threads
+	 * that should not block while the connection is down.
+	 * 
+	 * @param failed
+	 */
+	public void connectionLost(BlockingConnection failed) {
+		if ((failed == connection) && connected) {
+			connected = false;
+			disconnectedAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Attempt to reconnect until successful or stopped.
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 */
+	protected BlockingConnection establish() throws InterruptedException {
+		int attempts = 0;
+		while (!stopped) {
+			long backoff = Math.min(getInitialDelay() << Math.min(attempts, 20), getMaxDelay());
+			backoff = Math.max(backoff, 2);
+			long delay = (backoff / 2) + ThreadLocalRandom.current().nextLong(backoff / 2);
+			TimeUnit.MILLISECONDS.sleep(delay);
+			attempts++;
+			BlockingConnection candidate = mqtt.blockingConnection();
+			try {
+				candidate.connect();
+				connection = candidate;
+				Listener current = getListener();
+				if (current != null) {
+					current.connected(candidate);
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "Connect attempt " + attempts + " for " + name + " failed.", e);
+
+				// Log only on powers of two so a long outage does not flood the log.
+				if (Integer.bitCount(attempts) == 1) {
+					LOGGER.warning("Unable to connect " + name + " after " + attempts + " attempts: "
+							+ e.getMessage());
+				}
+				close(candidate);
+				continue;
+			}
+			connected = true;
+			long outage = System.nanoTime() - disconnectedAt;
+			downtime += outage;
+			reconnectCount++;
+			LOGGER.info("Reconnected " + name + " after " + TimeUnit.NANOSECONDS.toMillis(outage) + " ms ("
+					+ attempts + " attempts). Reconnects: " + reconnectCount + ", total downtime: "
+					+ TimeUnit.NANOSECONDS.toMillis(downtime) + " ms.");
+			return candidate;
+		}
+		return connection;
+	}
+
+	/**
+	 * Stop reconnecting and disconnect.
+	 */
+	public void stop() {
+		stopped = true;
+		BlockingConnection current = connection;
+		if ((current != null) && current.isConnected()) {
+			try {
+				current.disconnect();
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Exception disconnecting " + name + ".", e);
+			}
+		}
+		connected = false;
+		if (reconnectCount > 0) {
+			LOGGER.info(name + " reconnected " + reconnectCount + " times with " + getDowntime()
+					+ " ms total downtime.");
+		}
+	}
+
+	/**
+	 * Get total time in milliseconds spent disconnected, including any current outage.
+	 * 
+	 * @return
+	 */
+	public long getDowntime() {
+		long total = downtime;
+		if (!connected && !stopped && (connection != null)) {
+			total += System.nanoTime() - disconnectedAt;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(total);
+	}
+
+	public BlockingConnection getConnection() {
+		return connection;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	public long getReconnectCount() {
+		return reconnectCount;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	public void setInitialDelay(long initialDelay) {
+		this.initialDelay = initialDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Called each time a connection is established, before it is used by the agent.
+	 * 
+	 * @author Derek
+	 */
+	public static interface Listener {
+
+		/**
+		 * Restore state (subscriptions, retained messages) on a new connection. Throwing
+		 * an exception causes the connection to be retried.
+		 * 
+		 * @param connection
+		 * @throws Exception
+		 */
+		public void connected(BlockingConnection connection) throws Exception;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * File holding outbound messages that could not be delivered before shutdown. Messages
+ * are appended as length-prefixed frames in the order they were meant to be sent and are
+ * read back on the next start. The file is only cleared once the restored messages have
+ * been delivered, so a crash or failed connect before then does not lose them. A frame
+ * cut short by a crash ends the file.
+ * 
+ * @author Derek
+ */
+public class OutboundSpool {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(OutboundSpool.class.getName());
+
+	/** Default spool file */
+	public static final String DEFAULT_FILE = "outbound-spill.dat";
+
+	/** File frames are stored in */
+	private final File file;
+
+	public OutboundSpool(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Append frames to the spool file.
+	 * 
+	 * @param frames
+	 * @throws IOException
+	 */
+	public synchronized void append(Collection<byte[]> frames) throws IOException {
+		if (frames.isEmpty()) {
+			return;
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		try {
+			for (byte[] frame : frames) {
+				out.writeInt(frame.length);
+				out.write(frame);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Replace the contents of the spool file with the given frames. The file is written
+	 * under a temporary name and moved into place so a crash leaves either the old or the
+	 * new contents.
+	 * 
+	 * @param frames
+	 * @throws IOException
+	 */
+	public synchronized void replace(Collection<byte[]> frames) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			for (byte[] frame : frames) {
+				out.writeInt(frame.length);
+				out.write(frame);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read all frames. The spool file is left in place until {@link #clear()} is called.
+	 * 
+	 * @return frames in the order they were appended
+	 * @throws IOException
+	 */
+	public synchronized List<byte[]> read() throws IOException {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		if (!file.exists()) {
+			return frames;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length < 0) {
+					LOGGER.warning("Skipping corrupt outbound spool entry in " + file.getAbsolutePath());
+					break;
+				}
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				frames.add(frame);
+			}
+		} catch (EOFException e) {
+			// End of file or frame cut short.
+		} finally {
+			in.close();
+		}
+		return frames;
+	}
+
+	/**
+	 * Delete the spool file once its frames have been delivered.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void clear() throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to delete outbound spool file " + file.getAbsolutePath());
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Encodes and decodes specification commands in a compact protocol buffers envelope as
+ * an alternative to the hybrid (Java serialized) format. The wire format corresponds to:
+ * 
+ * <pre>
+ * message SpecificationCommand {
+ *   required string command = 1;
+ *   repeated Parameter parameter = 2;
+ *   optional string originator = 3;
+ * }
+ * 
+ * message Parameter {
+ *   optional string string_value = 1;
+ *   optional sint64 long_value = 2;
+ *   optional double double_value = 3;
+ *   optional bool bool_value = 4;
+ *   optional bytes bytes_value = 5;
+ *   optional sint32 int_value = 6;
+ *   optional float float_value = 7;
+ * }
+ * </pre>
+ * 
+ * Exactly one value field is set on each parameter. Known fields with an unexpected wire
+ * type are rejected. Payloads in the hybrid format always start with the Java
+ * serialization stream magic, so the two can be told apart from the first bytes.
+ * 
+ * @author Derek
+ */
+public class ProtobufCommandCodec {
+
+	/** First byte of Java serialization stream magic */
+	private static final int SERIALIZATION_MAGIC_0 = 0xAC;
+
+	/** Second byte of Java serialization stream magic */
+	private static final int SERIALIZATION_MAGIC_1 = 0xED;
+
+	/** Mask of the wire type bits of a tag */
+	private static final int WIRE_TYPE_MASK = 0x7;
+
+	/** Command envelope fields */
+	private static final int FIELD_COMMAND = 1;
+	private static final int FIELD_PARAMETER = 2;
+	private static final int FIELD_ORIGINATOR = 3;
+
+	/** Parameter value fields */
+	private static final int FIELD_STRING = 1;
+	private static final int FIELD_LONG = 2;
+	private static final int FIELD_DOUBLE = 3;
+	private static final int FIELD_BOOL = 4;
+	private static final int FIELD_BYTES = 5;
+	private static final int FIELD_INT = 6;
+	private static final int FIELD_FLOAT = 7;
+
+	/**
+	 * Indicates whether a payload is in the hybrid (Java serialized) format rather than
+	 * the protobuf envelope.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static boolean isHybrid(byte[] message) {
+		return (message.length >= 2) && ((message[0] & 0xff) == SERIALIZATION_MAGIC_0)
+				&& ((message[1] & 0xff) == SERIALIZATION_MAGIC_1);
+	}
+
+	/**
+	 * Decode a command from a protobuf envelope.
+	 * 
+	 * @param message
+	 * @return
+	 * @throws IOException
+	 */
+	public static SpecificationCommand decode(byte[] message) throws IOException {
+		return decode(message, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Decode a command from a protobuf envelope no larger than the given size.
+	 * 
+	 * @param message
+	 * @param maxBytes maximum payload size in bytes
+	 * @return
+	 * @throws IOException
+	 */
+	public static SpecificationCommand decode(byte[] message, int maxBytes) throws IOException {
+		if (message.length > maxBytes) {
+			throw new InvalidProtocolBufferException(
+					"Command payload of " + message.length + " bytes exceeds limit of " + maxBytes + " bytes.");
+		}
+		CodedInputStream in = CodedInputStream.newInstance(message);
+		String command = null;
+		String originator = null;
+		List<Object> parameters = new ArrayList<Object>();
+		while (true) {
+			int tag = in.readTag();
+			if (tag == 0) {
+				break;
+			}
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case FIELD_COMMAND: {
+				checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				command = in.readString();
+				break;
+			}
+			case FIELD_PARAMETER: {
+				checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				int limit = in.pushLimit(in.readRawVarint32());
+				parameters.add(readParameter(in));
+				in.popLimit(limit);
+				break;
+			}
+			case FIELD_ORIGINATOR: {
+				checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				originator = in.readString();
+				break;
+			}
+			default: {
+				in.skipField(tag);
+			}
+			}
+		}
+		if (command == null) {
+			throw new InvalidProtocolBufferException("Command name missing from protobuf command.");
+		}
+		return new SpecificationCommand(command, parameters.toArray(),
+				(originator != null) ? new AgentEventOriginator(originator) : null);
+	}
+
+	/**
+	 * Read a single parameter value. The stream is limited to the parameter message.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	protected static Object readParameter(CodedInputStream in) throws IOException {
+		Object value = null;
+		while (true) {
+			int tag = in.readTag();
+			if (tag == 0) {
+				break;
+			}
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case FIELD_STRING: {
+				checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				value = in.readString();
+				break;
+			}
+			case FIELD_LONG: {
+				checkWireType(tag, WireFormat.WIRETYPE_VARINT);
+				value = in.readSInt64();
+				break;
+			}
+			case FIELD_DOUBLE: {
+				checkWireType(tag, WireFormat.WIRETYPE_FIXED64);
+				value = in.readDouble();
+				break;
+			}
+			case FIELD_BOOL: {
+				checkWireType(tag, WireFormat.WIRETYPE_VARINT);
+				value = in.readBool();
+				break;
+			}
+			case FIELD_BYTES: {
+				checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				value = in.readBytes().toByteArray();
+				break;
+			}
+			case FIELD_INT: {
+				checkWireType(tag, WireFormat.WIRETYPE_VARINT);
+				value = in.readSInt32();
+				break;
+			}
+			case FIELD_FLOAT: {
+				checkWireType(tag, WireFormat.WIRETYPE_FIXED32);
+				value = in.readFloat();
+				break;
+			}
+			default: {
+				in.skipField(tag);
+			}
+			}
+		}
+		if (value == null) {
+			throw new InvalidProtocolBufferException("Parameter value missing from protobuf command.");
+		}
+		return value;
+	}
+
+	/**
+	 * Verify that a field was encoded with the expected wire type.
+	 * 
+	 * @param tag
+	 * @param wireType
+	 * @throws InvalidProtocolBufferException
+	 */
+	protected static void checkWireType(int tag, int wireType) throws InvalidProtocolBufferException {
+		if ((tag & WIRE_TYPE_MASK) != wireType) {
+			throw new InvalidProtocolBufferException("Field " + WireFormat.getTagFieldNumber(tag)
+					+ " of protobuf command has wire type " + (tag & WIRE_TYPE_MASK) + ", expected " + wireType + ".");
+		}
+	}
+
+	/**
+	 * Encode a command as a protobuf envelope.
+	 * 
+	 * @param commandName
+	 * @param parameters
+	 * @param originator
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] encode(String commandName, Object[] parameters, IDeviceEventOriginator originator)
+			throws IOException {
+		String eventId = (originator != null) ? originator.getEventId() : null;
+		int size = CodedOutputStream.computeStringSize(FIELD_COMMAND, commandName);
+		for (Object parameter : parameters) {
+			int parameterSize = computeParameterSize(parameter);
+			size += CodedOutputStream.computeTagSize(FIELD_PARAMETER)
+					+ CodedOutputStream.computeRawVarint32Size(parameterSize) + parameterSize;
+		}
+		if (eventId != null) {
+			size += CodedOutputStream.computeStringSize(FIELD_ORIGINATOR, eventId);
+		}
+		byte[] result = new byte[size];
+		CodedOutputStream out = CodedOutputStream.newInstance(result);
+		out.writeString(FIELD_COMMAND, commandName);
+		for (Object parameter : parameters) {
+			out.writeTag(FIELD_PARAMETER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			out.writeRawVarint32(computeParameterSize(parameter));
+			writeParameter(out, parameter);
+		}
+		if (eventId != null) {
+			out.writeString(FIELD_ORIGINATOR, eventId);
+		}
+		out.checkNoSpaceLeft();
+		return result;
+	}
+
+	/**
+	 * Compute encoded size of a parameter message.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	protected static int computeParameterSize(Object value) {
+		if (value instanceof String) {
+			return CodedOutputStream.computeStringSize(FIELD_STRING, (String) value);
+		} else if (value instanceof Long) {
+			return CodedOutputStream.computeSInt64Size(FIELD_LONG, (Long) value);
+		} else if (value instanceof Double) {
+			return CodedOutputStream.computeDoubleSize(FIELD_DOUBLE, (Double) value);
+		} else if (value instanceof Boolean) {
+			return CodedOutputStream.computeBoolSize(FIELD_BOOL, (Boolean) value);
+		} else if (value instanceof byte[]) {
+			int length = ((byte[]) value).length;
+			return CodedOutputStream.computeTagSize(FIELD_BYTES) + CodedOutputStream.computeRawVarint32Size(length)
+					+ length;
+		} else if (value instanceof Integer) {
+			return CodedOutputStream.computeSInt32Size(FIELD_INT, (Integer) value);
+		} else if (value instanceof Float) {
+			return CodedOutputStream.computeFloatSize(FIELD_FLOAT, (Float) value);
+		}
+		throw new IllegalArgumentException("Unsupported parameter type for protobuf command: "
+				+ ((value != null) ? value.getClass().getName() : "null"));
+	}
+
+	/**
+	 * Write fields of a parameter message.
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	protected static void writeParameter(CodedOutputStream out, Object value) throws IOException {
+		if (value instanceof String) {
+			out.writeString(FIELD_STRING, (String) value);
+		} else if (value instanceof Long) {
+			out.writeSInt64(FIELD_LONG, (Long) value);
+		} else if (value instanceof Double) {
+			out.writeDouble(FIELD_DOUBLE, (Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeBool(FIELD_BOOL, (Boolean) value);
+		} else if (value instanceof byte[]) {
+			out.writeTag(FIELD_BYTES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			out.writeRawVarint32(((byte[]) value).length);
+			out.writeRawBytes((byte[]) value);
+		} else if (value instanceof Integer) {
+			out.writeSInt32(FIELD_INT, (Integer) value);
+		} else if (value instanceof Float) {
+			out.writeFloat(FIELD_FLOAT, (Float) value);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces device registrations so that many devices starting together do not flood
+ * SiteWhere with registration requests. Each registration is delayed by a random amount
+ * within a configurable window, at most a fixed number of registrations wait for an
+ * acknowledgement at once, and registrations that are not acknowledged in time are
+ * sent again after an exponential backoff with jitter.
+ * 
+ * Registrations are keyed by hardware id, so scheduling a device again replaces any
+ * registration still pending for it. Timing uses the shared {@link HashedWheelTimer} and
+ * messages are sent from a single background thread so the timer is never blocked.
+ * 
+ * @author Derek
+ */
+public class RegistrationScheduler {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(RegistrationScheduler.class.getName());
+
+	/** Default window in milliseconds registrations are spread over */
+	public static final long DEFAULT_WINDOW = 0;
+
+	/** Default number of registrations waiting for acknowledgement at once */
+	public static final int DEFAULT_MAX_OUTSTANDING = 100;
+
+	/** Default time in milliseconds to wait for acknowledgement (0 to never retry) */
+	public static final long DEFAULT_ACK_TIMEOUT = 10 * 1000;
+
+	/** Default maximum delay in milliseconds between attempts */
+	public static final long DEFAULT_MAX_BACKOFF = 5 * 60 * 1000;
+
+	/** Timer for start delays and acknowledgement timeouts */
+	private final HashedWheelTimer timer;
+
+	/** Registrations not yet acknowledged by hardware id */
+	private final Map<String, Registration> registrations = new HashMap<String, Registration>();
+
+	/** Registrations due to be sent once an outstanding slot is free */
+	private final Deque<Registration> ready = new ArrayDeque<Registration>();
+
+	/** Sends registrations so the timer thread is not blocked */
+	private ExecutorService sender;
+
+	/** Number of registrations waiting for acknowledgement */
+	private int outstanding;
+
+	/** Window in milliseconds registrations are spread over */
+	private volatile long window = DEFAULT_WINDOW;
+
+	/** Number of registrations waiting for acknowledgement at once */
+	private volatile int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+
+	/** Time in milliseconds to wait for acknowledgement (0 to never retry) */
+	private volatile long ackTimeout = DEFAULT_ACK_TIMEOUT;
+
+	/** Maximum delay in milliseconds between attempts */
+	private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+	/** Number of registration messages sent */
+	private long sentCount;
+
+	/** Number of registration messages sent again after a timeout */
+	private long retryCount;
+
+	/** Number of registrations acknowledged */
+	private long acknowledgedCount;
+
+	public RegistrationScheduler() {
+		this(HashedWheelTimer.getShared());
+	}
+
+	public RegistrationScheduler(HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Schedule registration of a device. Returns immediately and the registration is sent
+	 * from a background thread.
+	 * 
+	 * @param processor
+	 * @param hardwareId
+	 * @param specificationToken
+	 */
+	public void schedule(BaseCommandProcessor processor, String hardwareId, String specificationToken) {
+		final Registration registration = new Registration(processor, hardwareId, specificationToken);
+		synchronized (this) {
+			Registration previous = registrations.put(hardwareId, registration);
+			if (previous != null) {
+				release(previous);
+			}
+		}
+		long delay = (getWindow() > 0) ? ThreadLocalRandom.current().nextLong(getWindow()) : 0;
+		if (delay > 0) {
+			timer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					enqueue(registration);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} else {
+			enqueue(registration);
+		}
+	}
+
+	/**
+	 * Called when SiteWhere acknowledges the registration of a device.
+	 * 
+	 * @param hardwareId
+	 */
+	public synchronized void acknowledged(String hardwareId) {
+		Registration registration = registrations.remove(hardwareId);
+		if (registration == null) {
+			return;
+		}
+		release(registration);
+		acknowledgedCount++;
+		if (registration.attempts > 1) {
+			LOGGER.info("Registration of " + hardwareId + " acknowledged after " + registration.attempts
+					+ " attempts.");
+		}
+		drain();
+	}
+
+	/**
+	 * Add a registration to those waiting for an outstanding slot.
+	 * 
+	 * @param registration
+	 */
+	protected synchronized void enqueue(Registration registration) {
+		if (registrations.get(registration.hardwareId) != registration) {
+			return;
+		}
+		ready.add(registration);
+		drain();
+	}
+
+	/**
+	 * Send waiting registrations while there are free outstanding slots.
+	 */
+	protected synchronized void drain() {
+		while ((outstanding < Math.max(getMaxOutstanding(), 1)) && !ready.isEmpty()) {
+			final Registration registration = ready.poll();
+			registration.inFlight = true;
+			registration.attempts++;
+			outstanding++;
+			sentCount++;
+			if (registration.attempts > 1) {
+				retryCount++;
+			}
+			getSender().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					send(registration);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Send a registration and start its acknowledgement timeout.
+	 * 
+	 * @param registration
+	 */
+	protected void send(final Registration registration) {
+		if (getAckTimeout() > 0) {
+			registration.timeout = timer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					onAckTimeout(registration);
+				}
+			}, getAckTimeout(), TimeUnit.MILLISECONDS);
+		}
+		try {
+			registration.processor.sendRegistrationMessage(registration.hardwareId,
+					registration.specificationToken);
+		} catch (SiteWhereAgentException e) {
+			LOGGER.log(Level.WARNING, "Unable to send registration for " + registration.hardwareId + ".", e);
+		}
+
+		// Without retries the slot is freed as soon as the message is sent.
+		if (getAckTimeout() <= 0) {
+			synchronized (this) {
+				if (registrations.get(registration.hardwareId) == registration) {
+					registrations.remove(registration.hardwareId);
+					release(registration);
+					drain();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called by the timer when a registration was not acknowledged in time. The
+	 * registration is sent again after a backoff that doubles with each attempt.
+	 * 
+	 * @param registration
+	 */
+	protected void onAckTimeout(final Registration registration) {
+		long delay;
+		int attempts;
+		synchronized (this) {
+			if ((registrations.get(registration.hardwareId) != registration) || !registration.inFlight) {
+				return;
+			}
+			release(registration);
+			drain();
+			attempts = registration.attempts;
+			long backoff = getAckTimeout() << Math.min(attempts - 1, 20);
+			backoff = Math.max(Math.min(backoff, getMaxBackoff()), 2);
+			delay = (backoff / 2) + ThreadLocalRandom.current().nextLong(backoff / 2);
+		}
+		LOGGER.warning("Registration of " + registration.hardwareId + " not acknowledged after attempt "
+				+ attempts + ". Retrying in " + delay + " ms.");
+		timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				enqueue(registration);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Free the outstanding slot and timeout held by a registration.
+	 * 
+	 * @param registration
+	 */
+	protected synchronized void release(Registration registration) {
+		HashedWheelTimer.Timeout timeout = registration.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		if (registration.inFlight) {
+			registration.inFlight = false;
+			outstanding--;
+		} else {
+			ready.remove(registration);
+		}
+	}
+
+	/**
+	 * Stop sending registrations. Registrations not yet acknowledged are discarded.
+	 */
+	public synchronized void stop() {
+		for (Registration registration : registrations.values()) {
+			release(registration);
+		}
+		registrations.clear();
+		if (sender != null) {
+			sender.shutdownNow();
+			sender = null;
+		}
+	}
+
+	/**
+	 * Get executor used for sending registrations.
+	 * 
+	 * @return
+	 */
+	protected synchronized ExecutorService getSender() {
+		if (sender == null) {
+			sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "SiteWhere registration");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sender;
+	}
+
+	/**
+	 * Get number of registrations not yet acknowledged.
+	 * 
+	 * @return
+	 */
+	public synchronized int getPendingCount() {
+		return registrations.size();
+	}
+
+	public synchronized int getOutstandingCount() {
+		return outstanding;
+	}
+
+	public synchronized long getSentCount() {
+		return sentCount;
+	}
+
+	public synchronized long getRetryCount() {
+		return retryCount;
+	}
+
+	public synchronized long getAcknowledgedCount() {
+		return acknowledgedCount;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	public int getMaxOutstanding() {
+		return maxOutstanding;
+	}
+
+	public void setMaxOutstanding(int maxOutstanding) {
+		this.maxOutstanding = maxOutstanding;
+	}
+
+	public long getAckTimeout() {
+		return ackTimeout;
+	}
+
+	public void setAckTimeout(long ackTimeout) {
+		this.ackTimeout = ackTimeout;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Registration of a single device.
+	 * 
+	 * @author Derek
+	 */
+	protected static class Registration {
+
+		/** Processor that sends the registration */
+		private final BaseCommandProcessor processor;
+
+		/** Hardware id of device */
+		private final String hardwareId;
+
+		/** Specification token of device */
+		private final String specificationToken;
+
+		/** Number of times registration was sent */
+		private int attempts;
+
+		/** Indicates registration holds an outstanding slot */
+		private boolean inFlight;
+
+		/** Acknowledgement timeout of current attempt */
+		private volatile HashedWheelTimer.Timeout timeout;
+
+		public Registration(BaseCommandProcessor processor, String hardwareId, String specificationToken) {
+			this.processor = processor;
+			this.hardwareId = hardwareId;
+			this.specificationToken = specificationToken;
+		}
+	}
+}
\ No newline at end of file
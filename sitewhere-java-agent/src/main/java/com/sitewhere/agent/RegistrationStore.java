@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Local record of devices SiteWhere has acknowledged as registered, so a restarted
+ * device can start sending events at once and confirm its registration in the
+ * background. Each line holds a hardware id, the specification token it was registered
+ * with and the time of the acknowledgement, separated by spaces. Ids and tokens are URL
+ * encoded so they never contain a space themselves. A line holding only a hardware id
+ * removes the device. Lines are appended only when the state of a device changes, and
+ * the file is compacted when loaded if most lines are out of date.
+ * 
+ * @author Derek
+ */
+public class RegistrationStore {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(RegistrationStore.class.getName());
+
+	/** Default registration state file */
+	public static final String DEFAULT_FILE = "registration-state.idx";
+
+	/** File entries are stored in */
+	private final File file;
+
+	/** Encoded specification token and acknowledgement time of each device by hardware id */
+	private final Map<String, String> registrations = new HashMap<String, String>();
+
+	/** Appends entries to file */
+	private Writer writer;
+
+	/** Indicates whether file has been loaded */
+	private boolean loaded;
+
+	public RegistrationStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Indicates whether a device was registered with the given specification token.
+	 * 
+	 * @param hardwareId
+	 * @param specificationToken
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized boolean isRegistered(String hardwareId, String specificationToken)
+			throws IOException {
+		load();
+		String entry = registrations.get(hardwareId);
+		return (entry != null) && entry.startsWith(encode(specificationToken) + " ");
+	}
+
+	/**
+	 * Record that SiteWhere acknowledged the registration of a device.
+	 * 
+	 * @param hardwareId
+	 * @param specificationToken
+	 * @throws IOException
+	 */
+	public synchronized void registered(String hardwareId, String specificationToken) throws IOException {
+		if (isRegistered(hardwareId, specificationToken)) {
+			return;
+		}
+		String entry = encode(specificationToken) + " " + System.currentTimeMillis();
+		append(encode(hardwareId) + " " + entry);
+		registrations.put(hardwareId, entry);
+	}
+
+	/**
+	 * Forget the registration of a device, for instance after SiteWhere rejected it.
+	 * 
+	 * @param hardwareId
+	 * @throws IOException
+	 */
+	public synchronized void invalidate(String hardwareId) throws IOException {
+		load();
+		if (!registrations.containsKey(hardwareId)) {
+			return;
+		}
+		append(encode(hardwareId));
+		registrations.remove(hardwareId);
+	}
+
+	/**
+	 * Get number of registered devices.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized int size() throws IOException {
+		load();
+		return registrations.size();
+	}
+
+	/**
+	 * Close the state file.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Append a line to the state file.
+	 * 
+	 * @param line
+	 * @throws IOException
+	 */
+	protected void append(String line) throws IOException {
+		if (writer == null) {
+			writer = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		}
+		writer.write(line + "\n");
+		writer.flush();
+	}
+
+	/**
+	 * Load entries from file on first use. Malformed lines (for instance a line cut short
+	 * by a crash) are skipped.
+	 * 
+	 * @throws IOException
+	 */
+	protected void load() throws IOException {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (!file.exists()) {
+			return;
+		}
+		int lines = 0;
+		BufferedReader reader =
+				new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines++;
+				String[] fields = line.split(" ");
+				try {
+					if (fields.length == 1) {
+						registrations.remove(decode(fields[0]));
+						continue;
+					} else if (fields.length == 3) {
+						Long.parseLong(fields[2]);
+						registrations.put(decode(fields[0]), fields[1] + " " + fields[2]);
+						continue;
+					}
+				} catch (IllegalArgumentException e) {
+					// Reported as malformed below.
+				}
+				LOGGER.warning("Skipping malformed registration state entry: " + line);
+			}
+		} finally {
+			reader.close();
+		}
+		if (lines > (2 * registrations.size()) + 16) {
+			compact();
+		}
+		LOGGER.info("Loaded saved registration state for " + registrations.size() + " devices.");
+	}
+
+	/**
+	 * Rewrite the state file with only current entries. The file is written under a
+	 * temporary name and moved into place so a crash never loses saved state.
+	 * 
+	 * @throws IOException
+	 */
+	protected void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Writer out =
+				new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+		try {
+			for (Map.Entry<String, String> entry : registrations.entrySet()) {
+				out.write(encode(entry.getKey()) + " " + entry.getValue() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Encode a field so that it contains no spaces or line breaks.
+	 * 
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	protected static String encode(String value) throws IOException {
+		return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+	}
+
+	/**
+	 * Decode a field written by {@link #encode(String)}.
+	 * 
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the field is not validly encoded
+	 */
+	protected static String decode(String value) throws IOException {
+		return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Specification command decoded from an inbound payload.
+ * 
+ * @author Derek
+ */
+public class SpecificationCommand {
+
+	/** Command name */
+	private final String commandName;
+
+	/** Parameter values in declaration order */
+	private final Object[] parameters;
+
+	/** Originating command event */
+	private final IDeviceEventOriginator originator;
+
+	public SpecificationCommand(String commandName, Object[] parameters, IDeviceEventOriginator originator) {
+		this.commandName = commandName;
+		this.parameters = parameters;
+		this.originator = originator;
+	}
+
+	public String getCommandName() {
+		return commandName;
+	}
+
+	public Object[] getParameters() {
+		return parameters;
+	}
+
+	public IDeviceEventOriginator getOriginator() {
+		return originator;
+	}
+}
\ No newline at end of file
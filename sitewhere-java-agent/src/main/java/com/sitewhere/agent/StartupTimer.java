@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures the time spent in each startup phase and logs a summary once the first
+ * message has been published. Phases run one after another, so beginning a phase ends
+ * the previous one. Only the first publish is reported, so later calls cost a single
+ * volatile read.
+ * 
+ * @author Derek
+ */
+public class StartupTimer {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(StartupTimer.class.getName());
+
+	/** Phase that reads the configuration */
+	public static final String CONFIG_LOAD = "config load";
+
+	/** Phase that connects to the MQTT broker */
+	public static final String MQTT_CONNECT = "MQTT connect";
+
+	/** Phase that creates and configures command processors */
+	public static final String PROCESSOR_INSTANTIATION = "processor instantiation";
+
+	/** Text that precedes the time of the first publish in the summary */
+	public static final String FIRST_PUBLISH = "first publish after ";
+
+	/** Timer shared by the agent */
+	private static final StartupTimer SHARED = new StartupTimer();
+
+	/** Value of nanosecond clock when timer was created */
+	private final long origin = System.nanoTime();
+
+	/** Nanoseconds spent in each completed phase, in the order phases began */
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+	/** Phase in progress (null if none) */
+	private String phase;
+
+	/** Value of nanosecond clock when current phase began */
+	private long phaseStart;
+
+	/** Nanoseconds from creation of timer until first publish */
+	private long firstPublish;
+
+	/** Indicates first publish was reported */
+	private volatile boolean published;
+
+	/**
+	 * Get the timer shared by the agent.
+	 * 
+	 * @return
+	 */
+	public static StartupTimer getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Begin a phase, ending the phase in progress.
+	 * 
+	 * @param name
+	 */
+	public synchronized void begin(String name) {
+		end();
+		phase = name;
+		phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * End the phase in progress. Time spent in a phase that runs more than once is added
+	 * up.
+	 */
+	public synchronized void end() {
+		if (phase == null) {
+			return;
+		}
+		Long previous = phases.get(phase);
+		long elapsed = System.nanoTime() - phaseStart;
+		phases.put(phase, (previous != null) ? previous + elapsed : elapsed);
+		phase = null;
+	}
+
+	/**
+	 * Called after each successful publish. Logs the startup summary the first time.
+	 */
+	public void published() {
+		if (published) {
+			return;
+		}
+		synchronized (this) {
+			if (published) {
+				return;
+			}
+			firstPublish = System.nanoTime() - origin;
+			published = true;
+			end();
+			LOGGER.info("Startup " + getSummary() + ".");
+		}
+	}
+
+	/**
+	 * Get a summary of phase times and the time of the first publish (or the time so far
+	 * if nothing was published yet).
+	 * 
+	 * @return
+	 */
+	public synchronized String getSummary() {
+		StringBuilder summary = new StringBuilder("phases: ");
+		for (Map.Entry<String, Long> entry : phases.entrySet()) {
+			summary.append(entry.getKey()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue()))
+					.append(" ms, ");
+		}
+		long elapsed = published ? firstPublish : System.nanoTime() - origin;
+		summary.append(published ? FIRST_PUBLISH : "running for ").append(TimeUnit.NANOSECONDS.toMillis(elapsed))
+				.append(" ms");
+		return summary.toString();
+	}
+
+	/**
+	 * Get nanoseconds spent in a completed phase.
+	 * 
+	 * @param name
+	 * @return time or -1 if phase has not completed
+	 */
+	public synchronized long getPhaseNanos(String name) {
+		Long nanos = phases.get(name);
+		return (nanos != null) ? nanos : -1;
+	}
+
+	public boolean isPublished() {
+		return published;
+	}
+}
\ No newline at end of file
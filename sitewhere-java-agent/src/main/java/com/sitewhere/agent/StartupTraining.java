@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sitewhere.agent.broker.MqttBroker;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
+
+/**
+ * Runs the agent once against an in-process broker so that the classes used on its hot
+ * paths are loaded: connecting, registering, decoding system messages and commands in
+ * both formats, sending events and shutting down. Running the JVM with a class list or
+ * class data sharing option during training records those classes so later starts can
+ * map them from an archive instead of loading and verifying them again. Registration
+ * state and spooled messages go to temporary files so training does not disturb a real
+ * installation.
+ * 
+ * @author Derek
+ */
+public class StartupTraining {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(StartupTraining.class.getName());
+
+	/** Time in milliseconds without broker traffic after which training ends */
+	private static final long QUIET_TIME = 500;
+
+	/** Maximum time in milliseconds training waits for traffic to settle */
+	private static final long MAX_WAIT = 10 * 1000;
+
+	/** Hardware id used if none is configured */
+	private static final String DEFAULT_HARDWARE_ID = "startup-training";
+
+	/** Specification token used if none is configured */
+	private static final String DEFAULT_SPECIFICATION_TOKEN = "startup-training";
+
+	/** Configuration the agent is trained with */
+	private final Properties properties = new Properties();
+
+	/** Agent being trained */
+	private final Agent agent = new Agent();
+
+	/**
+	 * Validate the training configuration. The hardware id and specification token are
+	 * optional since training never reaches SiteWhere.
+	 * 
+	 * @param configured
+	 * @return
+	 */
+	public boolean load(Properties configured) {
+		properties.putAll(configured);
+		if (properties.getProperty(IAgentConfiguration.DEVICE_HARDWARE_ID) == null) {
+			properties.setProperty(IAgentConfiguration.DEVICE_HARDWARE_ID, DEFAULT_HARDWARE_ID);
+		}
+		if (properties.getProperty(IAgentConfiguration.DEVICE_SPECIFICATION_TOKEN) == null) {
+			properties.setProperty(IAgentConfiguration.DEVICE_SPECIFICATION_TOKEN, DEFAULT_SPECIFICATION_TOKEN);
+		}
+		try {
+			properties.setProperty(IAgentConfiguration.REGISTRATION_STATE_FILE, createTempPath("registration"));
+			properties.setProperty(IAgentConfiguration.OUTBOUND_SPILL_FILE, createTempPath("spill"));
+			properties.setProperty(IAgentConfiguration.STREAM_UPLOAD_INDEX, createTempPath("chunks"));
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Unable to create temporary files for training.", e);
+			return false;
+		}
+		properties.remove(IAgentConfiguration.RECORDING_FILE);
+		return agent.load(properties);
+	}
+
+	/**
+	 * Run the agent against an in-process broker until traffic settles. The broker is left
+	 * running so the agent can shut down cleanly when the JVM exits.
+	 * 
+	 * @throws SiteWhereAgentException
+	 */
+	public void run() throws SiteWhereAgentException {
+		LOGGER.info("Starting startup training run...");
+		MqttBroker broker = new MqttBroker(0);
+		try {
+			agent.setMqttHostname(InetAddress.getLoopbackAddress().getHostAddress());
+			agent.setMqttPort(broker.start());
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to start embedded MQTT broker.", e);
+		}
+		try {
+			IAgentCommandProcessor processor = agent.createProcessor();
+			agent.start(processor);
+			exercise(broker, processor);
+		} catch (SiteWhereAgentException e) {
+			broker.stop();
+			throw e;
+		}
+		awaitQuiet(broker);
+		LOGGER.info("Startup training run complete after " + broker.getReceivedCount()
+				+ " messages received and " + broker.getDeliveredCount() + " delivered by the broker.");
+	}
+
+	/**
+	 * Send the messages SiteWhere would send and the events a device would send.
+	 * 
+	 * @param broker
+	 * @param processor
+	 * @throws SiteWhereAgentException
+	 */
+	protected void exercise(MqttBroker broker, IAgentCommandProcessor processor)
+			throws SiteWhereAgentException {
+		String hardwareId = agent.getHardwareId();
+		try {
+			broker.publish(agent.getInboundSiteWhereTopic(), encodeRegistrationAck(), 1);
+			broker.publish(agent.getInboundCommandTopic(), ProtobufCommandCodec.encode("ping", new Object[0],
+					new AgentEventOriginator("startup-training-protobuf")), 1);
+			broker.publish(agent.getInboundCommandTopic(), CommandFormatBenchmark.encodeHybrid("ping",
+					new Object[0], new AgentEventOriginator("startup-training-hybrid")), 1);
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to encode training messages.", e);
+		}
+		if (processor instanceof BaseCommandProcessor) {
+			BaseCommandProcessor base = (BaseCommandProcessor) processor;
+			base.sendMeasurement(hardwareId, "training", 1.0, null);
+			base.sendLocation(hardwareId, 33.75, -84.39, 0.0, null);
+			base.sendAlert(hardwareId, "training", "Startup training alert.", null);
+			base.sendAck(hardwareId, "Startup training.", null);
+		}
+	}
+
+	/**
+	 * Wait until the broker has seen no traffic for a while.
+	 * 
+	 * @param broker
+	 */
+	protected void awaitQuiet(MqttBroker broker) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_WAIT);
+		long last = -1;
+		try {
+			while (System.nanoTime() < deadline) {
+				long total = broker.getReceivedCount() + broker.getDeliveredCount();
+				if (total == last) {
+					return;
+				}
+				last = total;
+				Thread.sleep(QUIET_TIME);
+			}
+			LOGGER.warning("Broker traffic did not settle during startup training.");
+		} catch (InterruptedException e) {
+			LOGGER.warning("Interrupted while waiting for startup training to finish.");
+		}
+	}
+
+	/**
+	 * Encode the acknowledgement SiteWhere sends for a new registration.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected static byte[] encodeRegistrationAck() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Device.Header.newBuilder().setCommand(Device.Command.ACK_REGISTRATION).build().writeDelimitedTo(out);
+		Device.RegistrationAck.newBuilder().setState(Device.RegistrationAckState.NEW_REGISTRATION).build()
+				.writeDelimitedTo(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Create a temporary file that is removed when the JVM exits.
+	 * 
+	 * @param prefix
+	 * @return
+	 * @throws IOException
+	 */
+	protected static String createTempPath(String prefix) throws IOException {
+		File file = File.createTempFile("sitewhere-training-" + prefix, ".tmp");
+		file.delete();
+		file.deleteOnExit();
+		return file.getAbsolutePath();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+/**
+ * Body of a SiteWhere system message that has not been parsed yet. The body references a
+ * region of the inbound MQTT payload and is only parsed when a handler asks for it. The
+ * referenced bytes are only guaranteed to be valid while the message is being handled,
+ * so handlers that need the body later should parse it first.
+ * 
+ * @author Derek
+ */
+public class SystemMessageBody {
+
+	/** Backing array of inbound payload */
+	private final byte[] data;
+
+	/** Offset of body in backing array */
+	private final int offset;
+
+	/** Length of body */
+	private final int length;
+
+	/** Parsed message (if already parsed) */
+	private MessageLite parsed;
+
+	/** Parser that produced the parsed message */
+	private Parser<?> parsedBy;
+
+	public SystemMessageBody(byte[] data, int offset, int length) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Parse the body with the given parser. Repeated calls with the same parser return the
+	 * same message, a different parser parses the body again.
+	 * 
+	 * @param parser
+	 * @return
+	 * @throws InvalidProtocolBufferException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends MessageLite> T parse(Parser<T> parser) throws InvalidProtocolBufferException {
+		if ((parsed == null) || (parsedBy != parser)) {
+			parsed = parser.parseFrom(data, offset, length);
+			parsedBy = parser;
+		}
+		return (T) parsed;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs periodic telemetry collectors for any number of devices on a single thread.
+ * Collectors are registered with an interval and a phase, both rounded to whole ticks.
+ * Ticks are aligned to the wall clock when the scheduler starts, so a collector with a
+ * five second interval and no phase runs at every multiple of five seconds. From then on
+ * ticks are counted on the monotonic clock, so setting the system clock back or forward
+ * neither stalls collectors nor makes them run in a burst. The readings of all collectors
+ * of a device that are due on the same tick are sent to SiteWhere as one measurements
+ * event.
+ * 
+ * Phases spread collectors over the interval, for instance to keep many devices with
+ * the same interval from publishing together. Ticks missed because the thread was held
+ * up are skipped rather than run late.
+ * 
+ * @author Derek
+ */
+public class TelemetryScheduler {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(TelemetryScheduler.class.getName());
+
+	/** Default tick duration in milliseconds */
+	public static final long DEFAULT_TICK = 1000;
+
+	/** Smallest tick duration in milliseconds accepted from configuration */
+	public static final long MIN_TICK = 10;
+
+	/** Tick duration in milliseconds */
+	private final long tick;
+
+	/** Registered collectors */
+	private final List<ScheduledCollector> collectors = new CopyOnWriteArrayList<ScheduledCollector>();
+
+	/** Runs ticks (created when the first collector is registered) */
+	private ScheduledExecutorService executor;
+
+	/** Index of the last tick run (reset on start, otherwise only accessed by scheduler thread) */
+	private long lastTick;
+
+	/** Index of the first tick after the scheduler started */
+	private volatile long originTick;
+
+	/** Monotonic time in nanoseconds of the first tick */
+	private volatile long originNanos;
+
+	/** Number of measurement events sent */
+	private final AtomicLong batchCount = new AtomicLong();
+
+	/** Number of readings sent */
+	private final AtomicLong readingCount = new AtomicLong();
+
+	/** Number of ticks skipped because the scheduler fell behind */
+	private final AtomicLong skippedCount = new AtomicLong();
+
+	public TelemetryScheduler() {
+		this(DEFAULT_TICK);
+	}
+
+	public TelemetryScheduler(long tick) {
+		this.tick = Math.max(tick, 1);
+	}
+
+	/**
+	 * Register a collector for a device. Readings are sent through the given processor.
+	 * 
+	 * @param processor
+	 * @param hardwareId
+	 * @param collector
+	 * @param interval milliseconds between readings
+	 * @param phase offset in milliseconds of readings within the interval
+	 * @return handle used to cancel the collector
+	 */
+	public ScheduledCollector schedule(BaseCommandProcessor processor, String hardwareId,
+			ITelemetryCollector collector, long interval, long phase) {
+		long intervalTicks = Math.max(Math.round((double) interval / tick), 1);
+		long phaseTicks = Math.floorMod(Math.round((double) phase / tick), intervalTicks);
+		ScheduledCollector scheduled =
+				new ScheduledCollector(processor, hardwareId, collector, intervalTicks, phaseTicks);
+		collectors.add(scheduled);
+		start();
+		return scheduled;
+	}
+
+	/**
+	 * Start the scheduler thread if not already running. The first tick is delayed until
+	 * the next tick boundary of the wall clock, which also seeds the tick index.
+	 */
+	protected synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SiteWhere telemetry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long now = System.currentTimeMillis();
+		long delay = tick - (now % tick);
+		originTick = now / tick + 1;
+		originNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		lastTick = 0;
+		executor.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					runTick(getCurrentTick());
+				} catch (Throwable e) {
+					LOGGER.log(Level.SEVERE, "Unhandled exception in telemetry scheduler.", e);
+				}
+			}
+		}, delay, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the index of the current tick from the monotonic time elapsed since the first
+	 * tick.
+	 * 
+	 * @return
+	 */
+	protected long getCurrentTick() {
+		long elapsed = System.nanoTime() - originNanos;
+		return originTick + Math.round((double) elapsed / TimeUnit.MILLISECONDS.toNanos(tick));
+	}
+
+	/**
+	 * Run the collectors due on a tick and send their readings, one event per device.
+	 * 
+	 * @param index tick index counted from the epoch when the scheduler started
+	 */
+	protected void runTick(long index) {
+		if (index <= lastTick) {
+			return;
+		}
+		if ((lastTick > 0) && (index > lastTick + 1)) {
+			skippedCount.addAndGet(index - lastTick - 1);
+			LOGGER.fine("Telemetry scheduler skipped " + (index - lastTick - 1) + " ticks.");
+		}
+		lastTick = index;
+
+		Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+		for (ScheduledCollector scheduled : collectors) {
+			if (!scheduled.isDue(index)) {
+				continue;
+			}
+			Batch batch = batches.get(scheduled.hardwareId);
+			if (batch == null) {
+				batch = new Batch(scheduled.processor);
+				batches.put(scheduled.hardwareId, batch);
+			}
+			try {
+				scheduled.collector.collect(batch.readings);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Unable to collect telemetry for " + scheduled.hardwareId + ".", e);
+			}
+		}
+		for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+			Map<String, Double> readings = entry.getValue().readings;
+			if (readings.isEmpty()) {
+				continue;
+			}
+			try {
+				entry.getValue().processor.sendMeasurements(entry.getKey(), readings, null);
+				batchCount.incrementAndGet();
+				readingCount.addAndGet(readings.size());
+			} catch (SiteWhereAgentException e) {
+				LOGGER.log(Level.WARNING, "Unable to send telemetry for " + entry.getKey() + ".", e);
+			}
+		}
+	}
+
+	/**
+	 * Stop running collectors. Registered collectors are discarded.
+	 */
+	public synchronized void stop() {
+		collectors.clear();
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	public long getTick() {
+		return tick;
+	}
+
+	public int getCollectorCount() {
+		return collectors.size();
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getReadingCount() {
+		return readingCount.get();
+	}
+
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/**
+	 * Collector registered with the scheduler.
+	 * 
+	 * @author Derek
+	 */
+	public class ScheduledCollector {
+
+		/** Processor that sends readings */
+		private final BaseCommandProcessor processor;
+
+		/** Hardware id of device */
+		private final String hardwareId;
+
+		/** Takes readings */
+		private final ITelemetryCollector collector;
+
+		/** Ticks between readings */
+		private final long intervalTicks;
+
+		/** Offset in ticks of readings within the interval */
+		private final long phaseTicks;
+
+		public ScheduledCollector(BaseCommandProcessor processor, String hardwareId, ITelemetryCollector collector,
+				long intervalTicks, long phaseTicks) {
+			this.processor = processor;
+			this.hardwareId = hardwareId;
+			this.collector = collector;
+			this.intervalTicks = intervalTicks;
+			this.phaseTicks = phaseTicks;
+		}
+
+		/**
+		 * Indicates whether readings are due on a tick.
+		 * 
+		 * @param index
+		 * @return
+		 */
+		protected boolean isDue(long index) {
+			return Math.floorMod(index - phaseTicks, intervalTicks) == 0;
+		}
+
+		/**
+		 * Stop running the collector.
+		 */
+		public void cancel() {
+			collectors.remove(this);
+		}
+
+		public String getHardwareId() {
+			return hardwareId;
+		}
+
+		public long getInterval() {
+			return intervalTicks * tick;
+		}
+
+		public long getPhase() {
+			return phaseTicks * tick;
+		}
+	}
+
+	/**
+	 * Readings of one device collected on a tick.
+	 * 
+	 * @author Derek
+	 */
+	private static class Batch {
+
+		/** Processor that sends readings */
+		private final BaseCommandProcessor processor;
+
+		/** Readings by measurement name */
+		private final Map<String, Double> readings = new LinkedHashMap<String, Double>();
+
+		public Batch(BaseCommandProcessor processor) {
+			this.processor = processor;
+		}
+	}
+}
\ No newline at end of file
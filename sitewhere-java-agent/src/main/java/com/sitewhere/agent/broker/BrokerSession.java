@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Connection from a single MQTT client to the {@link MqttBroker}. Decodes packets as
+ * they arrive and queues responses until the channel can take them. Only used from the
+ * broker thread.
+ * 
+ * @author Derek
+ */
+class BrokerSession {
+
+	/** Packet type: Client request to connect */
+	private static final int CONNECT = 1;
+
+	/** Packet type: Connect acknowledgement */
+	private static final int CONNACK = 2;
+
+	/** Packet type: Publish message */
+	private static final int PUBLISH = 3;
+
+	/** Packet type: Publish acknowledgement (QoS 1) */
+	private static final int PUBACK = 4;
+
+	/** Packet type: Publish received (QoS 2, part 1) */
+	private static final int PUBREC = 5;
+
+	/** Packet type: Publish release (QoS 2, part 2) */
+	private static final int PUBREL = 6;
+
+	/** Packet type: Publish complete (QoS 2, part 3) */
+	private static final int PUBCOMP = 7;
+
+	/** Packet type: Client subscribe request */
+	private static final int SUBSCRIBE = 8;
+
+	/** Packet type: Subscribe acknowledgement */
+	private static final int SUBACK = 9;
+
+	/** Packet type: Client unsubscribe request */
+	private static final int UNSUBSCRIBE = 10;
+
+	/** Packet type: Unsubscribe acknowledgement */
+	private static final int UNSUBACK = 11;
+
+	/** Packet type: Ping request */
+	private static final int PINGREQ = 12;
+
+	/** Packet type: Ping response */
+	private static final int PINGRESP = 13;
+
+	/** Packet type: Client is disconnecting */
+	private static final int DISCONNECT = 14;
+
+	/** CONNACK return code for unsupported protocol versions */
+	private static final int UNACCEPTABLE_PROTOCOL_VERSION = 1;
+
+	/** Initial size of read buffer */
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	/** Largest packet accepted */
+	private static final int MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+	/** Most bytes queued for a client before it is disconnected as too slow */
+	private static final int MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+
+	/** Broker session belongs to */
+	private final MqttBroker broker;
+
+	/** Client channel */
+	private final SocketChannel channel;
+
+	/** Selection key of channel */
+	private final SelectionKey key;
+
+	/** Data read but not yet decoded */
+	private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+	/** Packets waiting to be written */
+	private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+	/** Bytes of packets waiting to be written */
+	private long queuedBytes;
+
+	/** Granted QoS by topic filter */
+	private final Map<String, Integer> subscriptions = new HashMap<String, Integer>();
+
+	/** Ids of QoS 2 messages received but not yet released */
+	private final Set<Integer> pendingReleases = new HashSet<Integer>();
+
+	/** Client id sent on connect */
+	private String clientId;
+
+	/** Indicates CONNECT was received */
+	private boolean connected;
+
+	/** Last packet id used for delivery */
+	private int lastPacketId;
+
+	/** Indicates session was closed */
+	private boolean closed;
+
+	public BrokerSession(MqttBroker broker, SocketChannel channel, SelectionKey key) {
+		this.broker = broker;
+		this.channel = channel;
+		this.key = key;
+	}
+
+	/**
+	 * Read available data and handle every complete packet.
+	 * 
+	 * @throws IOException
+	 */
+	public void onReadable() throws IOException {
+		if (channel.read(in) < 0) {
+			close();
+			return;
+		}
+		in.flip();
+		while (!closed) {
+			int start = in.position();
+			int header = readHeader();
+			if (header < 0) {
+				in.position(start);
+				break;
+			}
+			int length = readRemainingLength();
+			if (length < 0) {
+				in.position(start);
+				break;
+			}
+			if (length > MAX_PACKET_SIZE) {
+				throw new IOException("MQTT packet of " + length + " bytes exceeds limit.");
+			}
+			if (in.remaining() < length) {
+				int size = in.position() - start + length;
+				in.position(start);
+				if (in.capacity() < size) {
+					grow(size);
+				}
+				break;
+			}
+			ByteBuffer body = in.slice();
+			body.limit(length);
+			in.position(in.position() + length);
+			handle(header >> 4, header & 0x0f, body);
+		}
+		if (!closed) {
+			in.compact();
+		}
+	}
+
+	/**
+	 * Write queued packets.
+	 * 
+	 * @throws IOException
+	 */
+	public void onWritable() throws IOException {
+		while (!out.isEmpty()) {
+			ByteBuffer next = out.peek();
+			queuedBytes -= channel.write(next);
+			if (next.hasRemaining()) {
+				return;
+			}
+			out.poll();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Send a message to the client.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 * @throws IOException
+	 */
+	public void deliver(byte[] topic, byte[] payload, int qos) throws IOException {
+		int length = 2 + topic.length + ((qos > 0) ? 2 : 0) + payload.length;
+		ByteBuffer packet = allocate((PUBLISH << 4) | (qos << 1), length);
+		packet.putShort((short) topic.length).put(topic);
+		if (qos > 0) {
+			lastPacketId = (lastPacketId % 0xffff) + 1;
+			packet.putShort((short) lastPacketId);
+		}
+		packet.put(payload);
+		send(packet);
+	}
+
+	/**
+	 * Handle a decoded packet.
+	 * 
+	 * @param type
+	 * @param flags
+	 * @param body
+	 * @throws IOException
+	 */
+	protected void handle(int type, int flags, ByteBuffer body) throws IOException {
+		if (!connected && (type != CONNECT)) {
+			throw new IOException("MQTT packet type " + type + " received before CONNECT.");
+		}
+		switch (type) {
+		case CONNECT: {
+			handleConnect(body);
+			break;
+		}
+		case PUBLISH: {
+			handlePublish(flags, body);
+			break;
+		}
+		case PUBREL: {
+			int packetId = body.getShort() & 0xffff;
+			pendingReleases.remove(packetId);
+			sendAck(PUBCOMP, 0, packetId);
+			break;
+		}
+		case PUBREC: {
+			sendAck(PUBREL, 0x02, body.getShort() & 0xffff);
+			break;
+		}
+		case PUBACK:
+		case PUBCOMP: {
+			break;
+		}
+		case SUBSCRIBE: {
+			handleSubscribe(body);
+			break;
+		}
+		case UNSUBSCRIBE: {
+			int packetId = body.getShort() & 0xffff;
+			while (body.hasRemaining()) {
+				String filter = readString(body);
+				subscriptions.remove(filter);
+				broker.unsubscribe(this, filter);
+			}
+			sendAck(UNSUBACK, 0, packetId);
+			break;
+		}
+		case PINGREQ: {
+			send(allocate(PINGRESP << 4, 0));
+			break;
+		}
+		case DISCONNECT: {
+			close();
+			break;
+		}
+		default: {
+			throw new IOException("Unsupported MQTT packet type " + type + ".");
+		}
+		}
+	}
+
+	/**
+	 * Handle CONNECT by accepting any client using MQTT 3.1 or 3.1.1.
+	 * 
+	 * @param body
+	 * @throws IOException
+	 */
+	protected void handleConnect(ByteBuffer body) throws IOException {
+		if (connected) {
+			throw new IOException("Duplicate CONNECT received.");
+		}
+		readString(body);
+		int level = body.get() & 0xff;
+		body.get();
+		body.getShort();
+		if ((level != 3) && (level != 4)) {
+			ByteBuffer connack = allocate(CONNACK << 4, 2);
+			connack.put((byte) 0).put((byte) UNACCEPTABLE_PROTOCOL_VERSION);
+			send(connack);
+			close();
+			return;
+		}
+		clientId = readString(body);
+		connected = true;
+		ByteBuffer connack = allocate(CONNACK << 4, 2);
+		connack.put((byte) 0).put((byte) 0);
+		send(connack);
+	}
+
+	/**
+	 * Handle PUBLISH, acknowledging according to QoS. QoS 2 messages are routed when
+	 * first received and duplicates are dropped until released.
+	 * 
+	 * @param flags
+	 * @param body
+	 * @throws IOException
+	 */
+	protected void handlePublish(int flags, ByteBuffer body) throws IOException {
+		int qos = (flags >> 1) & 0x03;
+		String topic = readString(body);
+		int packetId = (qos > 0) ? (body.getShort() & 0xffff) : 0;
+		byte[] payload = new byte[body.remaining()];
+		body.get(payload);
+		if (qos == 2) {
+			if (pendingReleases.add(packetId)) {
+				broker.route(topic, payload, qos);
+			}
+			sendAck(PUBREC, 0, packetId);
+			return;
+		}
+		broker.route(topic, payload, qos);
+		if (qos == 1) {
+			sendAck(PUBACK, 0, packetId);
+		}
+	}
+
+	/**
+	 * Handle SUBSCRIBE, granting the requested QoS for each filter.
+	 * 
+	 * @param body
+	 * @throws IOException
+	 */
+	protected void handleSubscribe(ByteBuffer body) throws IOException {
+		int packetId = body.getShort() & 0xffff;
+		ByteBuffer granted = ByteBuffer.allocate(body.remaining());
+		while (body.hasRemaining()) {
+			String filter = readString(body);
+			int qos = Math.min(body.get() & 0x03, 2);
+			subscriptions.put(filter, qos);
+			broker.subscribe(this, filter);
+			granted.put((byte) qos);
+		}
+		granted.flip();
+		ByteBuffer suback = allocate(SUBACK << 4, 2 + granted.remaining());
+		suback.putShort((short) packetId).put(granted);
+		send(suback);
+	}
+
+	/**
+	 * Send a packet that only holds a packet id.
+	 * 
+	 * @param type
+	 * @param flags
+	 * @param packetId
+	 * @throws IOException
+	 */
+	protected void sendAck(int type, int flags, int packetId) throws IOException {
+		ByteBuffer ack = allocate((type << 4) | flags, 2);
+		ack.putShort((short) packetId);
+		send(ack);
+	}
+
+	/**
+	 * Write a packet, queueing whatever the channel does not take immediately. A client
+	 * that falls too far behind is disconnected rather than queueing without limit.
+	 * 
+	 * @param packet
+	 * @throws IOException
+	 */
+	protected void send(ByteBuffer packet) throws IOException {
+		if (closed) {
+			return;
+		}
+		packet.flip();
+		if (out.isEmpty()) {
+			channel.write(packet);
+			if (!packet.hasRemaining()) {
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		if (queuedBytes + packet.remaining() > MAX_QUEUED_BYTES) {
+			throw new IOException("MQTT client " + clientId + " is not reading, " + queuedBytes + " bytes queued.");
+		}
+		queuedBytes += packet.remaining();
+		out.add(packet);
+	}
+
+	/**
+	 * Allocate a packet and write its fixed header.
+	 * 
+	 * @param header
+	 * @param length remaining length
+	 * @return
+	 */
+	protected static ByteBuffer allocate(int header, int length) {
+		ByteBuffer packet = ByteBuffer.allocate(length + 5);
+		packet.put((byte) header);
+		int remaining = length;
+		do {
+			int digit = remaining & 0x7f;
+			remaining >>>= 7;
+			packet.put((byte) ((remaining > 0) ? (digit | 0x80) : digit));
+		} while (remaining > 0);
+		return packet;
+	}
+
+	/**
+	 * Read the first byte of a packet.
+	 * 
+	 * @return header or -1 if not available
+	 */
+	protected int readHeader() {
+		return in.hasRemaining() ? (in.get() & 0xff) : -1;
+	}
+
+	/**
+	 * Read the variable-length remaining length field.
+	 * 
+	 * @return length or -1 if not all available
+	 * @throws IOException
+	 */
+	protected int readRemainingLength() throws IOException {
+		int length = 0;
+		for (int i = 0; i < 4; i++) {
+			if (!in.hasRemaining()) {
+				return -1;
+			}
+			int digit = in.get() & 0xff;
+			length |= (digit & 0x7f) << (7 * i);
+			if ((digit & 0x80) == 0) {
+				return length;
+			}
+		}
+		throw new IOException("Malformed MQTT remaining length.");
+	}
+
+	/**
+	 * Read a length-prefixed UTF-8 string.
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	protected static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Enlarge the read buffer to hold a packet, keeping unread data.
+	 * 
+	 * @param size
+	 */
+	protected void grow(int size) {
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(size, in.capacity() * 2));
+		larger.put(in);
+		larger.flip();
+		in = larger;
+	}
+
+	/**
+	 * Close the connection and remove subscriptions.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		broker.removed(this);
+	}
+
+	/**
+	 * Get QoS granted for a topic filter.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	public int getSubscriptionQos(String filter) {
+		Integer qos = subscriptions.get(filter);
+		return (qos != null) ? qos : 0;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public Set<String> getSubscriptions() {
+		return subscriptions.keySet();
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+}
\ No newline at end of file
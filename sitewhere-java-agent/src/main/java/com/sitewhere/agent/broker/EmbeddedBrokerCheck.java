@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.broker;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.Message;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+
+import com.sitewhere.agent.Agent;
+import com.sitewhere.agent.AgentEventOriginator;
+import com.sitewhere.agent.IAgentConfiguration;
+import com.sitewhere.agent.ProtobufCommandCodec;
+
+/**
+ * Checks the {@link MqttBroker} against a real agent. The example agent is started
+ * against an in-process broker, a 'ping' command is sent at QoS 1 and a 'helloWorld'
+ * command at QoS 2, and the check passes once both responses are seen on the outbound
+ * topic. Run with:
+ * 
+ * <pre>
+ * java -cp sitewhere-java-agent-x.y.z.jar com.sitewhere.agent.broker.EmbeddedBrokerCheck
+ * </pre>
+ * 
+ * @author Derek
+ */
+public class EmbeddedBrokerCheck {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(EmbeddedBrokerCheck.class.getName());
+
+	/** Command processor used for the check */
+	private static final String PROCESSOR = "com.example.ExampleCommandProcessor";
+
+	/** Maximum time in seconds to wait for each response */
+	private static final long RESPONSE_TIMEOUT = 10;
+
+	public static void main(String[] args) throws Exception {
+		MqttBroker broker = new MqttBroker(0);
+		int port = broker.start();
+		String host = InetAddress.getLoopbackAddress().getHostAddress();
+
+		Properties properties = new Properties();
+		properties.setProperty(IAgentConfiguration.COMMAND_PROCESSOR_CLASSNAME, PROCESSOR);
+		properties.setProperty(IAgentConfiguration.DEVICE_HARDWARE_ID, "broker-check");
+		properties.setProperty(IAgentConfiguration.DEVICE_SPECIFICATION_TOKEN, "broker-check");
+		properties.setProperty(IAgentConfiguration.MQTT_HOSTNAME, host);
+		properties.setProperty(IAgentConfiguration.MQTT_PORT, String.valueOf(port));
+		properties.setProperty(IAgentConfiguration.REGISTRATION_STATE_FILE, createTempPath("registration"));
+		properties.setProperty(IAgentConfiguration.OUTBOUND_SPILL_FILE, createTempPath("spill"));
+		properties.setProperty(IAgentConfiguration.STREAM_UPLOAD_INDEX, createTempPath("chunks"));
+		properties.setProperty(IAgentConfiguration.CONFIG_WATCH, "false");
+		Agent agent = new Agent();
+		if (!agent.load(properties)) {
+			LOGGER.severe("Unable to configure agent for broker check.");
+			System.exit(1);
+		}
+
+		// Listen for responses before the agent starts sending.
+		MQTT mqtt = new MQTT();
+		mqtt.setHost(host, port);
+		BlockingConnection listener = mqtt.blockingConnection();
+		listener.connect();
+		listener.subscribe(new Topic[] { new Topic(agent.getOutboundSiteWhereTopic(), QoS.AT_LEAST_ONCE) });
+		agent.start();
+
+		broker.publish(agent.getInboundCommandTopic(),
+				ProtobufCommandCodec.encode("ping", new Object[0], new AgentEventOriginator("broker-check-ping")), 1);
+		broker.publish(agent.getInboundCommandTopic(), ProtobufCommandCodec.encode("helloWorld",
+				new Object[] { "Hello", Boolean.FALSE }, new AgentEventOriginator("broker-check-hello")), 2);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("Acknowledged.");
+		expected.add("Hello World!");
+		while (!expected.isEmpty()) {
+			Message message = listener.receive(RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+			if (message == null) {
+				LOGGER.severe("Broker check failed, no response containing " + expected + ".");
+				System.exit(1);
+			}
+			String payload = new String(message.getPayload(), StandardCharsets.ISO_8859_1);
+			message.ack();
+			for (String response : new ArrayList<String>(expected)) {
+				if (payload.contains(response)) {
+					expected.remove(response);
+				}
+			}
+		}
+		listener.disconnect();
+		LOGGER.info("Broker check passed after " + broker.getReceivedCount() + " messages received and "
+				+ broker.getDeliveredCount() + " delivered by the broker.");
+		System.exit(0);
+	}
+
+	/**
+	 * Create a temporary file that is removed when the JVM exits.
+	 * 
+	 * @param prefix
+	 * @return
+	 * @throws IOException
+	 */
+	protected static String createTempPath(String prefix) throws IOException {
+		File file = File.createTempFile("sitewhere-broker-check-" + prefix, ".tmp");
+		file.delete();
+		file.deleteOnExit();
+		return file.getAbsolutePath();
+	}
+}
\ No newline at end of file
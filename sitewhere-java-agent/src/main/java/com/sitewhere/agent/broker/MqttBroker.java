@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.broker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal MQTT broker that runs inside the agent process, so the agent can be tested
+ * and benchmarked without an external broker. Supports MQTT 3.1 and 3.1.1 clients,
+ * CONNECT, SUBSCRIBE and UNSUBSCRIBE with '+' and '#' wildcards, PUBLISH at QoS 0, 1
+ * and 2, and keep-alive pings. Sessions, retained messages and will messages are not
+ * supported.
+ * 
+ * All network handling runs on a single thread using non-blocking channels. Port 0
+ * binds to a free port, which is returned by {@link #start()}.
+ * 
+ * @author Derek
+ */
+public class MqttBroker implements Runnable {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(MqttBroker.class.getName());
+
+	/** Address listened on */
+	private final InetSocketAddress address;
+
+	/** Sessions by exact topic filter */
+	private final Map<String, Set<BrokerSession>> exactSubscriptions = new HashMap<String, Set<BrokerSession>>();
+
+	/** Sessions by topic filter containing wildcards */
+	private final Map<String, Set<BrokerSession>> wildcardSubscriptions =
+			new HashMap<String, Set<BrokerSession>>();
+
+	/** Connected sessions */
+	private final Set<BrokerSession> sessions = new HashSet<BrokerSession>();
+
+	/** Work submitted from other threads */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/** Number of messages published to broker */
+	private final AtomicLong receivedCount = new AtomicLong();
+
+	/** Number of messages delivered to subscribers */
+	private final AtomicLong deliveredCount = new AtomicLong();
+
+	/** Accepts connections */
+	private ServerSocketChannel server;
+
+	/** Selects channels ready for work */
+	private Selector selector;
+
+	/** Network thread */
+	private Thread thread;
+
+	/** Indicates broker is running */
+	private volatile boolean running;
+
+	/**
+	 * Create a broker listening on the loopback interface.
+	 * 
+	 * @param port port or 0 for any free port
+	 */
+	public MqttBroker(int port) {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	public MqttBroker(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * Start listening for connections.
+	 * 
+	 * @return port the broker is listening on
+	 * @throws IOException
+	 */
+	public synchronized int start() throws IOException {
+		if (running) {
+			return getPort();
+		}
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().setReuseAddress(true);
+		server.socket().bind(address);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		thread = new Thread(this, "SiteWhere MQTT broker");
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("MQTT broker listening on port " + getPort() + ".");
+		return getPort();
+	}
+
+	/**
+	 * Close all connections and stop listening.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.info("MQTT broker stopped after receiving " + getReceivedCount() + " and delivering "
+				+ getDeliveredCount() + " messages.");
+	}
+
+	/**
+	 * Publish a message to subscribers from outside the broker thread, for instance to
+	 * send commands to an agent under test.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 * @throws IllegalStateException if the broker is not running
+	 */
+	public void publish(final String topic, final byte[] payload, final int qos) {
+		if (!running) {
+			throw new IllegalStateException("MQTT broker is not running.");
+		}
+		tasks.add(new Runnable() {
+
+			@Override
+			public void run() {
+				route(topic, payload, qos);
+			}
+		});
+		selector.wakeup();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Unable to publish message from outside the broker.", e);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					BrokerSession session = (BrokerSession) key.attachment();
+					try {
+						if (key.isReadable()) {
+							session.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.onWritable();
+						}
+					} catch (IOException e) {
+						LOGGER.log(Level.FINE, "Closing MQTT client connection.", e);
+						session.close();
+					} catch (RuntimeException e) {
+
+						// Malformed packets must not stop the broker for other clients.
+						LOGGER.log(Level.WARNING, "Closing MQTT client connection after unexpected error.", e);
+						session.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "MQTT broker failed.", e);
+		} finally {
+			for (BrokerSession session : new ArrayList<BrokerSession>(sessions)) {
+				session.close();
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to close MQTT broker.", e);
+			}
+		}
+	}
+
+	/**
+	 * Accept a new client connection.
+	 * 
+	 * @throws IOException
+	 */
+	protected void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		BrokerSession session = new BrokerSession(this, channel, key);
+		key.attach(session);
+		sessions.add(session);
+	}
+
+	/**
+	 * Deliver a message to every session with a matching subscription. A session with
+	 * several matching subscriptions receives the message once, at the highest QoS.
+	 * Subscribers are copied before delivery since sessions that fail are closed, which
+	 * removes their subscriptions.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 */
+	protected void route(String topic, byte[] payload, int qos) {
+		receivedCount.incrementAndGet();
+		byte[] encodedTopic = topic.getBytes(StandardCharsets.UTF_8);
+		Set<BrokerSession> exact = exactSubscriptions.get(topic);
+		if (wildcardSubscriptions.isEmpty()) {
+			if (exact != null) {
+				for (BrokerSession session : new ArrayList<BrokerSession>(exact)) {
+					deliver(session, encodedTopic, payload, Math.min(qos, session.getSubscriptionQos(topic)));
+				}
+			}
+			return;
+		}
+
+		Map<BrokerSession, Integer> targets = new HashMap<BrokerSession, Integer>();
+		if (exact != null) {
+			for (BrokerSession session : exact) {
+				targets.put(session, session.getSubscriptionQos(topic));
+			}
+		}
+		for (Map.Entry<String, Set<BrokerSession>> entry : wildcardSubscriptions.entrySet()) {
+			if (!matches(entry.getKey(), topic)) {
+				continue;
+			}
+			for (BrokerSession session : entry.getValue()) {
+				int granted = session.getSubscriptionQos(entry.getKey());
+				Integer existing = targets.get(session);
+				if ((existing == null) || (existing < granted)) {
+					targets.put(session, granted);
+				}
+			}
+		}
+		for (Map.Entry<BrokerSession, Integer> target : targets.entrySet()) {
+			deliver(target.getKey(), encodedTopic, payload, Math.min(qos, target.getValue()));
+		}
+	}
+
+	/**
+	 * Deliver a message to a single session.
+	 * 
+	 * @param session
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 */
+	protected void deliver(BrokerSession session, byte[] topic, byte[] payload, int qos) {
+		if (session.isClosed()) {
+			return;
+		}
+		try {
+			session.deliver(topic, payload, qos);
+			deliveredCount.incrementAndGet();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Closing MQTT client connection.", e);
+			session.close();
+		}
+	}
+
+	/**
+	 * Add a subscription for a session.
+	 * 
+	 * @param session
+	 * @param filter
+	 */
+	protected void subscribe(BrokerSession session, String filter) {
+		Map<String, Set<BrokerSession>> subscriptions = isWildcard(filter) ? wildcardSubscriptions
+				: exactSubscriptions;
+		Set<BrokerSession> subscribers = subscriptions.get(filter);
+		if (subscribers == null) {
+			subscribers = new LinkedHashSet<BrokerSession>();
+			subscriptions.put(filter, subscribers);
+		}
+		subscribers.add(session);
+	}
+
+	/**
+	 * Remove a subscription for a session.
+	 * 
+	 * @param session
+	 * @param filter
+	 */
+	protected void unsubscribe(BrokerSession session, String filter) {
+		Map<String, Set<BrokerSession>> subscriptions = isWildcard(filter) ? wildcardSubscriptions
+				: exactSubscriptions;
+		Set<BrokerSession> subscribers = subscriptions.get(filter);
+		if (subscribers != null) {
+			subscribers.remove(session);
+			if (subscribers.isEmpty()) {
+				subscriptions.remove(filter);
+			}
+		}
+	}
+
+	/**
+	 * Remove a closed session and its subscriptions.
+	 * 
+	 * @param session
+	 */
+	protected void removed(BrokerSession session) {
+		sessions.remove(session);
+		for (String filter : new ArrayList<String>(session.getSubscriptions())) {
+			unsubscribe(session, filter);
+		}
+	}
+
+	/**
+	 * Indicates whether a topic filter contains wildcards.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	protected static boolean isWildcard(String filter) {
+		return (filter.indexOf('+') >= 0) || (filter.indexOf('#') >= 0);
+	}
+
+	/**
+	 * Check whether a topic matches a filter that may contain wildcards. '+' matches a
+	 * single level and '#' matches all remaining levels.
+	 * 
+	 * @param filter
+	 * @param topic
+	 * @return
+	 */
+	public static boolean matches(String filter, String topic) {
+		List<String> filterLevels = split(filter);
+		List<String> topicLevels = split(topic);
+		for (int i = 0; i < filterLevels.size(); i++) {
+			String level = filterLevels.get(i);
+			if ("#".equals(level)) {
+				return true;
+			}
+			if (i >= topicLevels.size()) {
+				return false;
+			}
+			if (!"+".equals(level) && !level.equals(topicLevels.get(i))) {
+				return false;
+			}
+		}
+		return filterLevels.size() == topicLevels.size();
+	}
+
+	/**
+	 * Split a topic into levels.
+	 * 
+	 * @param topic
+	 * @return
+	 */
+	protected static List<String> split(String topic) {
+		List<String> levels = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while ((end = topic.indexOf('/', start)) >= 0) {
+			levels.add(topic.substring(start, end));
+			start = end + 1;
+		}
+		levels.add(topic.substring(start));
+		return levels;
+	}
+
+	/**
+	 * Get port broker is listening on.
+	 * 
+	 * @return
+	 */
+	public int getPort() {
+		return (server != null) ? server.socket().getLocalPort() : address.getPort();
+	}
+
+	public long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+}
\ No newline at end of file
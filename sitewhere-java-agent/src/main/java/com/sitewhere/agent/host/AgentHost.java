@@ -0,0 +1,843 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.Message;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+
+import com.sitewhere.agent.Agent;
+import com.sitewhere.agent.BaseCommandProcessor;
+import com.sitewhere.agent.IAgentCommandProcessor;
+import com.sitewhere.agent.IAgentConfiguration;
+import com.sitewhere.agent.MqttConnectionSupervisor;
+import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.agent.StartupTimer;
+import com.sitewhere.agent.stream.IncrementalStreamUploader;
+
+/**
+ * Runs many devices in one process. Devices are read from a device list file and each
+ * has its own command processor, while MQTT connections and threads are shared. Devices
+ * are assigned round-robin to a small number of connections and to a fixed pool of
+ * worker threads. Inbound messages are routed to their device with a single map lookup
+ * on the hardware id in the topic, and each device always uses the same worker so its
+ * messages are processed in order.
+ * 
+ * The device list has one device per line in the form
+ * <code>hardwareId,specificationToken[,commandProcessorClassname]</code>. Blank lines
+ * and lines starting with '#' are ignored. Devices without a classname use the
+ * configured command processor. All other settings are shared by every device. The
+ * configured inbound topics are used as prefixes that the hardware id of each device is
+ * appended to.
+ * 
+ * Several hosts on different machines can share one device list by naming each other
+ * in a static node list. Each host runs only the devices a {@link ConsistentHashRing}
+ * assigns to it, so every device runs exactly once and adding or removing a host moves
+ * only a proportional share of devices.
+ * 
+ * @author Derek
+ */
+public class AgentHost {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(AgentHost.class.getName());
+
+	/** Default number of MQTT connections shared by devices */
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	/** Default number of threads that process device messages */
+	public static final int DEFAULT_THREADS = 4;
+
+	/** Default prefix of topic SiteWhere system messages are received on */
+	public static final String DEFAULT_INBOUND_SITEWHERE_PREFIX = "SiteWhere/system/";
+
+	/** Default prefix of topic specification commands are received on */
+	public static final String DEFAULT_INBOUND_COMMAND_PREFIX = "SiteWhere/commands/";
+
+	/** Maximum number of topics in a single subscribe request */
+	private static final int SUBSCRIBE_BATCH_SIZE = 256;
+
+	/** Settings shared by all devices */
+	private final Agent settings = new Agent();
+
+	/** File devices are loaded from */
+	private String devicesFile;
+
+	/** Number of MQTT connections shared by devices */
+	private int connectionCount = DEFAULT_CONNECTIONS;
+
+	/** Number of threads that process device messages */
+	private int threadCount = DEFAULT_THREADS;
+
+	/** Names of hosts sharing the device list */
+	private List<String> shardNodes;
+
+	/** Name of this host in shard node list */
+	private String shardNode;
+
+	/** Number of hash ring points per host */
+	private int shardVirtualNodes = ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+
+	/** Prefix of topic SiteWhere system messages are received on */
+	private String inboundSiteWhereTopicPrefix = DEFAULT_INBOUND_SITEWHERE_PREFIX;
+
+	/** Prefix of topic specification commands are received on */
+	private String inboundCommandTopicPrefix = DEFAULT_INBOUND_COMMAND_PREFIX;
+
+	/** Hosted devices by hardware id */
+	private final Map<String, HostedDevice> devices = new HashMap<String, HostedDevice>();
+
+	/** Shared MQTT connections */
+	private final List<HostConnection> connections = new ArrayList<HostConnection>();
+
+	/** Command processor classes by classname */
+	private final Map<String, Class<?>> processorClasses = new HashMap<String, Class<?>>();
+
+	/** Threads that process device messages */
+	private ExecutorService[] workers;
+
+	/** Threads that receive messages from connections */
+	private ExecutorService receivers;
+
+	/** Approximate heap used by each device in bytes, measured on start */
+	private long deviceMemory;
+
+	/**
+	 * Validates the host configuration.
+	 * 
+	 * @param properties
+	 * @return
+	 */
+	public boolean load(Properties properties) {
+		LOGGER.info("Validating host configuration...");
+
+		// Load device list location.
+		setDevicesFile(properties.getProperty(IAgentConfiguration.HOST_DEVICES_FILE));
+		if (getDevicesFile() == null) {
+			LOGGER.severe("Device list file not specified in configuration.");
+			return false;
+		}
+
+		// Default command processor may be omitted if every device specifies one.
+		getSettings().setCommandProcessorClassname(
+				properties.getProperty(IAgentConfiguration.COMMAND_PROCESSOR_CLASSNAME));
+
+		// Validate number of connections.
+		String strConnections = properties.getProperty(IAgentConfiguration.HOST_CONNECTIONS);
+		if (strConnections != null) {
+			try {
+				setConnectionCount(Integer.parseInt(strConnections));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric host connection count specified, using: " + DEFAULT_CONNECTIONS);
+			}
+		}
+
+		// Validate number of threads.
+		String strThreads = properties.getProperty(IAgentConfiguration.HOST_THREADS);
+		if (strThreads != null) {
+			try {
+				setThreadCount(Integer.parseInt(strThreads));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric host thread count specified, using: " + DEFAULT_THREADS);
+			}
+		}
+
+		// Validate shard membership.
+		String strNodes = properties.getProperty(IAgentConfiguration.HOST_SHARD_NODES);
+		if (strNodes != null) {
+			List<String> nodes = new ArrayList<String>();
+			for (String node : strNodes.split(",")) {
+				if ((node.trim().length() > 0) && !nodes.contains(node.trim())) {
+					nodes.add(node.trim());
+				}
+			}
+			setShardNodes(nodes);
+			setShardNode(properties.getProperty(IAgentConfiguration.HOST_SHARD_NODE));
+			if ((getShardNode() == null) || !nodes.contains(getShardNode().trim())) {
+				LOGGER.severe("Host shard node must be one of: " + nodes);
+				return false;
+			}
+			setShardNode(getShardNode().trim());
+		}
+		String strVirtualNodes = properties.getProperty(IAgentConfiguration.HOST_SHARD_VIRTUAL_NODES);
+		if (strVirtualNodes != null) {
+			try {
+				setShardVirtualNodes(Integer.parseInt(strVirtualNodes));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric host shard virtual node count specified, using: "
+						+ ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+			}
+		}
+
+		// Inbound topics are prefixes shared by every device.
+		String strSystem = properties.getProperty(IAgentConfiguration.MQTT_INBOUND_SITEWHERE_TOPIC);
+		if (strSystem != null) {
+			setInboundSiteWhereTopicPrefix(strSystem);
+		}
+		String strCommand = properties.getProperty(IAgentConfiguration.MQTT_INBOUND_COMMAND_TOPIC);
+		if (strCommand != null) {
+			setInboundCommandTopicPrefix(strCommand);
+		}
+		if (getInboundSiteWhereTopicPrefix().equals(getInboundCommandTopicPrefix())) {
+			LOGGER.severe("Inbound SiteWhere and command topic prefixes must differ.");
+			return false;
+		}
+		LOGGER.info("Using inbound topic prefixes '" + getInboundSiteWhereTopicPrefix() + "' and '"
+				+ getInboundCommandTopicPrefix() + "'.");
+		return getSettings().loadSettings(properties);
+	}
+
+	/**
+	 * Load the device list, connect to the MQTT broker and start every device.
+	 * 
+	 * @throws SiteWhereAgentException
+	 */
+	public void start() throws SiteWhereAgentException {
+		LOGGER.info("SiteWhere agent host starting...");
+		List<String[]> entries = selectShard(readDevices(new File(getDevicesFile())));
+
+		// Create shared resources before measuring so only device overhead is counted.
+		int count = Math.max(getConnectionCount(), 1);
+		for (int i = 0; i < count; i++) {
+			connections.add(new HostConnection(i));
+		}
+		workers = new ExecutorService[Math.max(getThreadCount(), 1)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = Executors.newSingleThreadExecutor(createThreadFactory("SiteWhere host worker " + i));
+		}
+		receivers = Executors.newFixedThreadPool(count, createThreadFactory("SiteWhere host receiver"));
+
+		long before = measureUsedMemory();
+		StartupTimer.getShared().begin(StartupTimer.PROCESSOR_INSTANTIATION);
+		createDevices(entries);
+		StartupTimer.getShared().end();
+		long after = measureUsedMemory();
+		deviceMemory = devices.isEmpty() ? 0 : Math.max(after - before, 0) / devices.size();
+		LOGGER.info("Created " + devices.size() + " devices using about " + deviceMemory + " bytes each.");
+
+		// Subscribe before any device sends registration so no responses are missed.
+		StartupTimer.getShared().begin(StartupTimer.MQTT_CONNECT);
+		for (HostConnection connection : connections) {
+			connection.connect();
+		}
+		StartupTimer.getShared().end();
+
+		// Send messages spooled at the last shutdown before devices start.
+		if (!connections.isEmpty()) {
+			Agent.MQTTOutbound outbound = connections.get(0).getOutbound();
+			try {
+				if (outbound.restore(getSettings().getOutboundSpool()) > 0) {
+					outbound.sendRetained();
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to read outbound spool.", e);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Unable to send spooled messages. Sending after reconnect.", e);
+			}
+		}
+
+		// Handle shutdown gracefully.
+		Runtime.getRuntime().addShutdownHook(new ShutdownHandler());
+
+		for (HostConnection connection : connections) {
+			receivers.execute(connection);
+		}
+
+		// Executes custom startup logic for each device on its worker.
+		for (final HostedDevice device : devices.values()) {
+			device.getWorker().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						device.getProcessor().executeStartupLogic(device.getHardwareId(),
+								device.getSpecificationToken(), device.getDispatcher());
+					} catch (Throwable e) {
+						LOGGER.log(Level.SEVERE, "Startup logic failed for device " + device.getHardwareId(), e);
+					}
+				}
+			});
+		}
+		LOGGER.info("SiteWhere agent host started with " + devices.size() + " devices on "
+				+ connections.size() + " connections.");
+	}
+
+	/**
+	 * Apply a changed configuration to every connection and device. Settings that need a
+	 * reconnect or restart, including all host settings, are left for the next start.
+	 * 
+	 * @param properties
+	 */
+	public void reload(Properties properties) {
+		if (getSettings().reloadSettings(properties).isEmpty()) {
+			return;
+		}
+		for (HostConnection connection : connections) {
+			getSettings().applySettings(connection.getOutbound(), connection.getSupervisor());
+		}
+		for (HostedDevice device : devices.values()) {
+			getSettings().applySettings(device.getProcessor());
+		}
+	}
+
+	/**
+	 * Disconnect from the MQTT broker and stop processing threads.
+	 */
+	public void stop() {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(getSettings().getShutdownTimeout());
+		getSettings().stopSchedulers();
+
+		// Stop accepting events on every connection before delivering what is outstanding.
+		for (HostConnection connection : connections) {
+			connection.getOutbound().close();
+		}
+		long flushed = 0;
+		long spilled = 0;
+		long lost = 0;
+		for (HostConnection connection : connections) {
+			Agent.MQTTOutbound outbound = connection.getOutbound();
+			try {
+				outbound.drain(deadline, getSettings().getOutboundSpool());
+			} catch (InterruptedException e) {
+				LOGGER.warning("Interrupted while delivering outbound messages.");
+			}
+			flushed += outbound.getFlushedCount();
+			spilled += outbound.getSpilledCount();
+			lost += outbound.getLostCount();
+		}
+		if (!connections.isEmpty()) {
+			LOGGER.info("Shutdown flushed " + flushed + ", spooled " + spilled + " and lost " + lost
+					+ " outbound messages in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+					+ " ms.");
+		}
+		try {
+			getSettings().getRegistrationStore().close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to close registration state file.", e);
+		}
+		if (receivers != null) {
+			receivers.shutdownNow();
+		}
+		for (HostConnection connection : connections) {
+			connection.disconnect();
+		}
+		if (workers != null) {
+			for (ExecutorService worker : workers) {
+				worker.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Read device entries from the device list file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	protected List<String[]> readDevices(File file) throws SiteWhereAgentException {
+		List<String[]> entries = new ArrayList<String[]>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if ((line.length() == 0) || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split(",");
+				if ((fields.length < 2) || (fields.length > 3)) {
+					LOGGER.warning("Skipping malformed device list entry: " + line);
+					continue;
+				}
+				for (int i = 0; i < fields.length; i++) {
+					fields[i] = fields[i].trim();
+				}
+				entries.add(fields);
+			}
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to read device list from " + file.getAbsolutePath() + ".",
+					e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		LOGGER.info("Loaded " + entries.size() + " devices from " + file.getAbsolutePath() + ".");
+		return entries;
+	}
+
+	/**
+	 * Keep only the device entries assigned to this host when the device list is shared
+	 * by several hosts.
+	 * 
+	 * @param entries
+	 * @return
+	 */
+	protected List<String[]> selectShard(List<String[]> entries) {
+		if (getShardNodes() == null) {
+			return entries;
+		}
+		ConsistentHashRing ring = new ConsistentHashRing(getShardNodes(), Math.max(getShardVirtualNodes(), 1));
+		List<String[]> owned = new ArrayList<String[]>();
+		for (String[] entry : entries) {
+			if (getShardNode().equals(ring.getOwner(entry[0]))) {
+				owned.add(entry);
+			}
+		}
+		LOGGER.info("Host node '" + getShardNode() + "' owns " + owned.size() + " of " + entries.size()
+				+ " devices shared by " + getShardNodes().size() + " nodes.");
+		return owned;
+	}
+
+	/**
+	 * Create a command processor for each device entry and assign it a connection and a
+	 * worker.
+	 * 
+	 * @param entries
+	 * @throws SiteWhereAgentException
+	 */
+	protected void createDevices(List<String[]> entries) throws SiteWhereAgentException {
+		int index = 0;
+		for (String[] entry : entries) {
+			String hardwareId = entry[0];
+			if (devices.containsKey(hardwareId)) {
+				LOGGER.warning("Skipping duplicate device list entry for " + hardwareId + ".");
+				continue;
+			}
+			String classname = (entry.length > 2) ? entry[2] : getSettings().getCommandProcessorClassname();
+			if (classname == null) {
+				throw new SiteWhereAgentException("No command processor specified for device " + hardwareId + ".");
+			}
+			HostConnection connection = connections.get(index % connections.size());
+			IAgentCommandProcessor processor = createProcessor(classname);
+			processor.setHardwareId(hardwareId);
+			processor.setSpecificationToken(entry[1]);
+			processor.setEventDispatcher(connection.getOutbound());
+			getSettings().configure(processor);
+
+			// Stream chunk indexes refer to streams of a single device, so are kept apart.
+			if (processor instanceof BaseCommandProcessor) {
+				BaseCommandProcessor base = (BaseCommandProcessor) processor;
+				base.setIncrementalUploads(new IncrementalStreamUploader(base.getStreamUploads(),
+						new File(getSettings().getStreamIndexFile() + "." + hardwareId)));
+			}
+
+			HostedDevice device = new HostedDevice(hardwareId, entry[1], processor, connection.getOutbound(),
+					workers[index % workers.length]);
+			devices.put(hardwareId, device);
+			connection.getDevices().add(device);
+			index++;
+		}
+	}
+
+	/**
+	 * Create an instance of a command processor, caching classes by name.
+	 * 
+	 * @param classname
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	protected IAgentCommandProcessor createProcessor(String classname) throws SiteWhereAgentException {
+		try {
+			Class<?> clazz = processorClasses.get(classname);
+			if (clazz == null) {
+				clazz = Class.forName(classname);
+				processorClasses.put(classname, clazz);
+			}
+			return (IAgentCommandProcessor) clazz.newInstance();
+		} catch (ClassNotFoundException e) {
+			throw new SiteWhereAgentException(e);
+		} catch (InstantiationException e) {
+			throw new SiteWhereAgentException(e);
+		} catch (IllegalAccessException e) {
+			throw new SiteWhereAgentException(e);
+		}
+	}
+
+	/**
+	 * Pass an inbound message to the worker of the device it is addressed to.
+	 * 
+	 * @param message
+	 */
+	protected void route(final Message message) {
+		String topic = message.getTopic();
+		String systemPrefix = getInboundSiteWhereTopicPrefix();
+		String commandPrefix = getInboundCommandTopicPrefix();
+
+		// When one prefix contains the other, the longer one decides.
+		boolean isSystem = topic.startsWith(systemPrefix);
+		boolean isCommand = topic.startsWith(commandPrefix);
+		if (isSystem && isCommand) {
+			isSystem = systemPrefix.length() > commandPrefix.length();
+		}
+		final boolean system = isSystem;
+		HostedDevice found = null;
+		if (system) {
+			found = devices.get(topic.substring(systemPrefix.length()));
+		} else if (isCommand) {
+			found = devices.get(topic.substring(commandPrefix.length()));
+		}
+		if (found == null) {
+			LOGGER.warning("Message for unknown topic received: " + topic);
+			return;
+		}
+		final HostedDevice device = found;
+		device.getWorker().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (system) {
+						Buffer payload = message.getPayloadBuffer();
+						device.getProcessor().processSiteWhereCommand(payload.data, payload.offset,
+								payload.length, device.getDispatcher());
+					} else {
+						device.getProcessor().processSpecificationCommand(message.getPayload(),
+								device.getDispatcher());
+					}
+				} catch (Throwable e) {
+					LOGGER.log(Level.SEVERE, "Exception processing inbound message for " + device.getHardwareId(),
+							e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get heap in use after collecting garbage. Only approximate, but close enough to
+	 * report memory used by a large number of devices.
+	 * 
+	 * @return
+	 */
+	protected long measureUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Get the name of the machine the host runs on, used to keep client ids of hosts that
+	 * share a devices file apart.
+	 * 
+	 * @return
+	 */
+	protected String getLocalHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			LOGGER.warning("Unable to determine local host name, client ids may clash with other hosts.");
+			return "";
+		}
+	}
+
+	/**
+	 * Create a factory for named threads. Threads are not daemons so they keep the host
+	 * running.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	protected static ThreadFactory createThreadFactory(final String name) {
+		return new ThreadFactory() {
+
+			/** Counts threads created */
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				int count = counter.incrementAndGet();
+				return new Thread(runnable, (count == 1) ? name : name + " " + count);
+			}
+		};
+	}
+
+	/**
+	 * Get a hosted device by hardware id.
+	 * 
+	 * @param hardwareId
+	 * @return
+	 */
+	public HostedDevice getDevice(String hardwareId) {
+		return devices.get(hardwareId);
+	}
+
+	/**
+	 * Get number of hosted devices.
+	 * 
+	 * @return
+	 */
+	public int getDeviceCount() {
+		return devices.size();
+	}
+
+	public Agent getSettings() {
+		return settings;
+	}
+
+	public String getDevicesFile() {
+		return devicesFile;
+	}
+
+	public void setDevicesFile(String devicesFile) {
+		this.devicesFile = devicesFile;
+	}
+
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	public void setConnectionCount(int connectionCount) {
+		this.connectionCount = connectionCount;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	public List<String> getShardNodes() {
+		return shardNodes;
+	}
+
+	public void setShardNodes(List<String> shardNodes) {
+		this.shardNodes = shardNodes;
+	}
+
+	public String getShardNode() {
+		return shardNode;
+	}
+
+	public void setShardNode(String shardNode) {
+		this.shardNode = shardNode;
+	}
+
+	public int getShardVirtualNodes() {
+		return shardVirtualNodes;
+	}
+
+	public void setShardVirtualNodes(int shardVirtualNodes) {
+		this.shardVirtualNodes = shardVirtualNodes;
+	}
+
+	public String getInboundSiteWhereTopicPrefix() {
+		return inboundSiteWhereTopicPrefix;
+	}
+
+	public void setInboundSiteWhereTopicPrefix(String inboundSiteWhereTopicPrefix) {
+		this.inboundSiteWhereTopicPrefix = inboundSiteWhereTopicPrefix;
+	}
+
+	public String getInboundCommandTopicPrefix() {
+		return inboundCommandTopicPrefix;
+	}
+
+	public void setInboundCommandTopicPrefix(String inboundCommandTopicPrefix) {
+		this.inboundCommandTopicPrefix = inboundCommandTopicPrefix;
+	}
+
+	public long getDeviceMemory() {
+		return deviceMemory;
+	}
+
+	/**
+	 * MQTT connection shared by a group of devices. Subscribes to the topics of its
+	 * devices and passes received messages on for routing.
+	 * 
+	 * @author Derek
+	 */
+	public class HostConnection implements Runnable {
+
+		/** Index of connection */
+		private final int index;
+
+		/** MQTT connection */
+		private volatile BlockingConnection connection;
+
+		/** Reconnects when the connection drops */
+		private final MqttConnectionSupervisor supervisor;
+
+		/** Outbound message processing shared by devices */
+		private final Agent.MQTTOutbound outbound;
+
+		/** Devices assigned to connection */
+		private final List<HostedDevice> devices = new ArrayList<HostedDevice>();
+
+		public HostConnection(int index) throws SiteWhereAgentException {
+			this.index = index;
+			MQTT mqtt = new MQTT();
+			try {
+				mqtt.setHost(getSettings().getMqttHostname(), getSettings().getMqttPort());
+			} catch (URISyntaxException e) {
+				throw new SiteWhereAgentException("Invalid hostname for MQTT server.", e);
+			}
+
+			// Connections share a broker so each needs a distinct client id, also across hosts
+			// using the same devices file. Ids stay the same across restarts so the broker can
+			// resume the session.
+			String seed = getLocalHostName() + "#" + getDevicesFile() + "#" + getShardNode();
+			mqtt.setClientId(String.format("swhost-%d-%08x", index, seed.hashCode()));
+			mqtt.setCleanSession(getSettings().isCleanSession());
+			this.supervisor = new MqttConnectionSupervisor(mqtt, "MQTT connection " + index);
+			this.outbound = new Agent.MQTTOutbound(null, getSettings().getOutboundSiteWhereTopic());
+			outbound.setSupervisor(supervisor);
+			getSettings().applySettings(outbound, supervisor);
+		}
+
+		/**
+		 * Connect to the broker and subscribe to the topics of all assigned devices.
+		 * 
+		 * @throws SiteWhereAgentException
+		 */
+		public void connect() throws SiteWhereAgentException {
+			LOGGER.info("Connecting to MQTT broker at '" + getSettings().getMqttHostname() + ":"
+					+ getSettings().getMqttPort() + "' for " + devices.size() + " devices...");
+			try {
+				connection = supervisor.connect();
+				outbound.setConnection(connection);
+				subscribe(connection);
+			} catch (Exception e) {
+				throw new SiteWhereAgentException("Unable to establish MQTT connection " + index + ".", e);
+			}
+
+			// Restore subscriptions and send retained messages after reconnecting.
+			supervisor.setListener(new MqttConnectionSupervisor.Listener() {
+
+				@Override
+				public void connected(BlockingConnection reconnected) throws Exception {
+					connection = reconnected;
+					subscribe(reconnected);
+					outbound.setConnection(reconnected);
+					outbound.sendRetained();
+				}
+			});
+		}
+
+		/**
+		 * Subscribe to the topics of all assigned devices in batches.
+		 * 
+		 * @param target
+		 * @throws Exception
+		 */
+		protected void subscribe(BlockingConnection target) throws Exception {
+			List<Topic> topics = new ArrayList<Topic>();
+			for (HostedDevice device : devices) {
+				topics.add(new Topic(getInboundSiteWhereTopicPrefix() + device.getHardwareId(), QoS.AT_LEAST_ONCE));
+				topics.add(new Topic(getInboundCommandTopicPrefix() + device.getHardwareId(), QoS.AT_LEAST_ONCE));
+				if (topics.size() >= SUBSCRIBE_BATCH_SIZE) {
+					target.subscribe(topics.toArray(new Topic[topics.size()]));
+					topics.clear();
+				}
+			}
+			if (!topics.isEmpty()) {
+				target.subscribe(topics.toArray(new Topic[topics.size()]));
+			}
+		}
+
+		/**
+		 * Disconnect from the broker.
+		 */
+		public void disconnect() {
+			supervisor.stop();
+			LOGGER.info("Disconnected MQTT connection " + index + ".");
+		}
+
+		@Override
+		public void run() {
+			LOGGER.info("Started MQTT inbound processing for connection " + index + ".");
+			while (true) {
+				BlockingConnection current = connection;
+				try {
+					Message message;
+					try {
+						message = current.receive();
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						if (supervisor.isStopped()) {
+							LOGGER.warning("Host connection " + index + " closed.");
+							return;
+						}
+						supervisor.reconnect(current);
+						continue;
+					}
+					message.ack();
+					route(message);
+				} catch (InterruptedException e) {
+					LOGGER.warning("Host connection " + index + " interrupted.");
+					return;
+				} catch (Throwable e) {
+					LOGGER.log(Level.SEVERE, "Exception processing inbound message", e);
+				}
+			}
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public Agent.MQTTOutbound getOutbound() {
+			return outbound;
+		}
+
+		public MqttConnectionSupervisor getSupervisor() {
+			return supervisor;
+		}
+
+		public List<HostedDevice> getDevices() {
+			return devices;
+		}
+	}
+
+	/**
+	 * Handles graceful shutdown of host.
+	 * 
+	 * @author Derek
+	 */
+	public class ShutdownHandler extends Thread {
+		@Override
+		public void run() {
+			AgentHost.this.stop();
+		}
+	}
+}
\ No newline at end of file
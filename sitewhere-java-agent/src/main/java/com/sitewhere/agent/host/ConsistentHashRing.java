@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.host;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Assigns keys to nodes using a consistent-hash ring. Each node is placed on the ring
+ * at a number of points (virtual nodes) and a key belongs to the node at the first point
+ * at or after the hash of the key. Adding or removing one of N nodes only moves the keys
+ * next to that node's points, about 1/N of all keys, and virtual nodes keep the share of
+ * each node close to even.
+ * 
+ * Hashes depend only on the node names and keys, so every process given the same node
+ * list agrees on the owner of each key without talking to the others. Rings are
+ * immutable and safe to share between threads.
+ * 
+ * @author Derek
+ */
+public class ConsistentHashRing {
+
+	/** Default number of points per node */
+	public static final int DEFAULT_VIRTUAL_NODES = 256;
+
+	/** FNV-1a 64-bit offset basis */
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	/** FNV-1a 64-bit prime */
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** Nodes on ring */
+	private final List<String> nodes;
+
+	/** Hash of each point in ascending order */
+	private final long[] points;
+
+	/** Node owning each point */
+	private final String[] owners;
+
+	public ConsistentHashRing(Collection<String> nodes) {
+		this(nodes, DEFAULT_VIRTUAL_NODES);
+	}
+
+	public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("Hash ring needs at least one node.");
+		}
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Hash ring needs at least one point per node.");
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+
+		// Sort points by hash, breaking ties by node name so all processes agree.
+		final long[] hashes = new long[nodes.size() * virtualNodes];
+		final String[] names = new String[hashes.length];
+		Integer[] order = new Integer[hashes.length];
+		int index = 0;
+		for (String node : this.nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				hashes[index] = hash(node + "#" + i);
+				names[index] = node;
+				order[index] = index;
+				index++;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				int result = Long.compare(hashes[a], hashes[b]);
+				return (result != 0) ? result : names[a].compareTo(names[b]);
+			}
+		});
+		this.points = new long[hashes.length];
+		this.owners = new String[hashes.length];
+		for (int i = 0; i < order.length; i++) {
+			points[i] = hashes[order[i]];
+			owners[i] = names[order[i]];
+		}
+	}
+
+	/**
+	 * Get the node that owns a key.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public String getOwner(String key) {
+		int index = Arrays.binarySearch(points, hash(key));
+		if (index < 0) {
+			index = -index - 1;
+		} else {
+			// Use first of any points sharing the hash.
+			while ((index > 0) && (points[index - 1] == points[index])) {
+				index--;
+			}
+		}
+		return owners[(index == points.length) ? 0 : index];
+	}
+
+	/**
+	 * Hash a string to 64 bits. Uses FNV-1a over the UTF-8 bytes followed by a mixing
+	 * step so that similar strings spread across the whole ring.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static long hash(String value) {
+		long hash = FNV_OFFSET;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= FNV_PRIME;
+		}
+		hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+		return hash ^ (hash >>> 31);
+	}
+
+	public List<String> getNodes() {
+		return nodes;
+	}
+}
\ No newline at end of file
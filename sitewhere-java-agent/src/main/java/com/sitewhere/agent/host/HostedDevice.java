@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.host;
+
+import java.util.concurrent.ExecutorService;
+
+import com.sitewhere.agent.IAgentCommandProcessor;
+import com.sitewhere.agent.ISiteWhereEventDispatcher;
+
+/**
+ * A device run by an {@link AgentHost}. Holds only references to shared resources so
+ * that each device costs little more than its command processor.
+ * 
+ * @author Derek
+ */
+public class HostedDevice {
+
+	/** Hardware id */
+	private final String hardwareId;
+
+	/** Specification token */
+	private final String specificationToken;
+
+	/** Command processor for device */
+	private final IAgentCommandProcessor processor;
+
+	/** Dispatcher for the connection the device is assigned to */
+	private final ISiteWhereEventDispatcher dispatcher;
+
+	/** Worker that processes all messages for device */
+	private final ExecutorService worker;
+
+	public HostedDevice(String hardwareId, String specificationToken, IAgentCommandProcessor processor,
+			ISiteWhereEventDispatcher dispatcher, ExecutorService worker) {
+		this.hardwareId = hardwareId;
+		this.specificationToken = specificationToken;
+		this.processor = processor;
+		this.dispatcher = dispatcher;
+		this.worker = worker;
+	}
+
+	public String getHardwareId() {
+		return hardwareId;
+	}
+
+	public String getSpecificationToken() {
+		return specificationToken;
+	}
+
+	public IAgentCommandProcessor getProcessor() {
+		return processor;
+	}
+
+	public ISiteWhereEventDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	public ExecutorService getWorker() {
+		return worker;
+	}
+}
\ No newline at end of file
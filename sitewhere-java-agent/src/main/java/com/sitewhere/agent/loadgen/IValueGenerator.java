@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.loadgen;
+
+/**
+ * Produces synthetic values for events sent by the load generator.
+ * 
+ * @author Derek
+ */
+public interface IValueGenerator {
+
+	/**
+	 * Get the value at the given time.
+	 * 
+	 * @param elapsed milliseconds since the start of the run
+	 * @return
+	 */
+	public double next(long elapsed);
+}
\ No newline at end of file
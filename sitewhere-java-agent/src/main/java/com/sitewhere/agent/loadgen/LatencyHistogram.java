@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.loadgen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies in microseconds into buckets whose width grows with the value, so
+ * percentiles are accurate to about three percent at any scale using a fixed amount of
+ * memory. Safe for use by many threads without locking.
+ * 
+ * @author Derek
+ */
+public class LatencyHistogram {
+
+	/** Number of bits that select a sub-bucket within a power of two */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/** Number of sub-buckets in each power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Number of buckets needed for any non-negative long */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	/** Count of values in each bucket */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	/** Number of values recorded */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Largest value recorded */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+		buckets.incrementAndGet(getBucket(micros));
+		count.incrementAndGet();
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the latency in microseconds that the given percentage of values do not exceed.
+	 * 
+	 * @param percentile between 0 and 100
+	 * @return
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max((long) Math.ceil(total * percentile / 100), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(getUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Get bucket index for a value.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	protected static int getBucket(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Get largest value that falls in a bucket.
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	protected static long getUpperBound(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,704 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.loadgen;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.MQTT;
+
+import com.sitewhere.agent.Agent;
+import com.sitewhere.agent.IAgentConfiguration;
+import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.agent.broker.MqttBroker;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.RegisterDevice;
+
+/**
+ * Drives a number of virtual devices that send events to SiteWhere at a fixed total
+ * rate, for sizing brokers and SiteWhere tenants. Each event is a measurement, location
+ * or alert chosen at random according to a configured mix, with values taken from a
+ * synthetic generator for the device.
+ * 
+ * Events are sent from several threads, each with its own MQTT connection and a share
+ * of the devices. Send times are planned in advance, and latency is measured from the
+ * planned time until the broker has accepted the message, so a slow broker shows up as
+ * latency rather than as a silently reduced rate. Throughput and latency percentiles
+ * are logged during the run and at the end.
+ * 
+ * @author Derek
+ */
+public class LoadGenerator {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+
+	/** Default number of virtual devices */
+	public static final int DEFAULT_DEVICES = 100;
+
+	/** Default total events per second */
+	public static final int DEFAULT_RATE = 1000;
+
+	/** Default run time in seconds */
+	public static final int DEFAULT_DURATION = 60;
+
+	/** Default number of sending threads */
+	public static final int DEFAULT_THREADS = 4;
+
+	/** Default relative weights of measurements, locations and alerts */
+	public static final String DEFAULT_MIX = "8,1,1";
+
+	/** Default value generator */
+	public static final String DEFAULT_GENERATOR = "sine";
+
+	/** Default generator period in milliseconds */
+	public static final long DEFAULT_PERIOD = 60000;
+
+	/** Default prefix for virtual device hardware ids */
+	public static final String DEFAULT_HARDWARE_PREFIX = "loadgen-";
+
+	/** Measurement id used for generated values */
+	public static final String MEASUREMENT_NAME = "loadgen.value";
+
+	/** Alert type used for generated alerts */
+	public static final String ALERT_TYPE = "loadgen.alert";
+
+	/** Interval in seconds between progress reports */
+	private static final int REPORT_INTERVAL = 10;
+
+	/** Latitude virtual devices are placed around */
+	private static final double BASE_LATITUDE = 33.7550;
+
+	/** Longitude virtual devices are placed around */
+	private static final double BASE_LONGITUDE = -84.3900;
+
+	/**
+	 * Types of event sent.
+	 * 
+	 * @author Derek
+	 */
+	public static enum EventType {
+		Measurement, Location, Alert
+	}
+
+	/** MQTT settings */
+	private final Agent settings = new Agent();
+
+	/** Specification token devices register with */
+	private String specificationToken;
+
+	/** Number of virtual devices */
+	private int deviceCount = DEFAULT_DEVICES;
+
+	/** Total events per second */
+	private int rate = DEFAULT_RATE;
+
+	/** Run time in seconds */
+	private int duration = DEFAULT_DURATION;
+
+	/** Number of sending threads */
+	private int threadCount = DEFAULT_THREADS;
+
+	/** Relative weight of each event type */
+	private int[] mix = parseMix(DEFAULT_MIX);
+
+	/** Name of value generator */
+	private String generator = DEFAULT_GENERATOR;
+
+	/** Generator period in milliseconds */
+	private long period = DEFAULT_PERIOD;
+
+	/** Prefix for virtual device hardware ids */
+	private String hardwarePrefix = DEFAULT_HARDWARE_PREFIX;
+
+	/** Indicates whether devices are registered before sending events */
+	private boolean register = true;
+
+	/** Indicates whether events are sent to an in-process broker */
+	private boolean embeddedBroker;
+
+	/** Latency of sent events */
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/** Number of events sent by type */
+	private final AtomicLongArray sent = new AtomicLongArray(EventType.values().length);
+
+	/** Number of events that could not be sent */
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Validates the load generator configuration.
+	 * 
+	 * @param properties
+	 * @return
+	 */
+	public boolean load(Properties properties) {
+		LOGGER.info("Validating load generator configuration...");
+		setDeviceCount(parseInt(properties, IAgentConfiguration.LOADGEN_DEVICES, DEFAULT_DEVICES, 1));
+		setRate(parseInt(properties, IAgentConfiguration.LOADGEN_RATE, DEFAULT_RATE));
+		setDuration(parseInt(properties, IAgentConfiguration.LOADGEN_DURATION, DEFAULT_DURATION));
+		setThreadCount(parseInt(properties, IAgentConfiguration.LOADGEN_THREADS, DEFAULT_THREADS));
+		setPeriod(parseInt(properties, IAgentConfiguration.LOADGEN_PERIOD, (int) DEFAULT_PERIOD));
+
+		String strMix = properties.getProperty(IAgentConfiguration.LOADGEN_MIX);
+		if (strMix != null) {
+			try {
+				setMix(parseMix(strMix));
+			} catch (IllegalArgumentException e) {
+				LOGGER.warning("Invalid load generator event mix specified, using: " + DEFAULT_MIX);
+			}
+		}
+		String strGenerator = properties.getProperty(IAgentConfiguration.LOADGEN_GENERATOR);
+		if (strGenerator != null) {
+			setGenerator(strGenerator.trim().toLowerCase(Locale.ROOT));
+		}
+		String strPrefix = properties.getProperty(IAgentConfiguration.LOADGEN_HARDWARE_PREFIX);
+		if (strPrefix != null) {
+			setHardwarePrefix(strPrefix);
+		}
+		String strBroker = properties.getProperty(IAgentConfiguration.LOADGEN_BROKER);
+		if (strBroker != null) {
+			setEmbeddedBroker("embedded".equals(strBroker.trim().toLowerCase(Locale.ROOT)));
+		}
+		String strRegister = properties.getProperty(IAgentConfiguration.LOADGEN_REGISTER);
+		if (strRegister != null) {
+			setRegister(Boolean.parseBoolean(strRegister.trim()));
+		}
+
+		setSpecificationToken(properties.getProperty(IAgentConfiguration.DEVICE_SPECIFICATION_TOKEN));
+		if (isRegister() && (getSpecificationToken() == null)) {
+			LOGGER.severe("Device specification token not specified in configuration.");
+			return false;
+		}
+		return getSettings().loadSettings(properties);
+	}
+
+	/**
+	 * Send events for the configured duration, then log the results.
+	 * 
+	 * @throws SiteWhereAgentException
+	 */
+	public void run() throws SiteWhereAgentException {
+		MqttBroker broker = null;
+		if (isEmbeddedBroker()) {
+			broker = new MqttBroker(0);
+			try {
+				getSettings().setMqttHostname(InetAddress.getLoopbackAddress().getHostAddress());
+				getSettings().setMqttPort(broker.start());
+			} catch (IOException e) {
+				throw new SiteWhereAgentException("Unable to start embedded MQTT broker.", e);
+			}
+		}
+		try {
+			send();
+		} finally {
+			if (broker != null) {
+				broker.stop();
+			}
+		}
+	}
+
+	/**
+	 * Connect senders and send events until the run ends.
+	 * 
+	 * @throws SiteWhereAgentException
+	 */
+	protected void send() throws SiteWhereAgentException {
+		int threads = Math.max(1, Math.min(getThreadCount(), getDeviceCount()));
+		LOGGER.info("Load generator sending " + getRate() + " events/s from " + getDeviceCount()
+				+ " devices on " + threads + " connections for " + getDuration() + "s...");
+
+		// Connect and register every device before starting the clock.
+		List<Sender> senders = new ArrayList<Sender>();
+		for (int i = 0; i < threads; i++) {
+			Sender sender = new Sender(i, threads);
+			sender.connect();
+			senders.add(sender);
+		}
+
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(getDuration());
+		CountDownLatch done = new CountDownLatch(threads);
+		for (Sender sender : senders) {
+			sender.start(start, end, done);
+		}
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		final AtomicLong lastTotal = new AtomicLong();
+		reporter.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				long total = getSentCount();
+				LOGGER.info("Sent " + (total - lastTotal.getAndSet(total)) / REPORT_INTERVAL + " events/s, p99 "
+						+ formatMillis(latency.getPercentile(99)) + ".");
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SiteWhereAgentException("Load generator interrupted.", e);
+		} finally {
+			reporter.shutdownNow();
+			for (Sender sender : senders) {
+				sender.disconnect();
+			}
+		}
+		report(System.nanoTime() - start);
+	}
+
+	/**
+	 * Log the results of a run.
+	 * 
+	 * @param elapsed run time in nanoseconds
+	 */
+	protected void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		long total = getSentCount();
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("Load generator sent %d events in %.1fs (%.0f events/s, target %d) with %d "
+				+ "failures.", total, seconds, total / seconds, getRate(), failed.get()));
+		for (EventType type : EventType.values()) {
+			out.append(String.format("%n  %-12s %d", type.name(), sent.get(type.ordinal())));
+		}
+		out.append(String.format("%n  Latency p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+				formatMillis(latency.getPercentile(50)), formatMillis(latency.getPercentile(90)),
+				formatMillis(latency.getPercentile(99)), formatMillis(latency.getPercentile(99.9)),
+				formatMillis(latency.getMax())));
+		LOGGER.info(out.toString());
+	}
+
+	/**
+	 * Create the value generator for a device. Periodic generators are shifted by device
+	 * so that devices do not all peak at once.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	protected IValueGenerator createGenerator(int index) {
+		long phase = (getPeriod() * index) / Math.max(getDeviceCount(), 1);
+		if ("randomwalk".equals(getGenerator())) {
+			return new RandomWalkGenerator(50, 1, 0, 100);
+		} else if ("step".equals(getGenerator())) {
+			return new StepGenerator(0, 100, getPeriod(), phase);
+		}
+		return new SineGenerator(50, 50, getPeriod(), phase);
+	}
+
+	/**
+	 * Choose an event type at random according to the mix.
+	 * 
+	 * @param random
+	 * @return
+	 */
+	protected EventType chooseType(ThreadLocalRandom random) {
+		int total = 0;
+		for (int weight : mix) {
+			total += weight;
+		}
+		int pick = random.nextInt(total);
+		for (int i = 0; i < mix.length; i++) {
+			pick -= mix[i];
+			if (pick < 0) {
+				return EventType.values()[i];
+			}
+		}
+		return EventType.Measurement;
+	}
+
+	/**
+	 * Parse event mix in the form <code>measurements,locations,alerts</code>.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	protected static int[] parseMix(String value) {
+		String[] parts = value.split(",");
+		if (parts.length != EventType.values().length) {
+			throw new IllegalArgumentException("Mix must have " + EventType.values().length + " weights.");
+		}
+		int[] weights = new int[parts.length];
+		int total = 0;
+		for (int i = 0; i < parts.length; i++) {
+			weights[i] = Integer.parseInt(parts[i].trim());
+			if (weights[i] < 0) {
+				throw new IllegalArgumentException("Mix weights must not be negative.");
+			}
+			total += weights[i];
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("Mix must have at least one positive weight.");
+		}
+		return weights;
+	}
+
+	/**
+	 * Parse an integer property that must be at least the given minimum, logging a warning
+	 * and using the default if it is smaller.
+	 * 
+	 * @param properties
+	 * @param name
+	 * @param defaultValue
+	 * @param minimum
+	 * @return
+	 */
+	protected static int parseInt(Properties properties, String name, int defaultValue, int minimum) {
+		int value = parseInt(properties, name, defaultValue);
+		if (value < minimum) {
+			LOGGER.warning("Value specified for " + name + " must be at least " + minimum + ", using: "
+					+ defaultValue);
+			return defaultValue;
+		}
+		return value;
+	}
+
+	/**
+	 * Parse an integer property, logging a warning and using the default if not numeric.
+	 * 
+	 * @param properties
+	 * @param name
+	 * @param defaultValue
+	 * @return
+	 */
+	protected static int parseInt(Properties properties, String name, int defaultValue) {
+		String value = properties.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Non-numeric value specified for " + name + ", using: " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Format a latency in microseconds as milliseconds.
+	 * 
+	 * @param micros
+	 * @return
+	 */
+	protected static String formatMillis(long micros) {
+		return String.format("%.2fms", micros / 1000.0);
+	}
+
+	/**
+	 * Get total number of events sent.
+	 * 
+	 * @return
+	 */
+	public long getSentCount() {
+		long total = 0;
+		for (int i = 0; i < sent.length(); i++) {
+			total += sent.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Get number of events of a type sent.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	public long getSentCount(EventType type) {
+		return sent.get(type.ordinal());
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public Agent getSettings() {
+		return settings;
+	}
+
+	public String getSpecificationToken() {
+		return specificationToken;
+	}
+
+	public void setSpecificationToken(String specificationToken) {
+		this.specificationToken = specificationToken;
+	}
+
+	public int getDeviceCount() {
+		return deviceCount;
+	}
+
+	public void setDeviceCount(int deviceCount) {
+		this.deviceCount = deviceCount;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	public void setRate(int rate) {
+		this.rate = rate;
+	}
+
+	public int getDuration() {
+		return duration;
+	}
+
+	public void setDuration(int duration) {
+		this.duration = duration;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	public int[] getMix() {
+		return mix;
+	}
+
+	public void setMix(int[] mix) {
+		this.mix = mix;
+	}
+
+	public String getGenerator() {
+		return generator;
+	}
+
+	public void setGenerator(String generator) {
+		this.generator = generator;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	public void setPeriod(long period) {
+		this.period = period;
+	}
+
+	public String getHardwarePrefix() {
+		return hardwarePrefix;
+	}
+
+	public void setHardwarePrefix(String hardwarePrefix) {
+		this.hardwarePrefix = hardwarePrefix;
+	}
+
+	public boolean isEmbeddedBroker() {
+		return embeddedBroker;
+	}
+
+	public void setEmbeddedBroker(boolean embeddedBroker) {
+		this.embeddedBroker = embeddedBroker;
+	}
+
+	public boolean isRegister() {
+		return register;
+	}
+
+	public void setRegister(boolean register) {
+		this.register = register;
+	}
+
+	/**
+	 * Sends events for a share of the virtual devices on its own connection and thread.
+	 * 
+	 * @author Derek
+	 */
+	protected class Sender implements Runnable {
+
+		/** Index of sender */
+		private final int index;
+
+		/** Hardware ids of devices */
+		private final List<String> hardwareIds = new ArrayList<String>();
+
+		/** Value generators of devices */
+		private final List<IValueGenerator> generators = new ArrayList<IValueGenerator>();
+
+		/** Time between events in nanoseconds */
+		private final double interval;
+
+		/** Fraction of an interval sends are delayed by, spreading senders evenly */
+		private final double offset;
+
+		/** MQTT connection */
+		private BlockingConnection connection;
+
+		/** Sends events */
+		private Agent.MQTTOutbound outbound;
+
+		/** Start of run */
+		private long start;
+
+		/** End of run */
+		private long end;
+
+		/** Counted down when sender finishes */
+		private CountDownLatch done;
+
+		public Sender(int index, int senders) {
+			this.index = index;
+			for (int i = index; i < getDeviceCount(); i += senders) {
+				hardwareIds.add(getHardwarePrefix() + i);
+				generators.add(createGenerator(i));
+			}
+			this.interval = (1e9 * senders) / Math.max(getRate(), 1);
+			this.offset = (double) index / senders;
+		}
+
+		/**
+		 * Connect to the broker and register devices.
+		 * 
+		 * @throws SiteWhereAgentException
+		 */
+		public void connect() throws SiteWhereAgentException {
+			MQTT mqtt = new MQTT();
+			try {
+				mqtt.setHost(getSettings().getMqttHostname(), getSettings().getMqttPort());
+			} catch (URISyntaxException e) {
+				throw new SiteWhereAgentException("Invalid hostname for MQTT server.", e);
+			}
+			mqtt.setClientId(String.format("swload-%d-%08x", index, ThreadLocalRandom.current().nextInt()));
+			connection = mqtt.blockingConnection();
+			try {
+				connection.connect();
+			} catch (Exception e) {
+				throw new SiteWhereAgentException("Unable to establish MQTT connection.", e);
+			}
+			outbound = new Agent.MQTTOutbound(connection, getSettings().getOutboundSiteWhereTopic());
+			if (isRegister()) {
+				for (String hardwareId : hardwareIds) {
+					outbound.registerDevice(RegisterDevice.newBuilder().setHardwareId(hardwareId)
+							.setSpecificationToken(getSpecificationToken()).build(), null);
+				}
+			}
+		}
+
+		/**
+		 * Start sending on a new thread.
+		 * 
+		 * @param start
+		 * @param end
+		 * @param done
+		 */
+		public void start(long start, long end, CountDownLatch done) {
+			this.start = start;
+			this.end = end;
+			this.done = done;
+			Thread thread = new Thread(this, "SiteWhere load generator " + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			try {
+				for (long n = 0;; n++) {
+					long planned = start + (long) ((n + offset) * interval);
+					if (planned >= end) {
+						break;
+					}
+					long wait = planned - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					int device = (int) (n % hardwareIds.size());
+					long elapsed = TimeUnit.NANOSECONDS.toMillis(planned - start);
+					double value = generators.get(device).next(elapsed);
+					EventType type = chooseType(random);
+					try {
+						send(type, hardwareIds.get(device), value);
+						latency.record(System.nanoTime() - planned);
+						sent.incrementAndGet(type.ordinal());
+					} catch (SiteWhereAgentException e) {
+						if (failed.incrementAndGet() == 1) {
+							LOGGER.log(Level.WARNING, "Unable to send load generator event.", e);
+						}
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Send an event of the given type.
+		 * 
+		 * @param type
+		 * @param hardwareId
+		 * @param value
+		 * @throws SiteWhereAgentException
+		 */
+		protected void send(EventType type, String hardwareId, double value) throws SiteWhereAgentException {
+			switch (type) {
+			case Measurement: {
+				outbound.sendMeasurement(Model.DeviceMeasurements.newBuilder().setHardwareId(hardwareId)
+						.addMeasurement(Model.Measurement.newBuilder().setMeasurementId(MEASUREMENT_NAME)
+								.setMeasurementValue(value))
+						.build(), null);
+				break;
+			}
+			case Location: {
+				outbound.sendLocation(Model.DeviceLocation.newBuilder().setHardwareId(hardwareId)
+						.setLatitude(BASE_LATITUDE + value / 1000).setLongitude(BASE_LONGITUDE - value / 1000)
+						.setElevation(value).build(), null);
+				break;
+			}
+			case Alert: {
+				outbound.sendAlert(Model.DeviceAlert.newBuilder().setHardwareId(hardwareId)
+						.setAlertType(ALERT_TYPE).setAlertMessage("Generated value " + value).build(), null);
+				break;
+			}
+			}
+		}
+
+		/**
+		 * Disconnect from the broker.
+		 */
+		public void disconnect() {
+			try {
+				if ((connection != null) && connection.isConnected()) {
+					connection.disconnect();
+				}
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Exception disconnecting load generator connection.", e);
+			}
+		}
+	}
+}
\ No newline at end of file
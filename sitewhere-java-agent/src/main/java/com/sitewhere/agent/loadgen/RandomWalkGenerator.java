@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.loadgen;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates values that move by a random amount from the previous value, staying
+ * within a range. Each generator keeps its own position, so it should only be used by
+ * one thread at a time.
+ * 
+ * @author Derek
+ */
+public class RandomWalkGenerator implements IValueGenerator {
+
+	/** Largest change between values */
+	private final double maxStep;
+
+	/** Lowest value */
+	private final double min;
+
+	/** Highest value */
+	private final double max;
+
+	/** Current value */
+	private double value;
+
+	public RandomWalkGenerator(double start, double maxStep, double min, double max) {
+		this.value = start;
+		this.maxStep = maxStep;
+		this.min = min;
+		this.max = max;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.agent.loadgen.IValueGenerator#next(long)
+	 */
+	@Override
+	public double next(long elapsed) {
+		value += (ThreadLocalRandom.current().nextDouble() * 2 - 1) * maxStep;
+		value = Math.max(min, Math.min(max, value));
+		return value;
+	}
+}
\ No newline at end of file
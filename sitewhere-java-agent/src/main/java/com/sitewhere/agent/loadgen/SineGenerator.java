@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.loadgen;
+
+/**
+ * Generates values that follow a sine wave.
+ * 
+ * @author Derek
+ */
+public class SineGenerator implements IValueGenerator {
+
+	/** Value at center of wave */
+	private final double offset;
+
+	/** Distance from center to peak */
+	private final double amplitude;
+
+	/** Length of one cycle in milliseconds */
+	private final long period;
+
+	/** Offset into cycle in milliseconds */
+	private final long phase;
+
+	public SineGenerator(double offset, double amplitude, long period, long phase) {
+		this.offset = offset;
+		this.amplitude = amplitude;
+		this.period = Math.max(period, 1);
+		this.phase = phase;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.agent.loadgen.IValueGenerator#next(long)
+	 */
+	@Override
+	public double next(long elapsed) {
+		return offset + amplitude * Math.sin(2 * Math.PI * ((elapsed + phase) % period) / period);
+	}
+}
\ No newline at end of file
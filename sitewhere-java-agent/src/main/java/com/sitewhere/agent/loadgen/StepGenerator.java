@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.loadgen;
+
+/**
+ * Generates values that switch between a low and a high level, spending half of each
+ * period at each level.
+ * 
+ * @author Derek
+ */
+public class StepGenerator implements IValueGenerator {
+
+	/** Low level */
+	private final double low;
+
+	/** High level */
+	private final double high;
+
+	/** Length of one cycle in milliseconds */
+	private final long period;
+
+	/** Offset into cycle in milliseconds */
+	private final long phase;
+
+	public StepGenerator(double low, double high, long period, long phase) {
+		this.low = low;
+		this.high = high;
+		this.period = Math.max(period, 2);
+		this.phase = phase;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.agent.loadgen.IValueGenerator#next(long)
+	 */
+	@Override
+	public double next(long elapsed) {
+		return (((elapsed + phase) % period) < (period / 2)) ? low : high;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.recording;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads frames in order from a log written by {@link TrafficRecorder}.
+ * 
+ * @author Derek
+ */
+public class TrafficReader {
+
+	/** Reads file */
+	private final DataInputStream in;
+
+	/** Recording start time in epoch milliseconds */
+	private final long startTime;
+
+	public TrafficReader(File file) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != TrafficRecorder.MAGIC) {
+				throw new IOException(file.getAbsolutePath() + " is not a traffic recording.");
+			}
+			int version = in.readInt();
+			if (version != TrafficRecorder.VERSION) {
+				throw new IOException("Unsupported traffic recording version: " + version);
+			}
+			this.startTime = in.readLong();
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the next frame.
+	 * 
+	 * @return frame or null at end of recording
+	 * @throws IOException
+	 */
+	public TrafficRecord next() throws IOException {
+		try {
+			int length = in.readInt();
+			if (length <= 0) {
+				return null;
+			}
+			long timestamp = in.readLong();
+			TrafficRecord.Direction direction = TrafficRecord.Direction.values()[in.readByte()];
+			byte[] topic = new byte[in.readShort() & 0xffff];
+			in.readFully(topic);
+			byte[] payload = new byte[length - (TrafficRecorder.FRAME_HEADER_SIZE - 4) - topic.length];
+			in.readFully(payload);
+			return new TrafficRecord(timestamp, direction, new String(topic, StandardCharsets.UTF_8), payload);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Close the recording.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.recording;
+
+/**
+ * A single MQTT frame read from a traffic recording.
+ * 
+ * @author Derek
+ */
+public class TrafficRecord {
+
+	/**
+	 * Direction a frame travelled in.
+	 * 
+	 * @author Derek
+	 */
+	public static enum Direction {
+
+		/** Published by the agent */
+		Outbound,
+
+		/** Received by the agent */
+		Inbound;
+	}
+
+	/** Nanoseconds since recording started */
+	private final long timestamp;
+
+	/** Direction of frame */
+	private final Direction direction;
+
+	/** MQTT topic */
+	private final String topic;
+
+	/** Message payload */
+	private final byte[] payload;
+
+	public TrafficRecord(long timestamp, Direction direction, String topic, byte[] payload) {
+		this.timestamp = timestamp;
+		this.direction = direction;
+		this.topic = topic;
+		this.payload = payload;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.client.Message;
+
+/**
+ * Appends MQTT frames to a binary log for later replay. Frames are copied into a
+ * memory-mapped region of the file, so recording costs about as much as copying the
+ * payload and writes reach the disk without blocking the caller. The file grows one
+ * region at a time and is trimmed to the data written when closed.
+ * 
+ * The file starts with a header holding {@link #MAGIC}, {@link #VERSION} and the
+ * recording start time in epoch milliseconds. Each frame follows as an int length of
+ * the rest of the frame, a long timestamp in nanoseconds since the start, a byte
+ * direction, a short topic length, the UTF-8 topic and the payload. The length is
+ * written last, so a frame cut short by a crash reads as the end of the log.
+ * 
+ * Recording errors are logged and stop the recording rather than interrupting message
+ * processing.
+ * 
+ * @author Derek
+ */
+public class TrafficRecorder {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(TrafficRecorder.class.getName());
+
+	/** Identifies a traffic recording */
+	public static final int MAGIC = 0x53575452;
+
+	/** File format version */
+	public static final int VERSION = 1;
+
+	/** Size of file header */
+	public static final int HEADER_SIZE = 16;
+
+	/** Size of frame fields before topic */
+	public static final int FRAME_HEADER_SIZE = 4 + 8 + 1 + 2;
+
+	/** Size of each mapped region of the file */
+	private static final int REGION_SIZE = 16 * 1024 * 1024;
+
+	/** File frames are written to */
+	private final File file;
+
+	/** File being written */
+	private final RandomAccessFile raf;
+
+	/** Channel for mapping regions */
+	private final FileChannel channel;
+
+	/** Value of nanosecond clock when recording started */
+	private final long startNanos;
+
+	/** Encoded topics */
+	private final ConcurrentMap<String, byte[]> topics = new ConcurrentHashMap<String, byte[]>();
+
+	/** Region currently written */
+	private MappedByteBuffer region;
+
+	/** File offset of current region */
+	private long regionStart;
+
+	/** Number of frames recorded */
+	private long frameCount;
+
+	/** Indicates recorder has been closed */
+	private boolean closed;
+
+	public TrafficRecorder(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		this.startNanos = System.nanoTime();
+		channel.truncate(0);
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+		region.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+		LOGGER.info("Recording MQTT traffic to " + file.getAbsolutePath() + ".");
+	}
+
+	/**
+	 * Record a frame published by the agent.
+	 * 
+	 * @param topic
+	 * @param payload
+	 */
+	public void recordOutbound(String topic, byte[] payload) {
+		byte[] encoded = topics.get(topic);
+		if (encoded == null) {
+			encoded = topic.getBytes(StandardCharsets.UTF_8);
+			topics.putIfAbsent(topic, encoded);
+		}
+		record(TrafficRecord.Direction.Outbound, encoded, 0, encoded.length, payload, 0, payload.length);
+	}
+
+	/**
+	 * Record a message received by the agent.
+	 * 
+	 * @param message
+	 */
+	public void recordInbound(Message message) {
+		Buffer topic = message.getTopicBuffer();
+		Buffer payload = message.getPayloadBuffer();
+		record(TrafficRecord.Direction.Inbound, topic.data, topic.offset, topic.length, payload.data,
+				payload.offset, payload.length);
+	}
+
+	/**
+	 * Append a frame.
+	 * 
+	 * @param direction
+	 * @param topic
+	 * @param topicOffset
+	 * @param topicLength
+	 * @param payload
+	 * @param payloadOffset
+	 * @param payloadLength
+	 */
+	protected synchronized void record(TrafficRecord.Direction direction, byte[] topic, int topicOffset,
+			int topicLength, byte[] payload, int payloadOffset, int payloadLength) {
+		if (closed) {
+			return;
+		}
+		long timestamp = System.nanoTime() - startNanos;
+		int size = FRAME_HEADER_SIZE + topicLength + payloadLength;
+		try {
+			if (region.remaining() < size) {
+				regionStart += region.position();
+				region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, size));
+			}
+			int start = region.position();
+			region.position(start + 4);
+			region.putLong(timestamp).put((byte) direction.ordinal()).putShort((short) topicLength);
+			region.put(topic, topicOffset, topicLength).put(payload, payloadOffset, payloadLength);
+			region.putInt(start, size - 4);
+			frameCount++;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to record MQTT traffic. Recording stopped.", e);
+			close();
+		}
+	}
+
+	/**
+	 * Flush frames to disk and trim the file to the data written.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			long length = regionStart + region.position();
+			region.force();
+			region = null;
+			channel.truncate(length);
+			raf.close();
+			LOGGER.info("Recorded " + frameCount + " MQTT frames (" + length + " bytes) to "
+					+ file.getAbsolutePath() + ".");
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to close traffic recording.", e);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getFrameCount() {
+		return frameCount;
+	}
+}
\ No newline at end of file
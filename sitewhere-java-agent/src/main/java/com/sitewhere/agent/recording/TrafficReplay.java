@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.QoS;
+
+import com.sitewhere.agent.Agent;
+import com.sitewhere.agent.IAgentCommandProcessor;
+import com.sitewhere.agent.IAgentConfiguration;
+import com.sitewhere.agent.ISiteWhereEventDispatcher;
+import com.sitewhere.agent.SiteWhereAgentException;
+
+/**
+ * Replays a recording made by {@link TrafficRecorder} at the original speed, scaled by
+ * a factor, or as fast as possible.
+ * 
+ * In {@link Mode#Publish} mode every frame is published again to the topic it was
+ * recorded on, reproducing the traffic between an agent and SiteWhere on the broker. In
+ * {@link Mode#Dispatch} mode inbound frames are passed directly to a command processor
+ * in this process, which sends its responses to the broker as usual. Outbound frames
+ * are skipped since the processor produces its own.
+ * 
+ * @author Derek
+ */
+public class TrafficReplay {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(TrafficReplay.class.getName());
+
+	/** Default replay speed (original timing) */
+	public static final double DEFAULT_SPEED = 1.0;
+
+	/**
+	 * How frames are replayed.
+	 * 
+	 * @author Derek
+	 */
+	public static enum Mode {
+
+		/** Publish all frames to the broker */
+		Publish,
+
+		/** Pass inbound frames to a command processor */
+		Dispatch;
+	}
+
+	/** Agent settings */
+	private final Agent settings = new Agent();
+
+	/** Recording to replay */
+	private String file;
+
+	/** Speed relative to original timing (0 for as fast as possible) */
+	private double speed = DEFAULT_SPEED;
+
+	/** How frames are replayed */
+	private Mode mode = Mode.Publish;
+
+	/** MQTT connection */
+	private BlockingConnection connection;
+
+	/** Command processor frames are dispatched to */
+	private IAgentCommandProcessor processor;
+
+	/** Sends responses of command processor */
+	private ISiteWhereEventDispatcher dispatcher;
+
+	/**
+	 * Validates the replay configuration.
+	 * 
+	 * @param properties
+	 * @return
+	 */
+	public boolean load(Properties properties) {
+		LOGGER.info("Validating replay configuration...");
+		setFile(properties.getProperty(IAgentConfiguration.RECORDING_FILE));
+		if (getFile() == null) {
+			LOGGER.severe("Recording file not specified in configuration.");
+			return false;
+		}
+		String strSpeed = properties.getProperty(IAgentConfiguration.REPLAY_SPEED);
+		if (strSpeed != null) {
+			try {
+				setSpeed(Double.parseDouble(strSpeed));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Non-numeric replay speed specified, using: " + DEFAULT_SPEED);
+			}
+		}
+		String strMode = properties.getProperty(IAgentConfiguration.REPLAY_MODE);
+		if (strMode != null) {
+			if ("dispatch".equals(strMode.trim().toLowerCase(Locale.ROOT))) {
+				setMode(Mode.Dispatch);
+			} else if (!"publish".equals(strMode.trim().toLowerCase(Locale.ROOT))) {
+				LOGGER.warning("Unknown replay mode specified, using: publish");
+			}
+		}
+
+		// Dispatching needs a complete device configuration.
+		if (getMode() == Mode.Dispatch) {
+			return getSettings().load(properties);
+		}
+		return getSettings().loadSettings(properties);
+	}
+
+	/**
+	 * Replay the recording.
+	 * 
+	 * @return number of frames replayed
+	 * @throws SiteWhereAgentException
+	 */
+	public long run() throws SiteWhereAgentException {
+		connect();
+		TrafficReader reader;
+		try {
+			reader = new TrafficReader(new File(getFile()));
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to open recording " + getFile() + ".", e);
+		}
+		LOGGER.info("Replaying " + getFile() + " in " + getMode().name().toLowerCase(Locale.ROOT) + " mode"
+				+ ((getSpeed() > 0) ? " at " + getSpeed() + "x speed." : " at maximum speed."));
+		long count = 0;
+		long start = System.nanoTime();
+		long first = -1;
+		try {
+			TrafficRecord record;
+			while ((record = reader.next()) != null) {
+				if (first < 0) {
+					first = record.getTimestamp();
+				}
+				if (getSpeed() > 0) {
+					long due = start + (long) ((record.getTimestamp() - first) / getSpeed());
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				if (replay(record)) {
+					count++;
+				}
+			}
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to read recording " + getFile() + ".", e);
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+			}
+			disconnect();
+		}
+		LOGGER.info("Replayed " + count + " frames in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+				+ "ms.");
+		return count;
+	}
+
+	/**
+	 * Replay a single frame.
+	 * 
+	 * @param record
+	 * @return true if frame was replayed
+	 * @throws SiteWhereAgentException
+	 */
+	protected boolean replay(TrafficRecord record) throws SiteWhereAgentException {
+		if (getMode() == Mode.Publish) {
+			QoS qos = (record.getDirection() == TrafficRecord.Direction.Outbound) ? QoS.EXACTLY_ONCE
+					: QoS.AT_LEAST_ONCE;
+			try {
+				connection.publish(record.getTopic(), record.getPayload(), qos, false);
+			} catch (Exception e) {
+				throw new SiteWhereAgentException("Unable to publish replayed frame.", e);
+			}
+			return true;
+		}
+		if (record.getDirection() != TrafficRecord.Direction.Inbound) {
+			return false;
+		}
+		try {
+			if (record.getTopic().equals(getSettings().getInboundSiteWhereTopic())) {
+				processor.processSiteWhereCommand(record.getPayload(), 0, record.getPayload().length, dispatcher);
+			} else {
+				processor.processSpecificationCommand(record.getPayload(), dispatcher);
+			}
+		} catch (SiteWhereAgentException e) {
+			LOGGER.log(Level.WARNING, "Replayed frame failed on topic " + record.getTopic() + ".", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Connect to the broker and create the command processor if dispatching.
+	 * 
+	 * @throws SiteWhereAgentException
+	 */
+	protected void connect() throws SiteWhereAgentException {
+		MQTT mqtt = new MQTT();
+		try {
+			mqtt.setHost(getSettings().getMqttHostname(), getSettings().getMqttPort());
+		} catch (URISyntaxException e) {
+			throw new SiteWhereAgentException("Invalid hostname for MQTT server.", e);
+		}
+		connection = mqtt.blockingConnection();
+		try {
+			connection.connect();
+		} catch (Exception e) {
+			throw new SiteWhereAgentException("Unable to establish MQTT connection.", e);
+		}
+		if (getMode() == Mode.Dispatch) {
+			try {
+				processor = (IAgentCommandProcessor) Class.forName(getSettings().getCommandProcessorClassname())
+						.newInstance();
+			} catch (Exception e) {
+				throw new SiteWhereAgentException(e);
+			}
+			processor.setHardwareId(getSettings().getHardwareId());
+			processor.setSpecificationToken(getSettings().getSpecificationToken());
+			dispatcher = new Agent.MQTTOutbound(connection, getSettings().getOutboundSiteWhereTopic());
+			processor.setEventDispatcher(dispatcher);
+			getSettings().configure(processor);
+		}
+	}
+
+	/**
+	 * Disconnect from the broker.
+	 */
+	protected void disconnect() {
+		try {
+			if ((connection != null) && connection.isConnected()) {
+				connection.disconnect();
+			}
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Exception disconnecting from MQTT broker.", e);
+		}
+	}
+
+	public Agent getSettings() {
+		return settings;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds chunk boundaries from file content using a gear rolling hash. A boundary is
+ * placed where the hash of the preceding bytes matches a mask, so an edit only changes
+ * the chunks around it and the rest of the file splits into the same chunks as before.
+ * Chunks are kept between a minimum and maximum size and the mask is chosen to give
+ * the requested average size.
+ * 
+ * @author Derek
+ */
+public class ContentDefinedChunker {
+
+	/** Default minimum chunk size */
+	public static final int DEFAULT_MIN_SIZE = 2 * 1024;
+
+	/** Default average chunk size */
+	public static final int DEFAULT_AVERAGE_SIZE = 8 * 1024;
+
+	/** Default maximum chunk size */
+	public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+	/** Number of bytes that contribute to the hash at any position */
+	private static final int WINDOW = 64;
+
+	/** Random value for each byte value. Fixed seed so boundaries are stable across runs */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		long seed = 0x5369746557686572L;
+		for (int i = 0; i < GEAR.length; i++) {
+			seed += 0x9E3779B97F4A7C15L;
+			long z = seed;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	/** Minimum chunk size */
+	private final int minSize;
+
+	/** Maximum chunk size */
+	private final int maxSize;
+
+	/** Mask over high bits of hash that marks a boundary */
+	private final long mask;
+
+	public ContentDefinedChunker() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	public ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+		if ((minSize <= 0) || (averageSize <= minSize) || (maxSize < averageSize)) {
+			throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min < average <= max.");
+		}
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+
+		// Boundaries are geometrically distributed after the minimum size.
+		int bits = (int) Math.round(Math.log(averageSize - minSize) / Math.log(2));
+		this.mask = ((1L << bits) - 1) << (64 - bits);
+	}
+
+	/**
+	 * Find the end of the chunk that starts at the given index.
+	 * 
+	 * @param data
+	 * @param start index of first byte of chunk
+	 * @param end index after last byte available
+	 * @return index after last byte of chunk
+	 */
+	public int findBoundary(ByteBuffer data, int start, int end) {
+		int limit = (int) Math.min(end, (long) start + maxSize);
+		if (limit - start <= minSize) {
+			return limit;
+		}
+
+		// Only the last bytes affect the hash, so hashing can start just before the
+		// minimum size.
+		long hash = 0;
+		for (int i = Math.max(start, start + minSize - WINDOW); i < start + minSize; i++) {
+			hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+		}
+		for (int i = start + minSize; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+			if ((hash & mask) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+}
\ No newline at end of file
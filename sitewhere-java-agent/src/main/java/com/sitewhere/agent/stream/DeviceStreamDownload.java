@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+
+/**
+ * Reassembles the chunks of a device stream into a file. The file is preallocated to
+ * the full stream size and each chunk is written at the position given by its sequence
+ * number (starting at zero), so chunks may arrive in any order and are never buffered
+ * in memory. Received chunks are tracked in a bitmap and duplicates are ignored. The
+ * bitmap can be saved as a checkpoint and restored so that an interrupted download is
+ * resumed into the same file.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamDownload {
+
+	/** Stream id */
+	private final String streamId;
+
+	/** Target file */
+	private final File file;
+
+	/** Total size of stream in bytes */
+	private final long size;
+
+	/** Size of each chunk except the last */
+	private final int chunkSize;
+
+	/** Number of chunks in stream */
+	private final int chunkCount;
+
+	/** Notified on completion or failure */
+	private final IDeviceStreamDownloadListener listener;
+
+	/** Chunks already written */
+	private final BitSet received;
+
+	/** Open file handle */
+	private RandomAccessFile raf;
+
+	/** Channel used for positional writes */
+	private FileChannel channel;
+
+	/** Number of duplicate chunks ignored */
+	private long duplicateChunks;
+
+	public DeviceStreamDownload(String streamId, File file, long size, int chunkSize,
+			IDeviceStreamDownloadListener listener) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive.");
+		}
+		long chunks = (size + chunkSize - 1) / chunkSize;
+		if (chunks > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Stream has too many chunks for chunk size " + chunkSize + ".");
+		}
+		this.streamId = streamId;
+		this.file = file;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.chunkCount = (int) chunks;
+		this.listener = listener;
+		this.received = new BitSet(chunkCount);
+	}
+
+	/**
+	 * Open the target file and preallocate it to the full stream size.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(size);
+		channel = raf.getChannel();
+	}
+
+	/**
+	 * Mark chunks that were received by an earlier, interrupted download. The chunks must
+	 * already be present in the target file.
+	 * 
+	 * @param chunks
+	 */
+	public synchronized void restore(BitSet chunks) {
+		received.or(chunks.get(0, chunkCount));
+	}
+
+	/**
+	 * Flush written chunks to storage and return the chunks that are now durable.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public BitSet checkpoint() throws IOException {
+		BitSet written;
+		FileChannel target;
+		synchronized (this) {
+			written = (BitSet) received.clone();
+			target = channel;
+		}
+		if (target != null) {
+			target.force(false);
+		}
+		return written;
+	}
+
+	/**
+	 * Get the first chunk not yet received at or after the given index.
+	 * 
+	 * @param from
+	 * @return index of chunk or -1 if all chunks from the index on have been received
+	 */
+	public synchronized int nextMissing(int from) {
+		int next = received.nextClearBit(from);
+		return (next < chunkCount) ? next : -1;
+	}
+
+	/**
+	 * Write a chunk at the position given by its sequence number.
+	 * 
+	 * @param data
+	 * @return false if the chunk was already received
+	 * @throws IllegalArgumentException if the chunk does not fit the stream
+	 * @throws IOException
+	 */
+	public boolean write(Model.DeviceStreamData data) throws IOException {
+		long sequence = data.getSequenceNumber();
+		if ((sequence < 0) || (sequence >= chunkCount)) {
+			throw new IllegalArgumentException("Chunk " + sequence + " is outside of stream '" + streamId + "' with "
+					+ chunkCount + " chunks.");
+		}
+		int index = (int) sequence;
+		long position = sequence * chunkSize;
+		long expected = Math.min(chunkSize, size - position);
+		if (data.getData().size() != expected) {
+			throw new IllegalArgumentException("Chunk " + sequence + " of stream '" + streamId + "' has "
+					+ data.getData().size() + " bytes, expected " + expected + ".");
+		}
+		FileChannel target;
+		synchronized (this) {
+			if (channel == null) {
+				throw new IOException("Download of stream '" + streamId + "' is not open.");
+			}
+			if (received.get(index)) {
+				duplicateChunks++;
+				return false;
+			}
+			target = channel;
+		}
+
+		// Positional writes do not move the channel position, so chunks can be written
+		// concurrently without locking.
+		ByteBuffer buffer = data.getData().asReadOnlyByteBuffer();
+		while (buffer.hasRemaining()) {
+			position += target.write(buffer, position);
+		}
+		synchronized (this) {
+			received.set(index);
+			return true;
+		}
+	}
+
+	/**
+	 * Flush written data to storage and close the file.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.force(false);
+		} finally {
+			channel = null;
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * Indicates whether all chunks have been received.
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isComplete() {
+		return received.cardinality() == chunkCount;
+	}
+
+	/**
+	 * Get number of chunks received so far.
+	 * 
+	 * @return
+	 */
+	public synchronized int getReceivedChunks() {
+		return received.cardinality();
+	}
+
+	/**
+	 * Get a copy of the bitmap of received chunks.
+	 * 
+	 * @return
+	 */
+	public synchronized BitSet getReceived() {
+		return (BitSet) received.clone();
+	}
+
+	public synchronized long getDuplicateChunks() {
+		return duplicateChunks;
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	public IDeviceStreamDownloadListener getListener() {
+		return listener;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+
+/**
+ * Tracks device stream downloads in progress and routes inbound stream data chunks to
+ * them by stream id. A download must be registered before its chunks arrive, since the
+ * chunk messages do not carry the total stream size.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamDownloadManager {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(DeviceStreamDownloadManager.class.getName());
+
+	/** Downloads in progress by stream id */
+	private final ConcurrentMap<String, DeviceStreamDownload> downloads =
+			new ConcurrentHashMap<String, DeviceStreamDownload>();
+
+	/**
+	 * Register a download and preallocate its target file.
+	 * 
+	 * @param streamId
+	 * @param file
+	 * @param size
+	 * @param chunkSize
+	 * @param listener
+	 * @return
+	 * @throws IOException
+	 */
+	public DeviceStreamDownload register(String streamId, File file, long size, int chunkSize,
+			IDeviceStreamDownloadListener listener) throws IOException {
+		return register(new DeviceStreamDownload(streamId, file, size, chunkSize, listener));
+	}
+
+	/**
+	 * Register a download that was already created and open its target file.
+	 * 
+	 * @param download
+	 * @return
+	 * @throws IOException
+	 */
+	public DeviceStreamDownload register(DeviceStreamDownload download) throws IOException {
+		String streamId = download.getStreamId();
+		if (downloads.putIfAbsent(streamId, download) != null) {
+			throw new IOException("A download is already registered for stream '" + streamId + "'.");
+		}
+		try {
+			download.open();
+		} catch (IOException e) {
+			downloads.remove(streamId, download);
+			throw e;
+		}
+		if (download.isComplete()) {
+			finish(download);
+		}
+		return download;
+	}
+
+	/**
+	 * Write an inbound chunk to its download. Chunks for unknown streams are ignored.
+	 * 
+	 * @param data
+	 */
+	public void handleStreamData(Model.DeviceStreamData data) {
+		DeviceStreamDownload download = downloads.get(data.getStreamId());
+		if (download == null) {
+			LOGGER.warning("Ignoring data for stream '" + data.getStreamId() + "' with no registered download.");
+			return;
+		}
+		try {
+			if (download.write(data) && (download.getListener() != null)) {
+				download.getListener().onChunkWritten(download, (int) data.getSequenceNumber());
+			}
+			if (download.isComplete()) {
+				finish(download);
+			}
+		} catch (IllegalArgumentException e) {
+			LOGGER.warning("Ignoring invalid stream data. " + e.getMessage());
+		} catch (IOException e) {
+			fail(download, e);
+		}
+	}
+
+	/**
+	 * Cancel a download. The partial file is left in place.
+	 * 
+	 * @param streamId
+	 */
+	public void cancel(String streamId) {
+		DeviceStreamDownload download = downloads.remove(streamId);
+		if (download != null) {
+			try {
+				download.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to close cancelled download for stream '" + streamId + "'.", e);
+			}
+		}
+	}
+
+	/**
+	 * Get a download in progress.
+	 * 
+	 * @param streamId
+	 * @return
+	 */
+	public DeviceStreamDownload getDownload(String streamId) {
+		return downloads.get(streamId);
+	}
+
+	/**
+	 * Close a completed download and notify its listener.
+	 * 
+	 * @param download
+	 */
+	protected void finish(DeviceStreamDownload download) {
+		if (!downloads.remove(download.getStreamId(), download)) {
+			return;
+		}
+		try {
+			download.close();
+		} catch (IOException e) {
+			notifyFailed(download, e);
+			return;
+		}
+		LOGGER.info("Completed download of stream '" + download.getStreamId() + "' to "
+				+ download.getFile().getAbsolutePath() + ".");
+		if (download.getListener() != null) {
+			download.getListener().onDownloadComplete(download);
+		}
+	}
+
+	/**
+	 * Abandon a download that could not be written.
+	 * 
+	 * @param download
+	 * @param cause
+	 */
+	protected void fail(DeviceStreamDownload download, IOException cause) {
+		LOGGER.log(Level.WARNING, "Unable to write data for stream '" + download.getStreamId() + "'.", cause);
+		if (!downloads.remove(download.getStreamId(), download)) {
+			return;
+		}
+		try {
+			download.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to close failed download.", e);
+		}
+		notifyFailed(download, cause);
+	}
+
+	/**
+	 * Notify listener of a failed download.
+	 * 
+	 * @param download
+	 * @param cause
+	 */
+	protected void notifyFailed(DeviceStreamDownload download, Throwable cause) {
+		if (download.getListener() != null) {
+			download.getListener().onDownloadFailed(download, cause);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,529 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sitewhere.agent.HashedWheelTimer;
+import com.sitewhere.agent.ISiteWhereEventDispatcher;
+import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Downloads device streams by requesting chunks from SiteWhere. A sliding window of
+ * requests is kept outstanding so throughput is bounded by the window size rather than
+ * by request round trips: each chunk that arrives frees a slot for the next missing
+ * chunk. Requests that are not answered in time are retried.
+ * 
+ * Received chunks are written through a {@link DeviceStreamDownload}. A checkpoint of
+ * the chunks written is saved next to the target file as the download progresses, so a
+ * download that is interrupted resumes from the checkpoint instead of starting over.
+ * The checkpoint is removed once the download completes.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamFetcher {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(DeviceStreamFetcher.class.getName());
+
+	/** Default number of chunk requests outstanding */
+	public static final int DEFAULT_WINDOW = 8;
+
+	/** Default time in milliseconds to wait for a requested chunk */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 10 * 1000;
+
+	/** Default number of times a chunk is requested again before giving up */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+
+	/** Default number of chunks written between checkpoints */
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+
+	/** Suffix added to target file name for checkpoint file */
+	public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	/** Identifies checkpoint files that record their stream id */
+	private static final int CHECKPOINT_MAGIC = 0x53574351;
+
+	/** Downloads that received chunks are written to */
+	private final DeviceStreamDownloadManager downloads;
+
+	/** Timer for request timeouts */
+	private final HashedWheelTimer timer;
+
+	/** Fetches in progress by stream id */
+	private final ConcurrentMap<String, Fetch> fetches = new ConcurrentHashMap<String, Fetch>();
+
+	/** Sends retried requests so the timer thread is not blocked */
+	private ExecutorService retries;
+
+	/** Number of chunk requests outstanding */
+	private volatile int window = DEFAULT_WINDOW;
+
+	/** Time in milliseconds to wait for a requested chunk */
+	private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+	/** Number of times a chunk is requested again before giving up */
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+	/** Number of chunks written between checkpoints */
+	private volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+	public DeviceStreamFetcher(DeviceStreamDownloadManager downloads) {
+		this(downloads, HashedWheelTimer.getShared());
+	}
+
+	public DeviceStreamFetcher(DeviceStreamDownloadManager downloads, HashedWheelTimer timer) {
+		this.downloads = downloads;
+		this.timer = timer;
+	}
+
+	/**
+	 * Start fetching a stream into a file, resuming from a checkpoint if one exists for
+	 * the same stream layout. Returns once the first window of requests has been sent.
+	 * 
+	 * @param dispatcher
+	 * @param hardwareId
+	 * @param streamId
+	 * @param file
+	 * @param size
+	 * @param chunkSize
+	 * @param listener
+	 * @return
+	 * @throws IOException
+	 */
+	public DeviceStreamDownload fetch(ISiteWhereEventDispatcher dispatcher, String hardwareId, String streamId,
+			File file, long size, int chunkSize, IDeviceStreamDownloadListener listener) throws IOException {
+		Fetch fetch = new Fetch(dispatcher, hardwareId, streamId, getCheckpointFile(file), listener);
+		if (fetches.putIfAbsent(streamId, fetch) != null) {
+			throw new IOException("Stream '" + streamId + "' is already being fetched.");
+		}
+		try {
+			DeviceStreamDownload download = new DeviceStreamDownload(streamId, file, size, chunkSize, fetch);
+			BitSet restored = file.exists() ? loadCheckpoint(fetch.checkpoint, streamId, size, chunkSize) : null;
+			if (restored != null) {
+				download.restore(restored);
+				LOGGER.info("Resuming fetch of stream '" + streamId + "' with " + download.getReceivedChunks()
+						+ " of " + download.getChunkCount() + " chunks already received.");
+			}
+			fetch.download = download;
+			downloads.register(download);
+		} catch (IOException e) {
+			fetches.remove(streamId, fetch);
+			throw e;
+		}
+		fetch.fill();
+		return fetch.download;
+	}
+
+	/**
+	 * Stop fetching a stream. A checkpoint is saved so the fetch can be resumed later.
+	 * 
+	 * @param streamId
+	 */
+	public void cancel(String streamId) {
+		Fetch fetch = fetches.get(streamId);
+		if (fetch != null) {
+			fetch.stop();
+			fetch.saveCheckpoint();
+			downloads.cancel(streamId);
+		}
+	}
+
+	/**
+	 * Get file used to store the checkpoint for a target file.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public File getCheckpointFile(File file) {
+		return new File(file.getPath() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Load the chunks recorded in a checkpoint. Returns null if there is no checkpoint or
+	 * it was saved for a different stream or stream layout.
+	 * 
+	 * @param checkpoint
+	 * @param streamId
+	 * @param size
+	 * @param chunkSize
+	 * @return
+	 */
+	protected BitSet loadCheckpoint(File checkpoint, String streamId, long size, int chunkSize) {
+		if (!checkpoint.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+			if ((in.readInt() != CHECKPOINT_MAGIC) || !streamId.equals(in.readUTF()) || (in.readLong() != size)
+					|| (in.readInt() != chunkSize)) {
+				LOGGER.warning("Ignoring checkpoint " + checkpoint.getAbsolutePath() + " for a different stream.");
+				return null;
+			}
+			byte[] bits = new byte[in.readInt()];
+			in.readFully(bits);
+			return BitSet.valueOf(bits);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to read checkpoint " + checkpoint.getAbsolutePath() + ".", e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Unable to close checkpoint.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Save the durable chunks of a download to a checkpoint file. The file is written
+	 * under a temporary name and moved into place so a crash never leaves a partial
+	 * checkpoint. Callers must not save the same checkpoint concurrently since the
+	 * temporary file is shared.
+	 * 
+	 * @param checkpoint
+	 * @param download
+	 * @throws IOException
+	 */
+	protected void saveCheckpoint(File checkpoint, DeviceStreamDownload download) throws IOException {
+		byte[] bits = download.checkpoint().toByteArray();
+		File temp = new File(checkpoint.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeUTF(download.getStreamId());
+			out.writeLong(download.getSize());
+			out.writeInt(download.getChunkSize());
+			out.writeInt(bits.length);
+			out.write(bits);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Get executor used for sending retried requests.
+	 * 
+	 * @return
+	 */
+	protected synchronized ExecutorService getRetries() {
+		if (retries == null) {
+			retries = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "SiteWhere stream fetch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return retries;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public void setWindow(int window) {
+		this.window = window;
+	}
+
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * State of a single stream fetch. Receives download progress and keeps the request
+	 * window full.
+	 * 
+	 * @author Derek
+	 */
+	private class Fetch implements IDeviceStreamDownloadListener {
+
+		/** Used to send requests */
+		private final ISiteWhereEventDispatcher dispatcher;
+
+		/** Device hardware id */
+		private final String hardwareId;
+
+		/** Stream id */
+		private final String streamId;
+
+		/** Checkpoint file */
+		private final File checkpoint;
+
+		/** Serializes checkpoint saves from the inbound thread and the timeout or cancel path */
+		private final Object checkpointLock = new Object();
+
+		/** Listener supplied by caller */
+		private final IDeviceStreamDownloadListener listener;
+
+		/** Download chunks are written to */
+		private volatile DeviceStreamDownload download;
+
+		/** Outstanding requests by sequence number */
+		private final Map<Integer, Request> outstanding = new HashMap<Integer, Request>();
+
+		/** Next sequence number to consider requesting */
+		private int cursor;
+
+		/** Chunks written since last checkpoint */
+		private int sinceCheckpoint;
+
+		/** Indicates fetch has finished or been stopped */
+		private boolean stopped;
+
+		public Fetch(ISiteWhereEventDispatcher dispatcher, String hardwareId, String streamId, File checkpoint,
+				IDeviceStreamDownloadListener listener) {
+			this.dispatcher = dispatcher;
+			this.hardwareId = hardwareId;
+			this.streamId = streamId;
+			this.checkpoint = checkpoint;
+			this.listener = listener;
+		}
+
+		/**
+		 * Request missing chunks until the window is full.
+		 */
+		public void fill() {
+			List<Request> requests = new ArrayList<Request>();
+			synchronized (this) {
+				while (!stopped && (outstanding.size() < Math.max(getWindow(), 1))) {
+					int next = download.nextMissing(cursor);
+					if (next < 0) {
+						break;
+					}
+					cursor = next + 1;
+					Request request = new Request(next);
+					outstanding.put(next, request);
+					requests.add(request);
+				}
+			}
+			for (Request request : requests) {
+				send(request);
+			}
+		}
+
+		/**
+		 * Send a request for a chunk and start its timeout.
+		 * 
+		 * @param request
+		 */
+		protected void send(final Request request) {
+			request.timeout = timer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					onRequestTimeout(request);
+				}
+			}, getRequestTimeout(), TimeUnit.MILLISECONDS);
+			SiteWhere.DeviceStreamDataRequest.Builder builder = SiteWhere.DeviceStreamDataRequest.newBuilder();
+			builder.setHardwareId(hardwareId).setStreamId(streamId).setSequenceNumber(request.sequenceNumber);
+			try {
+				dispatcher.requestDeviceStreamData(builder.build(), null);
+			} catch (SiteWhereAgentException e) {
+				LOGGER.log(Level.WARNING, "Unable to request chunk " + request.sequenceNumber + " of stream '"
+						+ streamId + "'. Will retry.", e);
+			}
+		}
+
+		/**
+		 * Called by the timer when a request was not answered in time.
+		 * 
+		 * @param request
+		 */
+		protected void onRequestTimeout(final Request request) {
+			synchronized (this) {
+				if (stopped || (outstanding.get(request.sequenceNumber) != request)) {
+					return;
+				}
+				if (++request.attempts > getMaxRetries()) {
+					LOGGER.warning("Giving up on stream '" + streamId + "' after chunk " + request.sequenceNumber
+							+ " was requested " + request.attempts + " times.");
+				} else {
+					getRetries().execute(new Runnable() {
+
+						@Override
+						public void run() {
+							send(request);
+						}
+					});
+					return;
+				}
+			}
+			cancel(streamId);
+			if (listener != null) {
+				listener.onDownloadFailed(download,
+						new IOException("No response to request for chunk " + request.sequenceNumber + "."));
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.agent.stream.IDeviceStreamDownloadListener#onChunkWritten(com.
+		 * sitewhere.agent.stream.DeviceStreamDownload, int)
+		 */
+		@Override
+		public void onChunkWritten(DeviceStreamDownload download, int sequenceNumber) {
+			boolean checkpointDue = false;
+			synchronized (this) {
+				Request request = outstanding.remove(sequenceNumber);
+				if ((request != null) && (request.timeout != null)) {
+					request.timeout.cancel();
+				}
+				if (++sinceCheckpoint >= getCheckpointInterval()) {
+					sinceCheckpoint = 0;
+					checkpointDue = true;
+				}
+			}
+			if (checkpointDue) {
+				saveCheckpoint();
+			}
+			fill();
+			if (listener != null) {
+				listener.onChunkWritten(download, sequenceNumber);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.agent.stream.IDeviceStreamDownloadListener#onDownloadComplete(com
+		 * .sitewhere.agent.stream.DeviceStreamDownload)
+		 */
+		@Override
+		public void onDownloadComplete(DeviceStreamDownload download) {
+			stop();
+			if (checkpoint.exists() && !checkpoint.delete()) {
+				LOGGER.warning("Unable to remove checkpoint " + checkpoint.getAbsolutePath() + ".");
+			}
+			if (listener != null) {
+				listener.onDownloadComplete(download);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.agent.stream.IDeviceStreamDownloadListener#onDownloadFailed(com.
+		 * sitewhere.agent.stream.DeviceStreamDownload, java.lang.Throwable)
+		 */
+		@Override
+		public void onDownloadFailed(DeviceStreamDownload download, Throwable cause) {
+			stop();
+			saveCheckpoint();
+			if (listener != null) {
+				listener.onDownloadFailed(download, cause);
+			}
+		}
+
+		/**
+		 * Stop sending requests and cancel outstanding timeouts.
+		 */
+		public void stop() {
+			synchronized (this) {
+				stopped = true;
+				for (Request request : outstanding.values()) {
+					if (request.timeout != null) {
+						request.timeout.cancel();
+					}
+				}
+				outstanding.clear();
+			}
+			fetches.remove(streamId, this);
+		}
+
+		/**
+		 * Save a checkpoint, logging any failure. Chunk writes are not blocked while the
+		 * checkpoint is saved.
+		 */
+		public void saveCheckpoint() {
+			synchronized (checkpointLock) {
+				try {
+					DeviceStreamFetcher.this.saveCheckpoint(checkpoint, download);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Unable to save checkpoint for stream '" + streamId + "'.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Outstanding request for a chunk.
+	 * 
+	 * @author Derek
+	 */
+	private static class Request {
+
+		/** Sequence number requested */
+		private final int sequenceNumber;
+
+		/** Number of times request was retried */
+		private int attempts;
+
+		/** Timeout for current attempt */
+		private volatile HashedWheelTimer.Timeout timeout;
+
+		public Request(int sequenceNumber) {
+			this.sequenceNumber = sequenceNumber;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.protobuf.ByteString;
+import com.sitewhere.agent.ISiteWhereEventDispatcher;
+import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAckState;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+
+/**
+ * Uploads files to SiteWhere as device streams. The stream is created first and, once
+ * SiteWhere acknowledges it, the file is sent as a sequence of chunks numbered from
+ * zero. The file is memory mapped in segments and only a fixed number of chunks are in
+ * flight at a time, so heap usage is bounded by the window size times the chunk size no
+ * matter how large the file is.
+ * 
+ * Uploads block until all chunks are sent and must not be started on the thread that
+ * processes inbound SiteWhere messages, since that thread delivers the stream
+ * acknowledgement.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamUploader {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(DeviceStreamUploader.class.getName());
+
+	/** Default chunk size in bytes */
+	public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+
+	/** Default number of chunks in flight */
+	public static final int DEFAULT_WINDOW = 4;
+
+	/** Content type used when none is given */
+	public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	/** Default time in milliseconds to wait for stream creation to be acknowledged */
+	public static final long DEFAULT_ACK_TIMEOUT = 30 * 1000;
+
+	/** Maximum size of a mapped file segment */
+	private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** Streams waiting for creation to be acknowledged */
+	private final ConcurrentMap<String, PendingStream> pending = new ConcurrentHashMap<String, PendingStream>();
+
+	/** Chunk size in bytes */
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/** Number of chunks in flight */
+	private volatile int window = DEFAULT_WINDOW;
+
+	/** Time in milliseconds to wait for stream creation to be acknowledged */
+	private volatile long ackTimeout = DEFAULT_ACK_TIMEOUT;
+
+	/**
+	 * Create a device stream and upload the contents of a file to it.
+	 * 
+	 * @param dispatcher
+	 * @param hardwareId
+	 * @param streamId
+	 * @param contentType
+	 * @param file
+	 * @return number of chunks sent
+	 * @throws SiteWhereAgentException
+	 */
+	public int upload(ISiteWhereEventDispatcher dispatcher, String hardwareId, String streamId,
+			String contentType, File file) throws SiteWhereAgentException {
+		createStream(dispatcher, hardwareId, streamId, contentType);
+		try {
+			int sent = sendFile(dispatcher, hardwareId, streamId, file);
+			LOGGER.info("Uploaded " + sent + " chunks of " + file.getAbsolutePath() + " to stream '" + streamId
+					+ "'.");
+			return sent;
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to read " + file.getAbsolutePath() + " for upload.", e);
+		}
+	}
+
+	/**
+	 * Create a device stream and wait for SiteWhere to acknowledge it.
+	 * 
+	 * @param dispatcher
+	 * @param hardwareId
+	 * @param streamId
+	 * @param contentType
+	 * @throws SiteWhereAgentException
+	 */
+	protected void createStream(ISiteWhereEventDispatcher dispatcher, String hardwareId, String streamId,
+			String contentType) throws SiteWhereAgentException {
+		PendingStream stream = new PendingStream();
+		if (pending.putIfAbsent(streamId, stream) != null) {
+			throw new SiteWhereAgentException("Stream '" + streamId + "' is already being created.");
+		}
+		try {
+			Model.DeviceStream.Builder builder = Model.DeviceStream.newBuilder();
+			builder.setHardwareId(hardwareId).setStreamId(streamId);
+			builder.setContentType((contentType != null) ? contentType : DEFAULT_CONTENT_TYPE);
+			dispatcher.createDeviceStream(builder.build(), null);
+			if (!stream.latch.await(getAckTimeout(), TimeUnit.MILLISECONDS)) {
+				throw new SiteWhereAgentException("Timed out waiting for stream '" + streamId + "' to be created.");
+			}
+			if (stream.state == DeviceStreamAckState.STREAM_FAILED) {
+				throw new SiteWhereAgentException("SiteWhere was unable to create stream '" + streamId + "'.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SiteWhereAgentException("Interrupted while creating stream '" + streamId + "'.", e);
+		} finally {
+			pending.remove(streamId, stream);
+		}
+	}
+
+	/**
+	 * Handle acknowledgement of a stream creation request.
+	 * 
+	 * @param ack
+	 */
+	public void handleStreamAck(DeviceStreamAck ack) {
+		PendingStream stream = pending.get(ack.getStreamId());
+		if (stream != null) {
+			stream.state = ack.getState();
+			stream.latch.countDown();
+		}
+	}
+
+	/**
+	 * Send the contents of a file as stream data chunks.
+	 * 
+	 * @param dispatcher
+	 * @param hardwareId
+	 * @param streamId
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @throws SiteWhereAgentException
+	 */
+	protected int sendFile(ISiteWhereEventDispatcher dispatcher, String hardwareId, String streamId, File file)
+			throws IOException, SiteWhereAgentException {
+		int chunk = getChunkSize();
+		long segmentSize = Math.max(MAX_SEGMENT_SIZE / chunk, 1) * chunk;
+		StreamChunkSender sender = new StreamChunkSender(dispatcher, getWindow());
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		int sent = 0;
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			MappedByteBuffer segment = null;
+			long segmentStart = 0;
+			for (long position = 0; position < size; position += chunk) {
+				int length = (int) Math.min(chunk, size - position);
+				if ((segment == null) || (position + length > segmentStart + segment.capacity())) {
+					segmentStart = position;
+					segment = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(segmentSize, size - position));
+				}
+				ByteBuffer slice = segment.duplicate();
+				slice.position((int) (position - segmentStart));
+				slice.limit(slice.position() + length);
+
+				Model.DeviceStreamData data = Model.DeviceStreamData.newBuilder().setHardwareId(hardwareId)
+						.setStreamId(streamId).setSequenceNumber(position / chunk)
+						.setData(ByteString.copyFrom(slice)).build();
+				sender.send(data, null);
+				sent++;
+			}
+			sender.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SiteWhereAgentException("Interrupted while uploading stream '" + streamId + "'.", e);
+		} finally {
+			sender.shutdown();
+			raf.close();
+		}
+		return sent;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive.");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public void setWindow(int window) {
+		this.window = window;
+	}
+
+	public long getAckTimeout() {
+		return ackTimeout;
+	}
+
+	public void setAckTimeout(long ackTimeout) {
+		this.ackTimeout = ackTimeout;
+	}
+
+	/**
+	 * Stream waiting for creation to be acknowledged.
+	 * 
+	 * @author Derek
+	 */
+	private static class PendingStream {
+
+		/** Released when acknowledgement arrives */
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		/** State reported by SiteWhere */
+		private volatile DeviceStreamAckState state;
+	}
+}
\ No newline at end of file
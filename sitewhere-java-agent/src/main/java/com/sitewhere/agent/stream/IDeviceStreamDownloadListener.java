@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+/**
+ * Receives notification of device stream download progress.
+ * 
+ * @author Derek
+ */
+public interface IDeviceStreamDownloadListener {
+
+	/**
+	 * Called after a chunk that was not already received has been written.
+	 * 
+	 * @param download
+	 * @param sequenceNumber
+	 */
+	public void onChunkWritten(DeviceStreamDownload download, int sequenceNumber);
+
+	/**
+	 * Called once all chunks of the stream have been written and the file is closed.
+	 * 
+	 * @param download
+	 */
+	public void onDownloadComplete(DeviceStreamDownload download);
+
+	/**
+	 * Called if the download can not continue. The partial file is left in place.
+	 * 
+	 * @param download
+	 * @param cause
+	 */
+	public void onDownloadFailed(DeviceStreamDownload download, Throwable cause);
+}
\ No newline at end of file
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.protobuf.ByteString;
+import com.sitewhere.agent.ISiteWhereEventDispatcher;
+import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+
+/**
+ * Uploads files that change little between versions by sending only the chunks that
+ * SiteWhere has not already received. Files are split with a
+ * {@link ContentDefinedChunker} and each chunk is identified by its SHA-256 hash. Chunks
+ * found in the {@link StreamChunkIndex} are not sent again. New chunks are sent with
+ * their hash in the {@link #METADATA_HASH} metadata entry and recorded in the index.
+ * 
+ * The last chunk of each upload is a manifest (marked with {@link #METADATA_MANIFEST})
+ * that lists every chunk of the file in order, one per line, as
+ * <code>hash length streamId sequenceNumber</code>, so the file can be rebuilt from the
+ * chunks of this and earlier streams. Bandwidth for a repeat upload therefore scales
+ * with the size of the change rather than the size of the file.
+ * 
+ * The index assumes streams sent earlier are still available in SiteWhere. If they are
+ * removed, the index file should be deleted so that all chunks are sent again.
+ * 
+ * @author Derek
+ */
+public class IncrementalStreamUploader {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(IncrementalStreamUploader.class.getName());
+
+	/** Default chunk index file */
+	public static final String DEFAULT_INDEX_FILE = "stream-chunks.idx";
+
+	/** Metadata entry holding hash of a chunk */
+	public static final String METADATA_HASH = "hash";
+
+	/** Metadata entry marking the manifest chunk */
+	public static final String METADATA_MANIFEST = "manifest";
+
+	/** Maximum size of a mapped file segment */
+	private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** Hex digits */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Creates streams and supplies upload settings */
+	private final DeviceStreamUploader uploader;
+
+	/** Chunks already sent */
+	private final StreamChunkIndex index;
+
+	/** Splits files into chunks */
+	private ContentDefinedChunker chunker = new ContentDefinedChunker();
+
+	public IncrementalStreamUploader(DeviceStreamUploader uploader, File indexFile) {
+		this.uploader = uploader;
+		this.index = new StreamChunkIndex(indexFile);
+	}
+
+	/**
+	 * Create a device stream and send the chunks of a file that were not sent before,
+	 * followed by the manifest.
+	 * 
+	 * @param dispatcher
+	 * @param hardwareId
+	 * @param streamId
+	 * @param contentType
+	 * @param file
+	 * @return number of bytes of file content sent
+	 * @throws SiteWhereAgentException
+	 */
+	public long upload(ISiteWhereEventDispatcher dispatcher, String hardwareId, String streamId,
+			String contentType, File file) throws SiteWhereAgentException {
+		uploader.createStream(dispatcher, hardwareId, streamId, contentType);
+		try {
+			return sendChanges(dispatcher, hardwareId, streamId, file);
+		} catch (IOException e) {
+			throw new SiteWhereAgentException("Unable to read " + file.getAbsolutePath() + " for upload.", e);
+		}
+	}
+
+	/**
+	 * Send new chunks of a file and the manifest.
+	 * 
+	 * @param dispatcher
+	 * @param hardwareId
+	 * @param streamId
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @throws SiteWhereAgentException
+	 */
+	protected long sendChanges(ISiteWhereEventDispatcher dispatcher, String hardwareId, String streamId,
+			File file) throws IOException, SiteWhereAgentException {
+		MessageDigest digest = createDigest();
+		Map<String, StreamChunkIndex.Location> sending = new HashMap<String, StreamChunkIndex.Location>();
+		StringBuilder manifest = new StringBuilder();
+		StreamChunkSender sender = new StreamChunkSender(dispatcher, uploader.getWindow());
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long sequence = 0;
+		long bytesSent = 0;
+		int chunkCount = 0;
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			MappedByteBuffer segment = null;
+			long segmentStart = 0;
+			long position = 0;
+			while (position < size) {
+				long end = Math.min(position + chunker.getMaxSize(), size);
+				if ((segment == null) || (end > segmentStart + segment.capacity())) {
+					segmentStart = position;
+					segment = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(MAX_SEGMENT_SIZE, size - position));
+				}
+				int start = (int) (position - segmentStart);
+				int cut = chunker.findBoundary(segment, start, (int) (end - segmentStart));
+				ByteBuffer slice = segment.duplicate();
+				slice.position(start);
+				slice.limit(cut);
+				int length = cut - start;
+
+				digest.update(slice.duplicate());
+				final String hash = toHex(digest.digest());
+				StreamChunkIndex.Location location = index.get(hash);
+				if (location == null) {
+					location = sending.get(hash);
+				}
+				if (location == null) {
+					location = new StreamChunkIndex.Location(streamId, sequence++);
+					sending.put(hash, location);
+					Model.DeviceStreamData data = Model.DeviceStreamData.newBuilder().setHardwareId(hardwareId)
+							.setStreamId(streamId).setSequenceNumber(location.getSequenceNumber())
+							.setData(ByteString.copyFrom(slice)).addMetadata(metadata(METADATA_HASH, hash))
+							.build();
+					final StreamChunkIndex.Location sent = location;
+					sender.send(data, new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								index.record(hash, sent);
+							} catch (IOException e) {
+								LOGGER.log(Level.WARNING, "Unable to update stream chunk index.", e);
+							}
+						}
+					});
+					bytesSent += length;
+				}
+				manifest.append(hash).append(' ').append(length).append(' ').append(location.getStreamId())
+						.append(' ').append(location.getSequenceNumber()).append('\n');
+				chunkCount++;
+				position += length;
+			}
+
+			// Manifest is only sent once all chunks it refers to have been sent.
+			sender.flush();
+			Model.DeviceStreamData data = Model.DeviceStreamData.newBuilder().setHardwareId(hardwareId)
+					.setStreamId(streamId).setSequenceNumber(sequence)
+					.setData(ByteString.copyFrom(manifest.toString(), StandardCharsets.UTF_8.name()))
+					.addMetadata(metadata(METADATA_MANIFEST, String.valueOf(chunkCount))).build();
+			sender.send(data, null);
+			sender.flush();
+			LOGGER.info("Uploaded " + file.getAbsolutePath() + " to stream '" + streamId + "' sending "
+					+ sequence + " of " + chunkCount + " chunks (" + bytesSent + " of " + size + " bytes).");
+			return bytesSent;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SiteWhereAgentException("Interrupted while uploading stream '" + streamId + "'.", e);
+		} finally {
+			sender.shutdown();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Create a metadata entry.
+	 * 
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	protected Model.Metadata metadata(String name, String value) {
+		return Model.Metadata.newBuilder().setName(name).setValue(value).build();
+	}
+
+	/**
+	 * Create digest used to identify chunks.
+	 * 
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	protected MessageDigest createDigest() throws SiteWhereAgentException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new SiteWhereAgentException("SHA-256 digest not available.", e);
+		}
+	}
+
+	/**
+	 * Convert a hash to lowercase hex.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	protected static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	public StreamChunkIndex getIndex() {
+		return index;
+	}
+
+	public ContentDefinedChunker getChunker() {
+		return chunker;
+	}
+
+	public void setChunker(ContentDefinedChunker chunker) {
+		this.chunker = chunker;
+	}
+}
\ No newline at end of file
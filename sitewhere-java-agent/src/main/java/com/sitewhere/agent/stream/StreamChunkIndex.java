@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Local record of the chunks already sent to SiteWhere, keyed by content hash. Each
+ * entry gives the stream and sequence number the chunk was sent as, so a manifest can
+ * refer to it instead of sending it again. Entries are appended to a text file, one per
+ * line, and loaded when the index is opened.
+ * 
+ * @author Derek
+ */
+public class StreamChunkIndex {
+
+	/** Static logger instance */
+	private static final Logger LOGGER = Logger.getLogger(StreamChunkIndex.class.getName());
+
+	/** File entries are stored in */
+	private final File file;
+
+	/** Chunk locations by hash */
+	private final Map<String, Location> chunks = new HashMap<String, Location>();
+
+	/** Appends entries to file */
+	private Writer writer;
+
+	/** Indicates whether file has been loaded */
+	private boolean loaded;
+
+	public StreamChunkIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get the location of a chunk that was already sent.
+	 * 
+	 * @param hash
+	 * @return location or null if the chunk has not been sent
+	 * @throws IOException
+	 */
+	public synchronized Location get(String hash) throws IOException {
+		load();
+		return chunks.get(hash);
+	}
+
+	/**
+	 * Record that a chunk was sent.
+	 * 
+	 * @param hash
+	 * @param location
+	 * @throws IOException
+	 */
+	public synchronized void record(String hash, Location location) throws IOException {
+		load();
+		if (chunks.containsKey(hash)) {
+			return;
+		}
+		if (writer == null) {
+			writer = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		}
+		writer.write(hash + " " + location.getStreamId() + " " + location.getSequenceNumber() + "\n");
+		writer.flush();
+		chunks.put(hash, location);
+	}
+
+	/**
+	 * Get number of chunks in index.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized int size() throws IOException {
+		load();
+		return chunks.size();
+	}
+
+	/**
+	 * Close the index file.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Load entries from file on first use. Malformed lines (for instance a line cut short
+	 * by a crash) are skipped.
+	 * 
+	 * @throws IOException
+	 */
+	protected void load() throws IOException {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader reader =
+				new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (fields.length != 3) {
+					LOGGER.warning("Skipping malformed chunk index entry: " + line);
+					continue;
+				}
+				try {
+					chunks.put(fields[0], new Location(fields[1], Long.parseLong(fields[2])));
+				} catch (NumberFormatException e) {
+					LOGGER.warning("Skipping malformed chunk index entry: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Stream and sequence number a chunk was sent as.
+	 * 
+	 * @author Derek
+	 */
+	public static class Location {
+
+		/** Stream id */
+		private final String streamId;
+
+		/** Sequence number in stream */
+		private final long sequenceNumber;
+
+		public Location(String streamId, long sequenceNumber) {
+			this.streamId = streamId;
+			this.sequenceNumber = sequenceNumber;
+		}
+
+		public String getStreamId() {
+			return streamId;
+		}
+
+		public long getSequenceNumber() {
+			return sequenceNumber;
+		}
+	}
+}
\ No newline at end of file
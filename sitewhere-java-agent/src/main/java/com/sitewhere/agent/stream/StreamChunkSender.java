@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.stream;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sitewhere.agent.ISiteWhereEventDispatcher;
+import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+
+/**
+ * Sends stream data chunks on a fixed number of threads, blocking the caller once the
+ * given number of chunks are in flight. Used by uploads so chunks are read from the
+ * file only as fast as they can be sent.
+ * 
+ * @author Derek
+ */
+class StreamChunkSender {
+
+	/** Used to send chunks */
+	private final ISiteWhereEventDispatcher dispatcher;
+
+	/** Number of chunks in flight */
+	private final int window;
+
+	/** Limits chunks in flight */
+	private final Semaphore permits;
+
+	/** Threads that send chunks */
+	private final ExecutorService senders;
+
+	/** First failure reported by a sender */
+	private final AtomicReference<SiteWhereAgentException> failure = new AtomicReference<SiteWhereAgentException>();
+
+	public StreamChunkSender(ISiteWhereEventDispatcher dispatcher, int window) {
+		this.dispatcher = dispatcher;
+		this.window = Math.max(window, 1);
+		this.permits = new Semaphore(this.window);
+		this.senders = Executors.newFixedThreadPool(this.window);
+	}
+
+	/**
+	 * Queue a chunk for sending, waiting for a free slot in the window.
+	 * 
+	 * @param data
+	 * @param onSent called after the chunk was sent (may be null)
+	 * @throws InterruptedException
+	 * @throws SiteWhereAgentException if an earlier chunk could not be sent
+	 */
+	public void send(final Model.DeviceStreamData data, final Runnable onSent)
+			throws InterruptedException, SiteWhereAgentException {
+		permits.acquire();
+		if (failure.get() != null) {
+			permits.release();
+			throw failure.get();
+		}
+		senders.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					dispatcher.sendDeviceStreamData(data, null);
+					if (onSent != null) {
+						onSent.run();
+					}
+				} catch (SiteWhereAgentException e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for all chunks in flight to be sent.
+	 * 
+	 * @throws InterruptedException
+	 * @throws SiteWhereAgentException if any chunk could not be sent
+	 */
+	public void flush() throws InterruptedException, SiteWhereAgentException {
+		permits.acquire(window);
+		permits.release(window);
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	/**
+	 * Stop sender threads once queued chunks are sent.
+	 */
+	public void shutdown() {
+		senders.shutdown();
+	}
+}
\ No newline at end of file
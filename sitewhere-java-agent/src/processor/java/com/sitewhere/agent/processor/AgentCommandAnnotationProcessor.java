@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) SiteWhere LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * The software in this package is published under the terms of the MIT
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+package com.sitewhere.agent.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a command dispatcher for each command processor class that has methods
+ * annotated with <code>com.sitewhere.agent.AgentCommand</code>. The dispatcher switches on
+ * the command name and calls the handler directly with casted parameters. Handler
+ * signatures that can never match a command payload are reported as compile errors.
+ * 
+ * @author Derek
+ */
+public class AgentCommandAnnotationProcessor extends AbstractProcessor {
+
+	/** Annotation that marks command handlers */
+	private static final String AGENT_COMMAND = "com.sitewhere.agent.AgentCommand";
+
+	/** Interface all command processors implement */
+	private static final String COMMAND_PROCESSOR = "com.sitewhere.agent.IAgentCommandProcessor";
+
+	/** Interface implemented by generated dispatchers */
+	private static final String COMMAND_DISPATCHER = "com.sitewhere.agent.IAgentCommandDispatcher";
+
+	/** Originator type that may be passed as last parameter */
+	private static final String ORIGINATOR = "com.sitewhere.spi.device.event.IDeviceEventOriginator";
+
+	/** Suffix for generated class names */
+	private static final String SUFFIX = "_CommandDispatcher";
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedAnnotationTypes()
+	 */
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton(AGENT_COMMAND);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set,
+	 * javax.annotation.processing.RoundEnvironment)
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+		TypeElement annotation = processingEnv.getElementUtils().getTypeElement(AGENT_COMMAND);
+		if ((annotation == null) || annotations.isEmpty()) {
+			return false;
+		}
+		Set<TypeElement> processors = new LinkedHashSet<TypeElement>();
+		for (Element element : round.getElementsAnnotatedWith(annotation)) {
+			if (element.getKind() != ElementKind.METHOD) {
+				continue;
+			}
+			processors.add((TypeElement) element.getEnclosingElement());
+		}
+		for (TypeElement processor : processors) {
+			if (validateProcessor(processor)) {
+				generateDispatcher(processor);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Verify that a class declaring command handlers can have a dispatcher generated.
+	 * 
+	 * @param processor
+	 * @return
+	 */
+	protected boolean validateProcessor(TypeElement processor) {
+		TypeMirror commandProcessor = getType(COMMAND_PROCESSOR);
+		if (!processingEnv.getTypeUtils().isAssignable(processor.asType(), commandProcessor)) {
+			error(processor, "Class with @AgentCommand methods must implement " + COMMAND_PROCESSOR + ".");
+			return false;
+		}
+		if (processor.getKind() != ElementKind.CLASS) {
+			error(processor, "@AgentCommand methods must be declared on a class.");
+			return false;
+		}
+		if ((processor.getNestingKind() != NestingKind.TOP_LEVEL)
+				&& (processor.getNestingKind() != NestingKind.MEMBER)) {
+			error(processor, "@AgentCommand methods are not supported on local or anonymous classes.");
+			return false;
+		}
+		if ((processor.getNestingKind() == NestingKind.MEMBER)
+				&& !processor.getModifiers().contains(Modifier.STATIC)) {
+			error(processor, "Class with @AgentCommand methods must be static if nested.");
+			return false;
+		}
+		if (processor.getModifiers().contains(Modifier.PRIVATE)) {
+			error(processor, "Class with @AgentCommand methods must not be private.");
+			return false;
+		}
+		if (!processor.getTypeParameters().isEmpty()) {
+			error(processor, "Class with @AgentCommand methods must not be generic.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Generate the dispatcher for a processor class. Handlers inherited from superclasses
+	 * are included.
+	 * 
+	 * @param processor
+	 */
+	protected void generateDispatcher(TypeElement processor) {
+		Map<String, List<ExecutableElement>> handlers = new LinkedHashMap<String, List<ExecutableElement>>();
+		boolean valid = true;
+		for (ExecutableElement method : ElementFilter
+				.methodsIn(processingEnv.getElementUtils().getAllMembers(processor))) {
+			AnnotationMirror command = getAgentCommand(method);
+			if (command == null) {
+				continue;
+			}
+			if (!validateHandler(method)) {
+				valid = false;
+				continue;
+			}
+			String name = getCommandName(method, command);
+			List<ExecutableElement> existing = handlers.get(name);
+			if (existing == null) {
+				existing = new ArrayList<ExecutableElement>();
+				handlers.put(name, existing);
+			}
+			existing.add(method);
+		}
+		if (!valid) {
+			return;
+		}
+
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(processor);
+		String packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
+		String processorName = processor.getQualifiedName().toString();
+		String simpleName = getFlatName(processor, packageName) + SUFFIX;
+		String generatedName = (packageName == null) ? simpleName : packageName + "." + simpleName;
+
+		StringBuilder src = new StringBuilder();
+		if (packageName != null) {
+			src.append("package ").append(packageName).append(";\n\n");
+		}
+		src.append("/**\n");
+		src.append(" * Command dispatcher generated for {@link ").append(processorName).append("}. Do not edit.\n");
+		src.append(" */\n");
+		src.append("public final class ").append(simpleName).append(" implements ").append(COMMAND_DISPATCHER)
+				.append("<").append(processorName).append("> {\n\n");
+		src.append("\t@Override\n");
+		src.append("\tpublic boolean dispatch(").append(processorName)
+				.append(" processor, String commandName, Object[] parameters,\n");
+		src.append("\t\t\t").append(ORIGINATOR).append(" originator) throws Exception {\n");
+		src.append("\t\tswitch (commandName) {\n");
+		for (Map.Entry<String, List<ExecutableElement>> entry : handlers.entrySet()) {
+			src.append("\t\tcase \"").append(escape(entry.getKey())).append("\":\n");
+			for (ExecutableElement method : entry.getValue()) {
+				appendInvocation(src, method);
+			}
+			src.append("\t\t\treturn false;\n");
+		}
+		src.append("\t\tdefault:\n");
+		src.append("\t\t\treturn false;\n");
+		src.append("\t\t}\n");
+		src.append("\t}\n");
+		src.append("}\n");
+
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(generatedName, processor);
+			Writer writer = file.openWriter();
+			try {
+				writer.write(src.toString());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			error(processor, "Unable to generate command dispatcher: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Append the parameter checks and direct call for a single handler.
+	 * 
+	 * @param src
+	 * @param method
+	 */
+	protected void appendInvocation(StringBuilder src, ExecutableElement method) {
+		List<? extends VariableElement> params = method.getParameters();
+		int count = params.size();
+		boolean withOriginator = (count > 0) && isOriginator(params.get(count - 1).asType());
+		int payloadCount = withOriginator ? count - 1 : count;
+
+		src.append("\t\t\tif ((parameters.length == ").append(payloadCount).append(")");
+		for (int i = 0; i < payloadCount; i++) {
+			src.append("\n\t\t\t\t\t&& (parameters[").append(i).append("] instanceof ")
+					.append(getErasure(params.get(i).asType())).append(")");
+		}
+		src.append(") {\n");
+		src.append("\t\t\t\tprocessor.").append(method.getSimpleName()).append("(");
+		for (int i = 0; i < payloadCount; i++) {
+			if (i > 0) {
+				src.append(", ");
+			}
+			src.append("(").append(getErasure(params.get(i).asType())).append(") parameters[").append(i)
+					.append("]");
+		}
+		if (withOriginator) {
+			src.append((payloadCount > 0) ? ", originator" : "originator");
+		}
+		src.append(");\n");
+		src.append("\t\t\t\treturn true;\n");
+		src.append("\t\t\t}\n");
+	}
+
+	/**
+	 * Check that a handler can be called with values decoded from a command payload.
+	 * 
+	 * @param method
+	 * @return
+	 */
+	protected boolean validateHandler(ExecutableElement method) {
+		Set<Modifier> modifiers = method.getModifiers();
+		if (modifiers.contains(Modifier.STATIC)) {
+			error(method, "@AgentCommand method must not be static.");
+			return false;
+		}
+		if (!modifiers.contains(Modifier.PUBLIC)) {
+			error(method, "@AgentCommand method must be public.");
+			return false;
+		}
+		if (!method.getTypeParameters().isEmpty()) {
+			error(method, "@AgentCommand method must not declare type parameters.");
+			return false;
+		}
+		if (method.isVarArgs()) {
+			error(method, "@AgentCommand method must not use varargs.");
+			return false;
+		}
+		List<? extends VariableElement> params = method.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			VariableElement param = params.get(i);
+			TypeMirror type = param.asType();
+			if (type.getKind().isPrimitive()) {
+				error(param, "Parameter '" + param.getSimpleName() + "' of @AgentCommand method must use boxed type "
+						+ processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName()
+						+ " since command parameters are delivered as objects.");
+				return false;
+			}
+			if (isOriginator(type) && (i != params.size() - 1)) {
+				error(param, "Originator must be the last parameter of @AgentCommand method.");
+				return false;
+			}
+			if ((type.getKind() == TypeKind.DECLARED) && !((DeclaredType) type).getTypeArguments().isEmpty()) {
+				error(param, "Parameter '" + param.getSimpleName() + "' of @AgentCommand method must not be generic.");
+				return false;
+			}
+			if (type.getKind() == TypeKind.TYPEVAR) {
+				error(param, "Parameter '" + param.getSimpleName()
+						+ "' of @AgentCommand method must not be a type variable.");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the {@link AgentCommand} annotation on a method or null if not annotated.
+	 * 
+	 * @param method
+	 * @return
+	 */
+	protected AnnotationMirror getAgentCommand(ExecutableElement method) {
+		for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+			TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+			if (type.getQualifiedName().contentEquals(AGENT_COMMAND)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get command name from annotation value, defaulting to method name.
+	 * 
+	 * @param method
+	 * @param command
+	 * @return
+	 */
+	protected String getCommandName(ExecutableElement method, AnnotationMirror command) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : command.getElementValues()
+				.entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals("value")) {
+				String value = (String) entry.getValue().getValue();
+				if (value.length() > 0) {
+					return value;
+				}
+			}
+		}
+		return method.getSimpleName().toString();
+	}
+
+	/**
+	 * Get name for a class relative to its package with nesting separated by underscores.
+	 * 
+	 * @param type
+	 * @param packageName
+	 * @return
+	 */
+	protected String getFlatName(TypeElement type, String packageName) {
+		String name = type.getQualifiedName().toString();
+		if (packageName != null) {
+			name = name.substring(packageName.length() + 1);
+		}
+		return name.replace('.', '_');
+	}
+
+	protected boolean isOriginator(TypeMirror type) {
+		return processingEnv.getTypeUtils().isSameType(type, getType(ORIGINATOR));
+	}
+
+	protected String getErasure(TypeMirror type) {
+		return processingEnv.getTypeUtils().erasure(type).toString();
+	}
+
+	protected TypeMirror getType(String name) {
+		return processingEnv.getElementUtils().getTypeElement(name).asType();
+	}
+
+	protected String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	protected void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
\ No newline at end of file